@@ -0,0 +1,140 @@
+package hk.edu.polyu.comp.comp2021.cvfs;
+
+import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the sustained command rate of a {@link Server} on a Unix domain socket with 10 to 500 concurrent clients.
+ * Every client works in its own directory and repeats a mix of one write and three reads
+ * ({@code newDoc}, {@code list}, {@code search}, {@code delete} every fourth round), either waiting for each
+ * answer or sending eight commands at a time.
+ * Run with {@code java hk.edu.polyu.comp.comp2021.cvfs.ServerBenchmark} after compiling {@code src} and {@code bench}.
+ */
+public class ServerBenchmark {
+    private static final long MEASURE_NANOS = 5_000_000_000L;
+    private static final int PIPELINE = 8;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Command-line arguments (not used).
+     * @throws Exception If the server or a client fails.
+     */
+    public static void main(String[] args) throws Exception {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // The server session reports its setup
+        CVFS cvfs = new CVFS();
+        cvfs.setInteractive(false);
+        cvfs.createDisk(Integer.MAX_VALUE);
+        cvfs.createSimpleCri("bg", "size", ">", "100");
+        Path socket = Files.createTempDirectory("cvfs-bench").resolve("cvfs.sock");
+        try (Server server = new Server(cvfs, socket.toString(), 1024)) {
+            server.start();
+            run(server, 50, 1, false); // Warm-up
+            console.println("clients  pipeline    commands/s");
+            for (int clients : new int[]{10, 100, 300, 500}) {
+                for (int pipeline : new int[]{1, PIPELINE}) {
+                    console.printf("%-8d %-9d %12.0f%n", clients, pipeline, run(server, clients, pipeline, true));
+                }
+            }
+        } finally {
+            System.setOut(console);
+            Files.deleteIfExists(socket.getParent());
+        }
+    }
+
+    private static double run(Server server, int clients, int pipeline, boolean measure) throws InterruptedException {
+        AtomicLong commands = new AtomicLong();
+        CountDownLatch ready = new CountDownLatch(clients);
+        CountDownLatch go = new CountDownLatch(1);
+        long[] window = new long[1];
+        List<Thread> threads = new ArrayList<>();
+        String prefix = measure ? "c" + clients + "p" + pipeline + "n" : "w";
+        for (int c = 0; c < clients; c++) {
+            String dirName = prefix + c;
+            Thread thread = new Thread(() -> {
+                try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+                    channel.connect(server.getAddress());
+                    BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+                    PrintStream out = new PrintStream(Channels.newOutputStream(channel), false, StandardCharsets.UTF_8);
+                    exchange(in, out, new String[]{"newDir " + dirName, "changeDir " + dirName});
+                    ready.countDown();
+                    go.await();
+                    String[] batch = new String[pipeline];
+                    int round = 0;
+                    int sent = 0;
+                    while (System.nanoTime() < window[0]) {
+                        for (int i = 0; i < pipeline; i++, sent++) {
+                            batch[i] = command(sent, round);
+                            if (sent % 4 == 3) {
+                                round++;
+                            }
+                        }
+                        exchange(in, out, batch);
+                        commands.addAndGet(pipeline);
+                    }
+                    exchange(in, out, new String[]{"quit"});
+                } catch (IOException | InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        window[0] = start + (measure ? MEASURE_NANOS : MEASURE_NANOS / 5);
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return commands.get() / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static String command(int sent, int round) {
+        switch (sent % 4) {
+            case 0:
+                return "newDoc d" + round + " txt content of document " + round;
+            case 1:
+                return "list";
+            case 2:
+                return "search bg";
+            default:
+                return round % 4 == 0 ? "delete d" + round : "rSpace";
+        }
+    }
+
+    /**
+     * Sends commands and reads the answers up to the status line of each.
+     */
+    private static void exchange(BufferedReader in, PrintStream out, String[] commands) throws IOException {
+        for (String command : commands) {
+            out.println(command);
+        }
+        out.flush();
+        for (int i = 0; i < commands.length; i++) {
+            String line;
+            while ((line = in.readLine()) != null && !line.startsWith("%")) {
+                // Skip the output of the command
+            }
+            if (line == null) {
+                throw new IOException("Server closed the connection.");
+            }
+        }
+    }
+}
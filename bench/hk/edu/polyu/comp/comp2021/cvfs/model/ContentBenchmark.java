@@ -0,0 +1,146 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compares heap footprint, image size and save/load time with and without {@link CompressedContent}.
+ * The corpus is the Java sources and Markdown files of this repository, copied into 200 directories with a
+ * distinct first line per copy, so that content deduplication does not hide the cost of the text.
+ * Run from the repository root with e.g.
+ * {@code java -Xmx2g hk.edu.polyu.comp.comp2021.cvfs.model.ContentBenchmark}.
+ */
+public class ContentBenchmark {
+    private static final int COPIES = 200;
+    private static final PrintStream OUT = System.out;
+
+    /**
+     * Runs the benchmark with compression disabled and at thresholds of 4096, 1024 and 256 characters.
+     *
+     * @param args Optionally the repository root to read the corpus from (defaults to the working directory).
+     * @throws IOException If the corpus or an image cannot be read or written.
+     */
+    public static void main(String[] args) throws IOException {
+        List<String> corpus = readCorpus(Paths.get(args.length > 0 ? args[0] : "."));
+        long characters = 0;
+        for (String text : corpus) {
+            characters += text.length();
+        }
+        System.out.printf("corpus: %d files, %.1f MB of text, %d documents%n",
+                corpus.size(), characters * COPIES / 1e6, corpus.size() * COPIES);
+        System.out.printf("%-10s %10s %11s %10s %10s %10s %11s %12s%n", "threshold", "heap (MB)", "image (MB)",
+                "save (ms)", "load (ms)", "read (ms)", "load heap", "mapped heap");
+        Path image = Files.createTempFile("cvfs-content", ".datc");
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // The commands report every step
+        int[] thresholds = {Integer.MAX_VALUE, 4096, 1024, 256};
+        for (int round = 0; round < 2; round++) {
+            for (int threshold : thresholds) {
+                run(corpus, threshold, image, round == 1);
+            }
+        }
+        System.setOut(OUT);
+        Files.delete(image);
+        CompressedContent.setThreshold(CompressedContent.DEFAULT_THRESHOLD);
+    }
+
+    private static void run(List<String> corpus, int threshold, Path image, boolean print) {
+        CompressedContent.setThreshold(threshold);
+        long before = usedHeap();
+        CVFS cvfs = build(corpus);
+        long heap = usedHeap() - before;
+
+        long start = System.nanoTime();
+        cvfs.saveDisk(image.toString(), false);
+        long saveNanos = System.nanoTime() - start;
+        long imageBytes = image.toFile().length();
+        cvfs = null;
+
+        before = usedHeap();
+        start = System.nanoTime();
+        CVFS loaded = new CVFS();
+        loaded.loadDisk(image.toString());
+        long loadNanos = System.nanoTime() - start;
+        long loadHeap = usedHeap() - before;
+        start = System.nanoTime();
+        long read = readAll(loaded.getDisk().getRoot());
+        long readNanos = System.nanoTime() - start;
+        loaded = null;
+
+        before = usedHeap();
+        CVFS mapped = new CVFS();
+        mapped.loadDisk(image.toString(), true);
+        long mappedHeap = usedHeap() - before;
+        if (mapped.getDisk() == null || read == 0) {
+            throw new IllegalStateException("Nothing was loaded.");
+        }
+        if (print) {
+            OUT.printf("%-10s %10.1f %11.1f %10d %10d %10d %11.1f %12.1f%n",
+                    threshold == Integer.MAX_VALUE ? "off" : String.valueOf(threshold), heap / 1e6, imageBytes / 1e6,
+                    saveNanos / 1_000_000, loadNanos / 1_000_000, readNanos / 1_000_000, loadHeap / 1e6,
+                    mappedHeap / 1e6);
+        }
+    }
+
+    private static CVFS build(List<String> corpus) {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(Integer.MAX_VALUE);
+        for (int copy = 0; copy < COPIES; copy++) {
+            cvfs.createDirectory("c" + copy);
+            cvfs.changeDir("c" + copy);
+            for (int i = 0; i < corpus.size(); i++) {
+                cvfs.createDocument("f" + i, "txt", "// copy " + copy + "\n" + corpus.get(i));
+            }
+            cvfs.changeDir("..");
+        }
+        return cvfs;
+    }
+
+    private static long readAll(File file) {
+        if (file instanceof Document) {
+            return ((Document) file).getContent().length();
+        }
+        long total = 0;
+        for (File child : ((Directory) file).getFiles()) {
+            total += readAll(child);
+        }
+        return total;
+    }
+
+    private static List<String> readCorpus(Path root) throws IOException {
+        List<String> corpus = new ArrayList<>();
+        for (String dir : new String[]{"src", "test", "bench", "jmh/src"}) {
+            if (!Files.isDirectory(root.resolve(dir))) {
+                continue;
+            }
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(root.resolve(dir))) {
+                files = walk.filter(p -> p.toString().endsWith(".java") || p.toString().endsWith(".md"))
+                        .sorted().collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                corpus.add(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            }
+        }
+        if (corpus.isEmpty()) {
+            throw new IOException("No corpus files below " + root.toAbsolutePath() + ".");
+        }
+        return corpus;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
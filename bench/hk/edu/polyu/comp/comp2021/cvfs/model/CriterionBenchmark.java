@@ -0,0 +1,56 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+/**
+ * Measures how many files per second simple, negation and binary criteria evaluate.
+ * Run with {@code java hk.edu.polyu.comp.comp2021.cvfs.model.CriterionBenchmark} after compiling {@code src} and {@code bench}.
+ */
+public class CriterionBenchmark {
+    private static final int FILES = 1_000_000;
+    private static final int ROUNDS = 10;
+
+    /**
+     * Runs the benchmark for one criterion of every kind.
+     *
+     * @param args Command-line arguments (not used).
+     */
+    public static void main(String[] args) {
+        File[] files = new File[FILES];
+        String[] types = {"txt", "java", "html", "css"};
+        for (int i = 0; i < FILES; i++) {
+            files[i] = i % 10 == 0 ? new Directory("dir" + i) : new Document("doc" + i, types[i % 4], "x" + i);
+        }
+        Criterion name = new SimpleCriterion("nm", "name", "contains", "\"c12\"");
+        Criterion type = new SimpleCriterion("tp", "type", "equals", "\"css\"");
+        Criterion size = new SimpleCriterion("sz", "size", ">=", "52");
+        Criterion binary = new BinaryCriterion("bn", new NegationCriterion("ng", type), "&&", size);
+
+        System.out.println("criterion          files/s (millions)");
+        run("name contains", name, files);
+        run("type equals", type, files);
+        run("size >=", size, files);
+        run("!type && size", binary, files);
+    }
+
+    private static void run(String label, Criterion criterion, File[] files) {
+        int matches = 0;
+        for (int round = 0; round < ROUNDS; round++) { // Warm-up
+            matches += count(criterion, files);
+        }
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            matches += count(criterion, files);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-18s %8.1f   (%d matches)%n", label, (double) files.length * ROUNDS / seconds / 1e6, matches / (2 * ROUNDS));
+    }
+
+    private static int count(Criterion criterion, File[] files) {
+        int matches = 0;
+        for (File file : files) {
+            if (criterion.matches(file)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,56 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+/**
+ * Measures how inserting into and looking up children of a single {@link Directory} scale with its width.
+ * Run with {@code java hk.edu.polyu.comp.comp2021.cvfs.model.DirectoryBenchmark} after compiling {@code src} and {@code bench}.
+ */
+public class DirectoryBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+
+    /**
+     * Runs the insert and lookup benchmark for 10^3 to 10^6 children.
+     *
+     * @param args Command-line arguments (not used).
+     */
+    public static void main(String[] args) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            run(10_000, false);
+        }
+        System.out.println("children      insert ns/op   lookup ns/op");
+        for (int n = 1_000; n <= 1_000_000; n *= 10) {
+            run(n, true);
+        }
+    }
+
+    private static void run(int n, boolean print) {
+        String[] names = new String[n];
+        Document[] docs = new Document[n];
+        for (int i = 0; i < n; i++) {
+            names[i] = "d" + i;
+            docs[i] = new Document(names[i], "txt", "");
+        }
+
+        Directory dir = new Directory("bench");
+        long start = System.nanoTime();
+        for (Document doc : docs) {
+            dir.addFile(doc);
+        }
+        long insertNanos = System.nanoTime() - start;
+
+        int found = 0;
+        start = System.nanoTime();
+        for (String name : names) {
+            if (dir.findFile(name) != null) {
+                found++;
+            }
+        }
+        long lookupNanos = System.nanoTime() - start;
+
+        if (found != n) {
+            throw new IllegalStateException("Lookup missed " + (n - found) + " children.");
+        }
+        if (print) {
+            System.out.printf("%-12d  %12.1f   %12.1f%n", n, (double) insertNanos / n, (double) lookupNanos / n);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Compares save/load time and image size of the binary {@link DiskImage} format with Java serialization
+ * on a tree of 10^6 entries (1000 directories with 999 documents each).
+ * Run with a large heap, e.g. {@code java -Xmx4g hk.edu.polyu.comp.comp2021.cvfs.model.DiskImageBenchmark}.
+ */
+public class DiskImageBenchmark {
+    private static final int DIRECTORIES = 1000;
+    private static final int DOCUMENTS_PER_DIRECTORY = 999;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Optionally the directory to write the images to (defaults to the working directory).
+     * @throws Exception If an image cannot be written or read.
+     */
+    public static void main(String[] args) throws Exception {
+        Path dir = Paths.get(args.length > 0 ? args[0] : ".");
+        Path binary = dir.resolve("bench-image.dat");
+        Path legacy = dir.resolve("bench-legacy.dat");
+        VirtualDisk disk = buildDisk();
+        int entries = disk.getRoot().getDescendantCount() + 1;
+
+        for (int round = 0; round < 2; round++) {
+            long binarySave = time(() -> DiskImage.write(binary, disk, null));
+            long binaryLoad = time(() -> DiskImage.read(binary));
+            long legacySave = time(() -> {
+                try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(legacy.toFile()))) {
+                    oos.writeObject(disk);
+                    oos.writeBoolean(false);
+                }
+            });
+            long legacyLoad = time(() -> {
+                try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(legacy.toFile()))) {
+                    ois.readObject();
+                }
+            });
+            if (round == 0) {
+                continue; // Warm-up round
+            }
+            System.out.printf("entries: %d%n", entries);
+            System.out.printf("%-14s %12s %12s %14s %14s%n", "format", "size (MB)", "save (ms)", "save (k/s)", "load (k/s)");
+            print("binary", Files.size(binary), binarySave, binaryLoad, entries);
+            print("serialization", Files.size(legacy), legacySave, legacyLoad, entries);
+        }
+        Files.delete(binary);
+        Files.delete(legacy);
+    }
+
+    private static VirtualDisk buildDisk() {
+        VirtualDisk disk = new VirtualDisk(Integer.MAX_VALUE);
+        for (int d = 0; d < DIRECTORIES; d++) {
+            Directory dir = new Directory("dir" + d);
+            for (int f = 0; f < DOCUMENTS_PER_DIRECTORY; f++) {
+                dir.addFile(new Document("doc" + f, f % 2 == 0 ? "txt" : "java", "content of document " + f));
+            }
+            disk.addFile(dir);
+        }
+        return disk;
+    }
+
+    private static void print(String format, long bytes, long saveNanos, long loadNanos, int entries) {
+        System.out.printf("%-14s %12.1f %12d %14.0f %14.0f   load %d ms%n", format, bytes / 1e6, saveNanos / 1_000_000,
+                entries / (saveNanos / 1e9) / 1000, entries / (loadNanos / 1e9) / 1000, loadNanos / 1_000_000);
+    }
+
+    private interface IOAction {
+        void run() throws IOException, ClassNotFoundException;
+    }
+
+    private static long time(IOAction action) throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        action.run();
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,63 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Measures {@link CVFS#exportTree(String, String)} of 100,000 documents in 100 directories with 1 to 16 writing
+ * threads, replacing the files of the previous round.
+ * Run with {@code java hk.edu.polyu.comp.comp2021.cvfs.model.ExportBenchmark [directory]}; the host files are
+ * written to the given directory (defaults to the temporary directory).
+ */
+public class ExportBenchmark {
+    private static final int DIRECTORIES = 100;
+    private static final int FILES = 1000;
+    private static final PrintStream OUT = System.out;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Optionally the directory to write the host files to.
+     * @throws Exception If the host files cannot be written or deleted.
+     */
+    public static void main(String[] args) throws Exception {
+        Path host = args.length > 0 ? Files.createTempDirectory(Path.of(args[0]), "cvfs-export")
+                : Files.createTempDirectory("cvfs-export");
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // The commands report every step
+        try {
+            CVFS cvfs = new CVFS();
+            cvfs.createDisk(Integer.MAX_VALUE);
+            cvfs.createDirectory("tree");
+            for (int d = 0; d < DIRECTORIES; d++) {
+                cvfs.createDirectory("tree/dir" + d);
+                for (int i = 0; i < FILES; i++) {
+                    cvfs.createDocument("tree/dir" + d + "/file" + i, i % 10 == 0 ? "java" : "txt",
+                            ("file " + i + " of directory " + d + "\n").repeat(1 + i % 20));
+                }
+            }
+            long bytes = ((Directory) cvfs.getDisk().getRoot().findFile("tree")).getSize();
+            OUT.printf("%d documents, %.1f MB%n", DIRECTORIES * FILES, bytes / 1e6);
+            OUT.printf("%-18s %10s %12s%n", "threads", "ms", "files/s");
+            for (int warmUp = 0; warmUp < 2; warmUp++) {
+                for (int threads : new int[]{1, 4, 16}) {
+                    Exporter.setThreads(threads);
+                    long start = System.nanoTime();
+                    cvfs.exportTree("/tree", host.toString());
+                    double millis = (System.nanoTime() - start) / 1e6;
+                    if (warmUp == 1) {
+                        OUT.printf("%-18d %10.0f %12.0f%n", threads, millis, DIRECTORIES * FILES / millis * 1e3);
+                    }
+                }
+            }
+        } finally {
+            System.setOut(OUT);
+            try (Stream<Path> files = Files.walk(host)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+}
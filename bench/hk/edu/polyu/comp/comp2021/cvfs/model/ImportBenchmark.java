@@ -0,0 +1,99 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Compares populating a disk from 100,000 host files in 100 directories with one {@code newDoc} per file against
+ * {@link CVFS#importTree(String, String)} with 1 to 16 reading threads.
+ * Run with {@code java hk.edu.polyu.comp.comp2021.cvfs.model.ImportBenchmark [directory]}; the host files are
+ * written to the given directory (defaults to the temporary directory) and are mostly in the page cache afterwards,
+ * so the numbers show the cost of the import itself rather than that of a cold disk.
+ */
+public class ImportBenchmark {
+    private static final int DIRECTORIES = 100;
+    private static final int FILES = 1000;
+    private static final PrintStream OUT = System.out;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Optionally the directory to write the host files to.
+     * @throws Exception If the host files cannot be written or read.
+     */
+    public static void main(String[] args) throws Exception {
+        Path host = args.length > 0 ? Files.createTempDirectory(Path.of(args[0]), "cvfs-import")
+                : Files.createTempDirectory("cvfs-import");
+        Path tree = host.resolve("tree");
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // The commands report every step
+        try {
+            long bytes = 0;
+            for (int d = 0; d < DIRECTORIES; d++) {
+                Path dir = Files.createDirectories(tree.resolve("dir" + d));
+                for (int i = 0; i < FILES; i++) {
+                    byte[] content = ("file " + i + " of directory " + d + "\n").repeat(1 + i % 20)
+                            .getBytes(StandardCharsets.UTF_8);
+                    Files.write(dir.resolve("file" + i + (i % 10 == 0 ? ".java" : ".txt")), content);
+                    bytes += content.length;
+                }
+            }
+            OUT.printf("%d files, %.1f MB%n", DIRECTORIES * FILES, bytes / 1e6);
+            OUT.printf("%-18s %10s %12s %10s%n", "method", "ms", "files/s", "MB/s");
+            for (int warmUp = 0; warmUp < 2; warmUp++) {
+                long start = System.nanoTime();
+                newDocPerFile(tree);
+                report(warmUp, "newDoc per file", start, bytes);
+                for (int threads : new int[]{1, 4, 16}) {
+                    Importer.setThreads(threads);
+                    CVFS cvfs = new CVFS();
+                    cvfs.createDisk(Integer.MAX_VALUE);
+                    start = System.nanoTime();
+                    cvfs.importTree(tree.toString(), null);
+                    report(warmUp, "import, " + threads + " threads", start, bytes);
+                }
+            }
+        } finally {
+            System.setOut(OUT);
+            try (Stream<Path> files = Files.walk(host)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static void newDocPerFile(Path tree) throws IOException {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(Integer.MAX_VALUE);
+        cvfs.createDirectory("tree");
+        cvfs.changeDir("tree");
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(tree)) {
+            for (Path dir : dirs) {
+                cvfs.createDirectory(dir.getFileName().toString());
+                cvfs.changeDir(dir.getFileName().toString());
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                    for (Path file : files) {
+                        String name = file.getFileName().toString();
+                        int dot = name.lastIndexOf('.');
+                        cvfs.createDocument(name.substring(0, dot), name.substring(dot + 1),
+                                new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+                    }
+                }
+                cvfs.changeDir("..");
+            }
+        }
+    }
+
+    private static void report(int warmUp, String method, long start, long bytes) {
+        double millis = (System.nanoTime() - start) / 1e6;
+        if (warmUp == 1) {
+            OUT.printf("%-18s %10.0f %12.0f %10.1f%n", method, millis, DIRECTORIES * FILES / millis * 1e3,
+                    bytes / millis / 1e3);
+        }
+    }
+}
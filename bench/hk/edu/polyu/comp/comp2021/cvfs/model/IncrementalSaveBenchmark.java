@@ -0,0 +1,85 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compares a full save with an incremental save of a disk of 10,000 to 1,000,000 documents in directories of
+ * 1,000, after changing one document in each of 1, 10 and 100 directories. Every round first saves the disk to
+ * its image, then makes the changes and saves again; the full save writes the same disk to a new file.
+ * Run with {@code java hk.edu.polyu.comp.comp2021.cvfs.model.IncrementalSaveBenchmark [directory]};
+ * the images are written to the given directory (defaults to the temporary directory).
+ */
+public class IncrementalSaveBenchmark {
+    private static final int ROUNDS = 5;
+    private static final PrintStream OUT = System.out;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Optionally the directory to write the images to.
+     * @throws Exception If an image cannot be written.
+     */
+    public static void main(String[] args) throws Exception {
+        Path dir = args.length > 0 ? Files.createTempDirectory(Path.of(args[0]), "cvfs-segmented")
+                : Files.createTempDirectory("cvfs-segmented");
+        Path image = dir.resolve("disk.datc");
+        Path copy = dir.resolve("copy.datc");
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // The commands report every step
+        try {
+            OUT.printf("%-10s %-8s %12s %16s %14s%n", "documents", "changed", "full (ms)", "incremental (ms)",
+                    "appended (B)");
+            for (int documents : new int[]{10_000, 100_000, 1_000_000}) {
+                CVFS cvfs = build(documents);
+                cvfs.saveDisk(image.toString(), true);
+                for (int changed : new int[]{1, 10, 100}) {
+                    double full = 0;
+                    double incremental = 0;
+                    long appended = 0;
+                    for (int round = 0; round < ROUNDS; round++) {
+                        cvfs.saveDisk(image.toString(), true);
+                        long before = Files.size(image);
+                        for (int d = 0; d < changed; d++) {
+                            cvfs.changeDir("dir" + (d * (documents / 1000) / changed));
+                            cvfs.createDocument("c" + changed + "r" + round + "n" + d, "txt",
+                                    "changed in round " + round);
+                            cvfs.changeDir("..");
+                        }
+                        long start = System.nanoTime();
+                        cvfs.saveDisk(image.toString(), true);
+                        incremental += (System.nanoTime() - start) / 1e6;
+                        appended += Files.size(image) - before;
+                        Files.deleteIfExists(copy);
+                        start = System.nanoTime();
+                        cvfs.saveDisk(copy.toString(), true);
+                        full += (System.nanoTime() - start) / 1e6;
+                    }
+                    OUT.printf("%-10d %-8d %12.2f %16.2f %14d%n", documents, changed, full / ROUNDS,
+                            incremental / ROUNDS, appended / ROUNDS);
+                }
+            }
+        } finally {
+            System.setOut(OUT);
+            Files.deleteIfExists(image);
+            Files.deleteIfExists(copy);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static CVFS build(int documents) {
+        CVFS cvfs = new CVFS();
+        cvfs.setInteractive(false);
+        cvfs.createDisk(Integer.MAX_VALUE);
+        for (int d = 0; d < documents / 1000; d++) {
+            cvfs.createDirectory("dir" + d);
+            cvfs.changeDir("dir" + d);
+            for (int i = 0; i < 1000; i++) {
+                cvfs.createDocument("doc" + i, "txt", "document " + i + " of directory " + d);
+            }
+            cvfs.changeDir("..");
+        }
+        return cvfs;
+    }
+}
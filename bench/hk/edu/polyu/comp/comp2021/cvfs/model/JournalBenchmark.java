@@ -0,0 +1,125 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the cost of making one command durable by saving the whole disk with the cost of journaling it,
+ * on disks of 1,000 to 100,000 documents, and measures how group commit shares the forces of concurrent sessions.
+ * Run with {@code java hk.edu.polyu.comp.comp2021.cvfs.model.JournalBenchmark [directory]}; the images are
+ * written to the given directory (defaults to the temporary directory), whose file system decides the cost of a force.
+ */
+public class JournalBenchmark {
+    private static final int COMMANDS = 200;
+    private static final PrintStream OUT = System.out;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Optionally the directory to write the images and journals to.
+     * @throws Exception If an image or journal cannot be written.
+     */
+    public static void main(String[] args) throws Exception {
+        Path dir = args.length > 0 ? Files.createTempDirectory(Path.of(args[0]), "cvfs-journal")
+                : Files.createTempDirectory("cvfs-journal");
+        Path image = dir.resolve("disk.datc");
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // The commands report every step
+        try {
+            OUT.printf("%-10s %14s %14s %14s%n", "documents", "save (ms/cmd)", "journal (us)", "journal bytes");
+            for (int documents : new int[]{1_000, 10_000, 100_000}) {
+                CVFS cvfs = build(documents);
+                long start = System.nanoTime();
+                for (int i = 0; i < COMMANDS / 20; i++) {
+                    cvfs.createDocument("s" + i, "txt", "saved " + i);
+                    cvfs.saveDisk(image.toString(), true);
+                }
+                double saveMillis = (System.nanoTime() - start) / 1e6 / (COMMANDS / 20);
+
+                cvfs.startJournal(image.toString());
+                long before = Files.size(Journal.pathOf(image));
+                start = System.nanoTime();
+                for (int i = 0; i < COMMANDS; i++) {
+                    cvfs.createDocument("j" + i, "txt", "journaled " + i);
+                }
+                double journalMicros = (System.nanoTime() - start) / 1e3 / COMMANDS;
+                long bytes = (Files.size(Journal.pathOf(image)) - before) / COMMANDS;
+                OUT.printf("%-10d %14.2f %14.1f %14d%n", documents, saveMillis, journalMicros, bytes);
+                cvfs.setInteractive(false);
+                cvfs.createDisk(100); // Closes the journal
+            }
+
+            OUT.printf("%n%-10s %12s %14s%n", "sessions", "commands/s", "commands/force");
+            CVFS cvfs = build(1_000);
+            cvfs.startJournal(image.toString());
+            for (int sessions : new int[]{1, 4, 16, 64}) {
+                runSessions(cvfs, sessions);
+            }
+            cvfs.setInteractive(false);
+            cvfs.createDisk(100);
+        } finally {
+            System.setOut(OUT);
+            Files.deleteIfExists(Journal.pathOf(image));
+            Files.deleteIfExists(image);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static void runSessions(CVFS cvfs, int sessions) throws Exception {
+        int perSession = 2_000 / sessions;
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for (int s = 0; s < sessions; s++) {
+            CVFS session = cvfs.openSession();
+            String dirName = "n" + sessions + "s" + s;
+            session.createDirectory(dirName);
+            session.changeDir(dirName);
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < perSession; i++) {
+                        session.createDocument("d" + i, "txt", "content " + i);
+                    }
+                } catch (RuntimeException e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+        Journal journal = cvfs.getDisk().getJournal();
+        long forcesBefore = journal.getForceCount();
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException(failures.get(0));
+        }
+        long forces = journal.getForceCount() - forcesBefore;
+        OUT.printf("%-10d %12.0f %14.1f%n", sessions, sessions * perSession / seconds,
+                forces == 0 ? 0.0 : (double) sessions * perSession / forces);
+    }
+
+    private static CVFS build(int documents) {
+        CVFS cvfs = new CVFS();
+        cvfs.setInteractive(false);
+        cvfs.createDisk(Integer.MAX_VALUE);
+        for (int d = 0; d < documents / 1000; d++) {
+            cvfs.createDirectory("dir" + d);
+            cvfs.changeDir("dir" + d);
+            for (int i = 0; i < 1000; i++) {
+                cvfs.createDocument("doc" + i, "txt", "document " + i + " of directory " + d);
+            }
+            cvfs.changeDir("..");
+        }
+        cvfs.createSimpleCri("bg", "size", ">", "50");
+        return cvfs;
+    }
+}
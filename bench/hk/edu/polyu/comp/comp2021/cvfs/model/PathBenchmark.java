@@ -0,0 +1,64 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Measures navigating a chain of 10 to 1,000 nested directories one level per command against one command with
+ * the whole path, each followed by the prompt, as a script walking down to the deepest directory and back would.
+ * Run with {@code java hk.edu.polyu.comp.comp2021.cvfs.model.PathBenchmark}.
+ */
+public class PathBenchmark {
+    private static final int ROUNDS = 200;
+    private static final PrintStream OUT = System.out;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Command-line arguments (not used).
+     */
+    public static void main(String[] args) {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // The commands report every step
+        try {
+            OUT.printf("%-6s %18s %18s%n", "depth", "per level (us)", "one path (us)");
+            for (int depth : new int[]{10, 100, 1000}) {
+                CVFS cvfs = new CVFS();
+                cvfs.createDisk(Integer.MAX_VALUE);
+                StringBuilder path = new StringBuilder();
+                for (int i = 0; i < depth; i++) {
+                    cvfs.createDirectory("d" + i);
+                    cvfs.changeDir("d" + i);
+                    path.append("/d").append(i);
+                }
+                cvfs.changeDir("/");
+                for (int warmUp = 0; warmUp < 2; warmUp++) {
+                    double perLevel = 0;
+                    double onePath = 0;
+                    for (int round = 0; round < ROUNDS; round++) {
+                        long start = System.nanoTime();
+                        for (int i = 0; i < depth; i++) {
+                            cvfs.changeDir("d" + i);
+                            cvfs.getWorkingDir();
+                        }
+                        for (int i = 0; i < depth; i++) {
+                            cvfs.changeDir("..");
+                            cvfs.getWorkingDir();
+                        }
+                        perLevel += (System.nanoTime() - start) / 1e3;
+                        start = System.nanoTime();
+                        cvfs.changeDir(path.toString());
+                        cvfs.getWorkingDir();
+                        cvfs.changeDir("/");
+                        cvfs.getWorkingDir();
+                        onePath += (System.nanoTime() - start) / 1e3;
+                    }
+                    if (warmUp == 1) {
+                        OUT.printf("%-6d %18.1f %18.1f%n", depth, perLevel / ROUNDS, onePath / ROUNDS);
+                    }
+                }
+            }
+        } finally {
+            System.setOut(OUT);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.List;
+
+/**
+ * Compares recursive searches answered from the disk indexes with a scan of the whole tree.
+ * Run with {@code java hk.edu.polyu.comp.comp2021.cvfs.model.SearchBenchmark} after compiling {@code src} and {@code bench}.
+ */
+public class SearchBenchmark {
+    private static final int DIRECTORIES = 1000;
+    private static final int DOCUMENTS = 1000;
+    private static final int ROUNDS = 20;
+
+    /**
+     * Builds a disk with a million documents and times indexed and scanned searches.
+     *
+     * @param args Command-line arguments (not used).
+     */
+    public static void main(String[] args) {
+        VirtualDisk disk = new VirtualDisk(Integer.MAX_VALUE);
+        String[] types = {"txt", "java", "html", "css"};
+        for (int d = 0; d < DIRECTORIES; d++) {
+            disk.addFile(new Directory("d" + d));
+            disk.changeDirectory("d" + d);
+            for (int f = 0; f < DOCUMENTS; f++) {
+                disk.addFile(new Document("f" + (d * DOCUMENTS + f), types[f % 4], ""));
+            }
+            disk.changeDirectory("..");
+        }
+        long start = System.nanoTime();
+        disk.getIndex();
+        System.out.printf("index build: %.1f ms%n", (System.nanoTime() - start) / 1e6);
+
+        System.out.println("criterion          indexed ms   scan ms   matches");
+        run(disk, "name contains 12345", new SimpleCriterion("nm", "name", "contains", "\"12345\""));
+        run(disk, "name contains f9", new SimpleCriterion("nm", "name", "contains", "\"f9\""));
+        run(disk, "size > 100", new SimpleCriterion("sz", "size", ">", "100"));
+    }
+
+    private static void run(VirtualDisk disk, String label, Criterion criterion) {
+        int matches = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            List<ListedFile> found = disk.search(criterion, true);
+            matches = found == null ? -1 : found.size();
+        }
+        double indexed = (System.nanoTime() - start) / 1e6 / ROUNDS;
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            scan(disk.getRoot(), criterion);
+        }
+        double scanned = (System.nanoTime() - start) / 1e6 / ROUNDS;
+        System.out.printf("%-18s %10.2f %9.2f %9d%n", label, indexed, scanned, matches);
+    }
+
+    private static int scan(Directory directory, Criterion criterion) {
+        int matches = 0;
+        for (File file : directory.getFiles()) {
+            if (criterion.matches(file)) {
+                matches++;
+            }
+            if (file instanceof Directory) {
+                matches += scan((Directory) file, criterion);
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,100 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.Iterator;
+
+/**
+ * Compares a recursive search with a criterion the indexes cannot narrow, walked without the {@link SearchCache},
+ * with the first search filling the cache, a repeated search, and a search after one rename.
+ * Run with {@code java hk.edu.polyu.comp.comp2021.cvfs.model.SearchCacheBenchmark} after compiling {@code src}
+ * and {@code bench}.
+ */
+public class SearchCacheBenchmark {
+    private static final int DIRECTORIES = 1000;
+    private static final int DOCUMENTS = 1000;
+    private static final int ROUNDS = 10;
+
+    /**
+     * Builds a disk with a million documents and times the searches.
+     *
+     * @param args Command-line arguments (not used).
+     */
+    public static void main(String[] args) {
+        VirtualDisk disk = new VirtualDisk(Integer.MAX_VALUE);
+        String[] types = {"txt", "java", "html", "css"};
+        for (int d = 0; d < DIRECTORIES; d++) {
+            disk.addFile(new Directory("d" + d));
+            disk.changeDirectory("d" + d);
+            for (int f = 0; f < DOCUMENTS; f++) {
+                disk.addFile(new Document("f" + (d * DOCUMENTS + f), types[f % 4], ""));
+            }
+            disk.changeDirectory("..");
+        }
+        Criterion criterion = criterion();
+        if (disk.search(criterion, true) != null) {
+            throw new IllegalStateException("The criterion should not be answered from the indexes.");
+        }
+
+        System.out.println("search                    ms   matches");
+        for (int warmUp = 0; warmUp < 2; warmUp++) {
+            long start = System.nanoTime();
+            long matches = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                matches = disk.getCurrentDirectory().stream(true, criterion).count();
+            }
+            report(warmUp, "walk", (System.nanoTime() - start) / 1e6 / ROUNDS, matches);
+
+            double first = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                criterion = criterion(); // A new key, so the cache is cold
+                start = System.nanoTime();
+                matches = count(disk.walkSearch(criterion));
+                first += (System.nanoTime() - start) / 1e6;
+            }
+            report(warmUp, "first, filling cache", first / ROUNDS, matches);
+
+            start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                matches = count(disk.walkSearch(criterion));
+            }
+            report(warmUp, "repeated", (System.nanoTime() - start) / 1e6 / ROUNDS, matches);
+
+            double changed = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                disk.changeDirectory("d" + round);
+                String name = "f" + (round * DOCUMENTS);
+                disk.renameFile(warmUp == 0 ? name : name + "x", warmUp == 0 ? name + "x" : name);
+                disk.changeDirectory("..");
+                start = System.nanoTime();
+                matches = count(disk.walkSearch(criterion));
+                changed += (System.nanoTime() - start) / 1e6;
+            }
+            report(warmUp, "after one rename", changed / ROUNDS, matches);
+        }
+    }
+
+    /**
+     * Creates a criterion matching about 4% of the documents, those with "12" in the name that are not java
+     * documents. The negations make it opaque to the indexes.
+     */
+    private static Criterion criterion() {
+        Criterion notJava = new NegationCriterion("nj", new SimpleCriterion("jv", "type", "equals", "\"java\""));
+        Criterion twelve = new NegationCriterion("nt", new NegationCriterion("tw",
+                new SimpleCriterion("hn", "name", "contains", "\"12\"")));
+        return new BinaryCriterion("tj", twelve, "&&", notJava);
+    }
+
+    private static long count(Iterator<ListedFile> matches) {
+        long count = 0;
+        while (matches.hasNext()) {
+            matches.next();
+            count++;
+        }
+        return count;
+    }
+
+    private static void report(int warmUp, String label, double millis, long matches) {
+        if (warmUp == 1) {
+            System.out.printf("%-22s %7.2f %9d%n", label, millis, matches);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Measures a batch of 10,000 {@code newDoc} commands on a disk that already holds 100,000 documents, one command
+ * at a time against one transaction, with and without a {@link Journal}, and the rollback of the transaction.
+ * Run with {@code java hk.edu.polyu.comp.comp2021.cvfs.model.TransactionBenchmark [directory]}; the journal is
+ * written to the given directory (defaults to the temporary directory).
+ */
+public class TransactionBenchmark {
+    private static final int EXISTING = 100_000;
+    private static final int BATCH = 10_000;
+    private static final PrintStream OUT = System.out;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Optionally the directory to write the journal to.
+     * @throws Exception If the journal cannot be written or deleted.
+     */
+    public static void main(String[] args) throws Exception {
+        Path dir = args.length > 0 ? Files.createTempDirectory(Path.of(args[0]), "cvfs-transaction")
+                : Files.createTempDirectory("cvfs-transaction");
+        Path image = dir.resolve("disk.img");
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // The commands report every step
+        try {
+            OUT.printf("%-22s %12s %12s %12s%n", "method", "batch (ms)", "undo (ms)", "rollback (ms)");
+            for (int warmUp = 0; warmUp < 2; warmUp++) {
+                for (boolean journaled : new boolean[]{false, true}) {
+                    for (boolean inTransaction : new boolean[]{false, true}) {
+                        CVFS cvfs = new CVFS();
+                        cvfs.setInteractive(false);
+                        cvfs.createDisk(Integer.MAX_VALUE);
+                        cvfs.setUndoLimit(BATCH);
+                        for (int i = 0; i < EXISTING; i++) {
+                            cvfs.createDocument("old" + i, "txt", "existing document " + i);
+                        }
+                        if (journaled) {
+                            cvfs.startJournal(image.toString());
+                        }
+                        double batch = run(cvfs, inTransaction);
+                        long start = System.nanoTime();
+                        if (inTransaction) {
+                            cvfs.undo();
+                        } else {
+                            for (int i = 0; i < BATCH; i++) {
+                                cvfs.undo();
+                            }
+                        }
+                        double undo = (System.nanoTime() - start) / 1e6;
+                        String rollback = "-";
+                        if (inTransaction) {
+                            cvfs.redo();
+                            cvfs.undo();
+                            cvfs.beginTransaction(false);
+                            for (int i = 0; i < BATCH; i++) {
+                                cvfs.createDocument("new" + i, "txt", "batch document " + i);
+                            }
+                            start = System.nanoTime();
+                            cvfs.rollbackTransaction();
+                            rollback = String.format("%.0f", (System.nanoTime() - start) / 1e6);
+                        }
+                        cvfs.createDisk(1); // Closes the journal
+                        if (warmUp == 1) {
+                            OUT.printf("%-22s %12.0f %12.0f %12s%n", (inTransaction ? "transaction" : "per command")
+                                    + (journaled ? ", journal" : ""), batch, undo, rollback);
+                        }
+                    }
+                }
+            }
+        } finally {
+            System.setOut(OUT);
+            Files.deleteIfExists(Journal.pathOf(image));
+            Files.deleteIfExists(image);
+            Files.delete(dir);
+        }
+    }
+
+    private static double run(CVFS cvfs, boolean inTransaction) {
+        long start = System.nanoTime();
+        if (inTransaction) {
+            cvfs.beginTransaction(false);
+        }
+        for (int i = 0; i < BATCH; i++) {
+            cvfs.createDocument("new" + i, "txt", "batch document " + i);
+        }
+        if (inTransaction) {
+            cvfs.commitTransaction();
+        }
+        return (System.nanoTime() - start) / 1e6;
+    }
+}
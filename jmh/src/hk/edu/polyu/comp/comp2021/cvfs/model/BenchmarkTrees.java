@@ -0,0 +1,87 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Builds the directory trees and criteria shared by the JMH benchmarks.
+ * <p>
+ * A tree has {@code depth} levels of directories, each with {@code width} subdirectories, and documents
+ * in the directories of the last level; the width is the smallest one that holds {@code entries} documents.
+ * Every fourth document is a txt file, and document sizes cycle through 40, 42, 44 and 46 bytes.
+ */
+public final class BenchmarkTrees {
+    private static final String[] TYPES = {"txt", "java", "html", "css"};
+    private static final String[] CONTENTS = {"", "x", "xx", "xxx"};
+    private static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+    private BenchmarkTrees() {
+    }
+
+    /**
+     * Silences the messages every command prints, which would otherwise dominate the measurements.
+     * The benchmarks run in forked JVMs, so standard output is not restored.
+     */
+    public static void silence() {
+        System.setOut(DISCARD);
+    }
+
+    /**
+     * Computes the width of a tree with the given number of documents and depth.
+     *
+     * @param entries The number of documents.
+     * @param depth   The number of directory levels above the documents, 0 to put them all in the root.
+     * @return The number of subdirectories of each directory.
+     */
+    public static int widthOf(int entries, int depth) {
+        if (depth == 0) {
+            return entries;
+        }
+        int width = (int) Math.ceil(Math.pow(entries, 1.0 / (depth + 1)));
+        while (Math.pow(width, depth + 1) < entries) {
+            width++;
+        }
+        return width;
+    }
+
+    /**
+     * Creates a disk holding a tree of documents, with the root as the working directory,
+     * and defines the criteria used by the search benchmarks:
+     * {@code tx} (type equals "txt"), {@code nm} (name contains "f12"), {@code sz} (size &gt;= 44),
+     * {@code bn} (tx &amp;&amp; sz), {@code or} (nm || tx) and {@code ng} (!tx, which cannot use the indexes).
+     *
+     * @param entries The number of documents.
+     * @param depth   The number of directory levels above the documents.
+     * @return The file system with the tree.
+     */
+    public static CVFS build(int entries, int depth) {
+        CVFS cvfs = new CVFS();
+        cvfs.setInteractive(false);
+        cvfs.createDisk(Integer.MAX_VALUE);
+        int[] created = {0};
+        fill(cvfs, entries, depth, widthOf(entries, depth), created);
+        cvfs.createSimpleCri("tx", "type", "equals", "\"txt\"");
+        cvfs.createSimpleCri("nm", "name", "contains", "\"f12\"");
+        cvfs.createSimpleCri("sz", "size", ">=", "44");
+        cvfs.createBinaryCri("bn", "tx", "&&", "sz");
+        cvfs.createBinaryCri("or", "nm", "||", "tx");
+        cvfs.createNegationCri("ng", "tx");
+        return cvfs;
+    }
+
+    private static void fill(CVFS cvfs, int entries, int depth, int width, int[] created) {
+        if (depth == 0) {
+            for (int i = 0; i < width && created[0] < entries; i++, created[0]++) {
+                int n = created[0];
+                cvfs.createDocument("f" + n, TYPES[n % 4], CONTENTS[n / 4 % 4]);
+            }
+            return;
+        }
+        for (int i = 0; i < width && created[0] < entries; i++) {
+            cvfs.createDirectory("d" + i);
+            cvfs.changeDir("d" + i);
+            fill(cvfs, entries, depth - 1, width, created);
+            cvfs.changeDir("..");
+        }
+    }
+}
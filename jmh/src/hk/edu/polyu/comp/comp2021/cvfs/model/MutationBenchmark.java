@@ -0,0 +1,69 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the commands that change the disk, three directory levels below the root of a populated tree,
+ * so that the cost of keeping the ancestors, indexes and undo history up to date is included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MutationBenchmark {
+    @Param({"1000", "100000"})
+    private int entries;
+
+    private CVFS cvfs;
+    private long next;
+
+    /**
+     * Builds a fresh tree for every iteration, so the working directory does not grow without bound,
+     * and searches it once so that the indexes are maintained by the measured commands.
+     */
+    @Setup(Level.Iteration)
+    public void setUp() {
+        BenchmarkTrees.silence();
+        cvfs = BenchmarkTrees.build(entries, 3);
+        cvfs.query("tx", true).count();
+        for (int i = 0; i < 3; i++) {
+            cvfs.changeDir("d0");
+        }
+        cvfs.createDocument("undone", "txt", "content");
+    }
+
+    @Benchmark
+    public void createDocument() {
+        cvfs.createDocument(nextName(), "txt", "content");
+    }
+
+    @Benchmark
+    public void createDirectory() {
+        cvfs.createDirectory(nextName());
+    }
+
+    @Benchmark
+    public void undoRedo() {
+        cvfs.undo();
+        cvfs.redo();
+    }
+
+    private String nextName() {
+        return "n" + Long.toString(next++, 36);
+    }
+}
@@ -0,0 +1,85 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures saving and loading disk images of 10^3 to 10^6 documents, three levels deep, with all criteria.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PersistenceBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    private int entries;
+
+    private CVFS cvfs;
+    private Path directory;
+    private String saved;
+    private String scratch;
+
+    /**
+     * Builds the tree and saves it once, so the load benchmarks read an existing image.
+     *
+     * @throws IOException If the temporary directory cannot be created.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkTrees.silence();
+        cvfs = BenchmarkTrees.build(entries, 3);
+        directory = Files.createTempDirectory("cvfs-jmh");
+        saved = directory.resolve("disk.datc").toString();
+        scratch = directory.resolve("scratch.datc").toString();
+        cvfs.saveDisk(saved, true);
+    }
+
+    /**
+     * Deletes the images.
+     *
+     * @throws IOException If a file cannot be deleted.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(Path.of(saved));
+        Files.deleteIfExists(Path.of(scratch));
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public void saveDisk() {
+        cvfs.saveDisk(scratch, true);
+    }
+
+    @Benchmark
+    public VirtualDisk loadDisk() {
+        CVFS loaded = new CVFS();
+        loaded.loadDisk(saved);
+        return loaded.getDisk();
+    }
+
+    @Benchmark
+    public VirtualDisk mappedLoadDisk() {
+        CVFS loaded = new CVFS();
+        loaded.loadDisk(saved, true);
+        return loaded.getDisk();
+    }
+}
@@ -0,0 +1,90 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures lookups and searches on trees of 10^3 to 10^6 documents, flat and three levels deep.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TreeBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    private int entries;
+
+    @Param({"0", "3"})
+    private int depth;
+
+    private CVFS cvfs;
+    private Directory root;
+    private String[] rootNames;
+    private int next;
+
+    /**
+     * Builds the tree once per trial.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkTrees.silence();
+        cvfs = BenchmarkTrees.build(entries, depth);
+        root = cvfs.getDisk().getRoot();
+        rootNames = root.getFiles().stream().map(File::getName).toArray(String[]::new);
+    }
+
+    @Benchmark
+    public File findFile() {
+        next = next + 1 == rootNames.length ? 0 : next + 1;
+        return root.findFile(rootNames[next]);
+    }
+
+    @Benchmark
+    public int remainedSize() {
+        return cvfs.getDisk().getRemainedSize();
+    }
+
+    @Benchmark
+    public long searchType() {
+        return cvfs.query("tx", false).count();
+    }
+
+    @Benchmark
+    public long rSearchType() {
+        return cvfs.query("tx", true).count();
+    }
+
+    @Benchmark
+    public long rSearchName() {
+        return cvfs.query("nm", true).count();
+    }
+
+    @Benchmark
+    public long rSearchAnd() {
+        return cvfs.query("bn", true).count();
+    }
+
+    @Benchmark
+    public long rSearchOr() {
+        return cvfs.query("or", true).count();
+    }
+
+    @Benchmark
+    public long rSearchScan() {
+        return cvfs.query("ng", true).count();
+    }
+}
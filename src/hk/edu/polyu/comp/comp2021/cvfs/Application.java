@@ -3,6 +3,13 @@ package hk.edu.polyu.comp.comp2021.cvfs;
 import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS;
 import hk.edu.polyu.comp.comp2021.cvfs.model.StateChangeCommandFailed;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 /**
@@ -10,14 +17,39 @@ import java.util.Scanner;
  * Provides a command-line interface for interacting with the CVFS system.
  */
 public class Application {
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+    static final int EXIT_OK = 0; // Exit status of a batch run whose commands all succeeded
+    static final int EXIT_ERRORS = 1; // A command failed or the commands could not be read
+    static final int EXIT_USAGE = 2; // The arguments are invalid
+
+    /**
+     * The result of executing one command line.
+     */
+    enum Outcome { OK, ERROR, QUIT }
+
     /**
      * The main method that starts the application.
-     * Initializes a CVFS instance and sets up a Scanner for user input.
+     * Without arguments it starts the interactive command-line interface.
+     * With {@code --script <file>} or {@code --batch} it runs commands from a file or from standard input
+     * without prompts, see {@link #runBatch(String[])}. With {@code --server <socket>} it serves local clients,
+     * see {@link #runServer(String[])}.
      *
-     * @param args Command-line arguments passed to the program (not used).
+     * @param args Command-line arguments passed to the program.
      */
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--server")) {
+            runServer(args);
+            return;
+        }
+        if (args.length > 0) {
+            int status = runBatch(args);
+            if (status != 0) {
+                System.exit(status);
+            }
+            return;
+        }
         CVFS cvfs = new CVFS();
+        cvfs.getStats().register();
         Scanner scanner = new Scanner(System.in);
 
         System.out.println("\n#####################################################################");
@@ -28,194 +60,538 @@ public class Application {
         while (true) {
             System.out.print(cvfs.getWorkingDir()+"> ");
             String command = scanner.nextLine().trim();
-            String[] parts = command.split("\\s+", 2);
-            String cmd = parts[0];
-            String params = parts.length > 1 ? parts[1] : "";
+            if (execute(cvfs, command, System.out) == Outcome.QUIT) {
+                return;
+            }
+        }
+    }
 
-            try {
-                switch (cmd) {
-                    //REQ1
-                    case "newDisk":
-                        cvfs.createDisk(Integer.parseInt(params));
-                        break;
+    /**
+     * Runs commands non-interactively, one per line, without prompts.
+     * All output goes through a large buffer that is flushed at the end, and a summary with the number of
+     * commands, errors and the elapsed time is printed to standard error.
+     * <p>
+     * Options: {@code --script <file>} reads the commands from a file, {@code --batch} reads them from standard input,
+     * {@code --fail-fast} stops at the first failing command (the default is to continue).
+     * Either way, the exit status tells whether every command succeeded.
+     *
+     * @param args Command-line arguments passed to the program.
+     * @return The exit status: {@value #EXIT_OK} if every command succeeded, {@value #EXIT_ERRORS} if a command
+     * failed or the commands could not be read, {@value #EXIT_USAGE} if the arguments are invalid.
+     */
+    static int runBatch(String[] args) {
+        String script = null;
+        boolean fromStdin = false;
+        boolean failFast = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--script":
+                    if (i + 1 == args.length) {
+                        printUsage();
+                        return EXIT_USAGE;
+                    }
+                    script = args[++i];
+                    break;
+                case "--batch":
+                    fromStdin = true;
+                    break;
+                case "--fail-fast":
+                    failFast = true;
+                    break;
+                case "--continue-on-error":
+                    failFast = false;
+                    break;
+                default:
+                    printUsage();
+                    return EXIT_USAGE;
+            }
+        }
+        if ((script == null) == !fromStdin) {
+            printUsage();
+            return EXIT_USAGE;
+        }
 
-                    //REQ2
-                    case "newDoc":
-                        String[] docParams = params.split("\\s+", 3);
-                        if (docParams.length != 3) {
-                            throw new IllegalArgumentException("Usage: newDoc <name> <type> <content>");
-                        }
-                        cvfs.createDocument(docParams[0], docParams[1], docParams[2]);
+        CVFS cvfs = new CVFS();
+        cvfs.setInteractive(false);
+        cvfs.getStats().register();
+        PrintStream console = System.out;
+        PrintStream out = new PrintStream(new BufferedOutputStream(console, OUTPUT_BUFFER_SIZE), false);
+        System.setOut(out);
+        long start = System.nanoTime();
+        long lines = 0;
+        long commands = 0;
+        long errors = 0;
+        try (BufferedReader reader = script != null
+                ? Files.newBufferedReader(Paths.get(script))
+                : new BufferedReader(new InputStreamReader(System.in))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                commands++;
+                Outcome outcome = execute(cvfs, line, System.out);
+                if (outcome == Outcome.QUIT) {
+                    break;
+                }
+                if (outcome == Outcome.ERROR) {
+                    errors++;
+                    if (failFast) {
+                        System.out.println("Stopping at line " + lines + ": " + line);
                         break;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading commands: " + e.getMessage());
+            errors++;
+        } finally {
+            out.flush();
+            System.setOut(console);
+        }
+        System.err.printf("Commands: %d, Errors: %d, Elapsed: %.3f s%n", commands, errors, (System.nanoTime() - start) / 1e9);
+        return errors > 0 ? EXIT_ERRORS : EXIT_OK;
+    }
 
-                    //REQ3
-                    case "newDir":
-                        if (params.isEmpty()) {
-                            throw new IllegalArgumentException("Usage: newDir <name>");
-                        }
-                        cvfs.createDirectory(params);
+    /**
+     * Serves the command language to local clients until the process is stopped, see {@link Server}.
+     * <p>
+     * Options: {@code --server <socket>} is the path of a Unix domain socket, or a port number to listen on the
+     * loopback interface; {@code --load <file>} serves a saved disk and {@code --disk <size>} a new empty disk
+     * (the default is a disk of {@link Integer#MAX_VALUE} bytes); {@code --max-clients <n>} limits the number of
+     * connections served at the same time (default {@value Server#DEFAULT_MAX_CLIENTS}).
+     *
+     * @param args Command-line arguments passed to the program.
+     */
+    private static void runServer(String[] args) {
+        if (args.length % 2 != 0) {
+            printUsage();
+            return;
+        }
+        String address = args[1];
+        String image = null;
+        int diskSize = Integer.MAX_VALUE;
+        int maxClients = Server.DEFAULT_MAX_CLIENTS;
+        try {
+            for (int i = 2; i < args.length; i += 2) {
+                switch (args[i]) {
+                    case "--load":
+                        image = args[i + 1];
                         break;
-
-                    //REQ4
-                    case "delete":
-                        if (params.isEmpty()) {
-                            throw new IllegalArgumentException("Usage: delete <name>");
-                        }
-                        cvfs.delete(params);
+                    case "--disk":
+                        diskSize = Integer.parseInt(args[i + 1]);
                         break;
-
-                    //REQ5
-                    case "rename":
-                        String[] renameParams = params.split("\\s+");
-                        if (renameParams.length != 2) {
-                            throw new IllegalArgumentException("Usage: rename <oldName> <newName>");
-                        }
-                        cvfs.rename(renameParams[0], renameParams[1]);
+                    case "--max-clients":
+                        maxClients = Integer.parseInt(args[i + 1]);
                         break;
+                    default:
+                        printUsage();
+                        return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            printUsage();
+            return;
+        }
 
-                    //REQ6
-                    case "changeDir":
-                        if (params.isEmpty()) {
-                            throw new IllegalArgumentException("Usage: changeDir <dirName>");
-                        }
-                        cvfs.changeDir(params);
-                        break;
+        CVFS cvfs = new CVFS();
+        cvfs.setInteractive(false);
+        if (image != null) {
+            try {
+                cvfs.loadDisk(image);
+            } catch (StateChangeCommandFailed e) {
+                System.err.println(e.getMessage());
+                return;
+            }
+        }
+        if (cvfs.getDisk() == null) {
+            cvfs.createDisk(diskSize);
+        }
+        cvfs.getStats().register();
+        try (Server server = new Server(cvfs, address, maxClients)) {
+            System.out.println("Serving CVFS on " + server.getAddress());
+            server.serve();
+        } catch (IOException e) {
+            System.err.println("Error running server: " + e.getMessage());
+        }
+    }
 
-                    //REQ7
-                    case "list":
-                        cvfs.list();
-                        break;
+    private static void printUsage() {
+        System.err.println("Usage: Application [--script <file> | --batch] [--fail-fast | --continue-on-error]");
+        System.err.println("       Application --server <socket|port> [--load <file> | --disk <size>] [--max-clients <n>]");
+    }
 
-                    //REQ8
-                    case "rList":
-                        cvfs.recursiveList();
-                        break;
+    /**
+     * Parses and executes one command line, printing errors the same way in interactive, batch and server mode.
+     *
+     * @param cvfs    The CVFS to run the command on.
+     * @param command The trimmed command line.
+     * @param out     The stream for messages of the command line interface; the CVFS prints to its own output.
+     * @return Whether the command succeeded, failed or asked to quit.
+     */
+    static Outcome execute(CVFS cvfs, String command, PrintStream out) {
+        String[] parts = command.split("\\s+", 2);
+        String cmd = parts[0];
+        String params = parts.length > 1 ? parts[1] : "";
+        if (cmd.isEmpty()) {
+            return dispatch(cvfs, cmd, params, out);
+        }
+        long start = cvfs.getStats().start();
+        Outcome outcome = dispatch(cvfs, cmd, params, out);
+        cvfs.getStats().stopCommand(cmd, start);
+        return outcome;
+    }
 
-                    //REQ9
-                    case "newSimpleCri":
-                        String[] criParams = params.split("\\s+", 4);
-                        if (criParams.length != 4) {
-                            throw new IllegalArgumentException("Usage: newSimpleCri <criName> <attrName> <op> <val>");
-                        }
-                        cvfs.createSimpleCri(criParams[0],criParams[1],criParams[2],criParams[3]);
-                        break;
-                    //REQ10 is Built-in inside CVFS
-                    //REQ11
-                    case "newNegation":
-                        String[] negateParams = params.split("\\s+", 2);
-                        if (negateParams.length != 2) {
-                            throw new IllegalArgumentException("Usage: newNegation <criName1> <criName2>");
-                        }
-                        cvfs.createNegationCri(negateParams[0],negateParams[1]);
-                        break;
-                    case "newBinaryCri":
-                        String[] binaryParams = params.split("\\s+", 4);
-                        if (binaryParams.length != 4) {
-                            throw new IllegalArgumentException("Usage: newBinary <criName1> <criName2> <logOp> <criName3>");
-                        }
-                        cvfs.createBinaryCri(binaryParams[0],binaryParams[1],binaryParams[2],binaryParams[3]);
-                        break;
-                    //REQ12
-                    case "printAllCriteria":
-                        cvfs.printAllCriterion();
-                        break;
-                    //REQ13
-                    case "search":
-                        if (params.isEmpty()) {
-                            throw new IllegalArgumentException("Usage: search <criName>");
-                        }
-                        cvfs.list(params);
-                        break;
-                    //REQ14
-                    case "rSearch":
-                        if (params.isEmpty()) {
-                            throw new IllegalArgumentException("Usage: rSearch <criName>");
-                        }
-                        cvfs.recursiveList(params);
-                        break;
-                    //REQ15
-                    case"save": //for convenience end with.dat
-                        if (params.isEmpty()) {
-                            throw new IllegalArgumentException("Usage: save <path>");
-                        }
-                        cvfs.saveDisk(params, false);
-                        break;
-                    //REQ16
-                    case"load":
-                        if (params.isEmpty()) {
-                            throw new IllegalArgumentException("Usage: load <path>");
-                        }
-                        cvfs.loadDisk(params);
-                        break;
-                    //BON1 (loading will identify if there is any Criteria saved)
-                    case "cSave": //for convenience end with.datc
-                        if (params.isEmpty()){
-                            throw new IllegalArgumentException("Usage: cSave <path>");
-                        }
-                        cvfs.saveDisk(params,true);
-                        break;
-                    //BON2
-                    case "undo":
-                        cvfs.undo();
-                        break;
-                    case "redo":
-                        cvfs.redo();
-                        break;
-                    //REQ17
-                    case "quit":
-                        System.out.println("Exiting CVFS. Goodbye!");
-                        return;
+    /**
+     * Executes one parsed command.
+     *
+     * @param cvfs   The CVFS to run the command on.
+     * @param cmd    The command name.
+     * @param params The rest of the command line.
+     * @param out    The stream for messages of the command line interface.
+     * @return Whether the command succeeded, failed or asked to quit.
+     */
+    private static Outcome dispatch(CVFS cvfs, String cmd, String params, PrintStream out) {
+        try {
+            switch (cmd) {
+                //REQ1
+                case "newDisk":
+                    cvfs.createDisk(Integer.parseInt(params));
+                    break;
+
+                //REQ2
+                case "newDoc":
+                    String[] docParams = params.split("\\s+", 3);
+                    if (docParams.length != 3) {
+                        throw new IllegalArgumentException("Usage: newDoc <name> <type> <content>");
+                    }
+                    cvfs.createDocument(docParams[0], docParams[1], docParams[2]);
+                    break;
+
+                //REQ3
+                case "newDir":
+                    if (params.isEmpty()) {
+                        throw new IllegalArgumentException("Usage: newDir <name>");
+                    }
+                    cvfs.createDirectory(params);
+                    break;
+
+                //REQ4
+                case "delete":
+                    if (params.isEmpty()) {
+                        throw new IllegalArgumentException("Usage: delete <name>");
+                    }
+                    cvfs.delete(params);
+                    break;
+
+                //REQ5
+                case "rename":
+                    String[] renameParams = params.split("\\s+");
+                    if (renameParams.length != 2) {
+                        throw new IllegalArgumentException("Usage: rename <oldName> <newName>");
+                    }
+                    cvfs.rename(renameParams[0], renameParams[1]);
+                    break;
+
+                //REQ6
+                case "changeDir":
+                    if (params.isEmpty()) {
+                        throw new IllegalArgumentException("Usage: changeDir <dirName>");
+                    }
+                    cvfs.changeDir(params);
+                    break;
+
+                //REQ7
+                case "list":
+                    cvfs.list();
+                    break;
+
+                //REQ8
+                case "rList":
+                    cvfs.recursiveList();
+                    break;
+
+                //REQ9
+                case "newSimpleCri":
+                    String[] criParams = params.split("\\s+", 4);
+                    if (criParams.length != 4) {
+                        throw new IllegalArgumentException("Usage: newSimpleCri <criName> <attrName> <op> <val>");
+                    }
+                    cvfs.createSimpleCri(criParams[0],criParams[1],criParams[2],criParams[3]);
+                    break;
+                //REQ10 is Built-in inside CVFS
+                //REQ11
+                case "newNegation":
+                    String[] negateParams = params.split("\\s+", 2);
+                    if (negateParams.length != 2) {
+                        throw new IllegalArgumentException("Usage: newNegation <criName1> <criName2>");
+                    }
+                    cvfs.createNegationCri(negateParams[0],negateParams[1]);
+                    break;
+                case "newBinaryCri":
+                    String[] binaryParams = params.split("\\s+", 4);
+                    if (binaryParams.length != 4) {
+                        throw new IllegalArgumentException("Usage: newBinary <criName1> <criName2> <logOp> <criName3>");
+                    }
+                    cvfs.createBinaryCri(binaryParams[0],binaryParams[1],binaryParams[2],binaryParams[3]);
+                    break;
+                //REQ12
+                case "printAllCriteria":
+                    cvfs.printAllCriterion();
+                    break;
+                //REQ13
+                case "search":
+                    if (params.isEmpty()) {
+                        throw new IllegalArgumentException("Usage: search <criName> [--offset <n>] [--limit <n>]");
+                    }
+                    search(cvfs, params, false);
+                    break;
+                //REQ14
+                case "rSearch":
+                    if (params.isEmpty()) {
+                        throw new IllegalArgumentException("Usage: rSearch <criName> [--offset <n>] [--limit <n>]");
+                    }
+                    search(cvfs, params, true);
+                    break;
+                //REQ15
+                case"save": //for convenience end with.dat
+                    if (params.isEmpty()) {
+                        throw new IllegalArgumentException("Usage: save <path>");
+                    }
+                    cvfs.saveDisk(params, false);
+                    break;
+                //REQ16
+                case"load":
+                    if (params.isEmpty()) {
+                        throw new IllegalArgumentException("Usage: load <path>");
+                    }
+                    cvfs.loadDisk(params);
+                    break;
+                case "mLoad":
+                    if (params.isEmpty()) {
+                        throw new IllegalArgumentException("Usage: mLoad <path>");
+                    }
+                    cvfs.loadDisk(params, true);
+                    break;
+                //BON1 (loading will identify if there is any Criteria saved)
+                case "cSave": //for convenience end with.datc
+                    if (params.isEmpty()){
+                        throw new IllegalArgumentException("Usage: cSave <path>");
+                    }
+                    cvfs.saveDisk(params,true);
+                    break;
+                case "journal":
+                    if (params.isEmpty()) {
+                        throw new IllegalArgumentException("Usage: journal <path>");
+                    }
+                    cvfs.startJournal(params);
+                    break;
+                case "checkpoint":
+                    cvfs.checkpoint();
+                    break;
+                case "import":
+                    String[] importParams = params.split("\\s+");
+                    if (params.isEmpty() || importParams.length > 2) {
+                        throw new IllegalArgumentException("Usage: import <hostPath> [targetDir]");
+                    }
+                    cvfs.importTree(importParams[0], importParams.length > 1 ? importParams[1] : null);
+                    break;
+                case "export":
+                    String[] exportParams = params.split("\\s+");
+                    if (exportParams.length != 2) {
+                        throw new IllegalArgumentException("Usage: export <virtualDir> <hostPath>");
+                    }
+                    cvfs.exportTree(exportParams[0], exportParams[1]);
+                    break;
+                //BON2
+                case "undo":
+                    cvfs.undo();
+                    break;
+                case "redo":
+                    cvfs.redo();
+                    break;
+                case "begin":
+                    if (!params.isEmpty() && !params.equals("--fail-fast")) {
+                        throw new IllegalArgumentException("Usage: begin [--fail-fast]");
+                    }
+                    cvfs.beginTransaction(!params.isEmpty());
+                    break;
+                case "commit":
+                    cvfs.commitTransaction();
+                    break;
+                case "rollback":
+                    cvfs.rollbackTransaction();
+                    break;
+                case "snapshot":
+                    if (params.isEmpty()) {
+                        throw new IllegalArgumentException("Usage: snapshot <name>");
+                    }
+                    cvfs.createSnapshot(params);
+                    break;
+                case "restore":
+                    if (params.isEmpty()) {
+                        throw new IllegalArgumentException("Usage: restore <name>");
+                    }
+                    cvfs.restoreSnapshot(params);
+                    break;
+                case "snapshots":
+                    cvfs.printSnapshots();
+                    break;
+                case "undoLimit":
+                    if (params.isEmpty()) {
+                        throw new IllegalArgumentException("Usage: undoLimit <steps>");
+                    }
+                    cvfs.setUndoLimit(Integer.parseInt(params));
+                    out.println("Undo limit set to " + cvfs.getUndoLimit() + ".");
+                    break;
+                //REQ17
+                case "quit":
+                    out.println("Exiting CVFS. Goodbye!");
+                    return Outcome.QUIT;
 //////////////////////////////////////////////////////////////////////////
-                    case "rSpace":
-                        cvfs.showRemainedSpace();
-                        break;
-                    case "help":
-                        printHelp();
-                        break;
+                case "rSpace":
+                    cvfs.showRemainedSpace();
+                    break;
+                case "help":
+                    printHelp(out);
+                    break;
+                case "stats":
+                    stats(cvfs, params, out);
+                    break;
 
 
-                    default:
-                        System.out.println("Unknown command. Type 'help' to see available commands.");
-                }
+                default:
+                    out.println("Unknown command. Type 'help' to see available commands.");
+                    return Outcome.ERROR;
+            }
+            return Outcome.OK;
+        } catch (NumberFormatException e) {
+            out.println("Error: Invalid number format. Please enter a valid number.");
+        } catch (IllegalArgumentException e) {
+            out.println("Error: " + e.getMessage());
+        } catch (StateChangeCommandFailed e){
+            out.println("Error: "+ e.getMessage());
+            cvfs.handleStateChangeCommandFailed();
+        } catch (Exception e) {
+            out.println("An unexpected error occurred: " + e.getMessage());
+        }
+        return Outcome.ERROR;
+    }
+
+    /**
+     * Prints the statistics, or switches them on, off or back to zero.
+     *
+     * @param cvfs   The file system whose statistics are used.
+     * @param params Empty to print the report, or one of {@code on}, {@code off} and {@code reset}.
+     * @param out    The stream to print to.
+     * @throws IllegalArgumentException If the parameter is not recognized.
+     */
+    private static void stats(CVFS cvfs, String params, PrintStream out) {
+        switch (params) {
+            case "":
+                out.println(cvfs.getStats().report());
+                break;
+            case "on":
+            case "off":
+                cvfs.getStats().setEnabled(params.equals("on"));
+                out.println("Statistics are " + params + ".");
+                break;
+            case "reset":
+                cvfs.getStats().reset();
+                out.println("Statistics were reset.");
+                break;
+            default:
+                throw new IllegalArgumentException("Usage: stats [on|off|reset]");
+        }
+    }
+
+    /**
+     * Runs a search with optional paging options after the criterion name.
+     *
+     * @param cvfs      The file system to search.
+     * @param params    The criterion name, optionally followed by {@code --offset <n>} and {@code --limit <n>}.
+     * @param recursive Whether to search subdirectories too.
+     * @throws IllegalArgumentException If an option is unknown or its value is not a non-negative number.
+     */
+    private static void search(CVFS cvfs, String params, boolean recursive) {
+        String[] words = params.split("\\s+");
+        if (words.length == 1) {
+            if (recursive) {
+                cvfs.recursiveList(words[0]);
+            } else {
+                cvfs.list(words[0]);
+            }
+            return;
+        }
+        long offset = 0;
+        long limit = Long.MAX_VALUE;
+        for (int i = 1; i < words.length; i += 2) {
+            if (i + 1 == words.length) {
+                throw new IllegalArgumentException("Missing value for " + words[i] + ".");
+            }
+            long value;
+            try {
+                value = Long.parseLong(words[i + 1]);
             } catch (NumberFormatException e) {
-                System.out.println("Error: Invalid number format. Please enter a valid number.");
-            } catch (IllegalArgumentException e) {
-                System.out.println("Error: " + e.getMessage());
-            } catch (StateChangeCommandFailed e){
-                System.out.println("Error: "+ e.getMessage());
-                cvfs.handleStateChangeCommandFailed();
-            } catch (Exception e) {
-                System.out.println("An unexpected error occurred: " + e.getMessage());
+                throw new IllegalArgumentException("Value of " + words[i] + " must be a number.");
+            }
+            switch (words[i]) {
+                case "--offset":
+                    offset = value;
+                    break;
+                case "--limit":
+                    limit = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown search option: " + words[i]);
             }
         }
+        cvfs.list(words[0], recursive, offset, limit);
     }
 
-    private static void printHelp() {
-        System.out.println("\n#####################################################################");
-        System.out.println("Available Commands:");
-        System.out.println("  newDisk <size>                  - Create a new virtual disk with the specified size.");
-        System.out.println("  newDoc <name> <type> <content>  - Create a new document in the current directory.");
-        System.out.println("  newDir <name>                   - Create a new directory in the current directory.");
-        System.out.println("  delete <name>                   - Delete a file or directory by name.");
-        System.out.println("  rename <oldName> <newName>      - Rename an existing file or directory.");
-        System.out.println("  changeDir <dirName>             - Change the working directory to the specified directory.");
-        System.out.println("  list                            - List all files and directories in the current directory.");
-        System.out.println("  rList                           - Recursively list all files and directories.");
-        System.out.println("  rSpace                          - Show the remaining space in the virtual disk.");
-        System.out.println("  newSimpleCri <criName> <attrName> <op> <val> - Create a simple search criterion.");
-        System.out.println("  newNegation <criName1> <criName2> - Create a negation criterion.");
-        System.out.println("  newBinaryCri <criName1> <criName2> <logicOp> - Create a binary (AND/OR) criterion.");
-        System.out.println("  printAllCriteria                - Print all defined criteria.");
-        System.out.println("  search <criName>                - Search for files in the current directory based on a criterion.");
-        System.out.println("  rSearch <criName>               - Recursively search for files based on a criterion.");
-        System.out.println("  save <path>                     - Save the virtual disk to a file (excluding criteria). End with '.dat' for convenience.");
-        System.out.println("  cSave <path>                    - Save the virtual disk and all criteria to a file. End with '.datc' for convenience.");
-        System.out.println("  load <path>                     - Load the virtual disk from a file (identifies criteria automatically).");
-        System.out.println("  undo                            - Undo the last operation.");
-        System.out.println("  redo                            - Redo the last undone operation.");
-        System.out.println("  quit                            - Exit the application.");
-        System.out.println("  help                            - Display this help message.");
-        System.out.println("#####################################################################");
+    private static void printHelp(PrintStream out) {
+        out.println("\n#####################################################################");
+        out.println("Available Commands:");
+        out.println("  newDisk <size>                  - Create a new virtual disk with the specified size.");
+        out.println("  newDoc <name> <type> <content>  - Create a new document in the current directory.");
+        out.println("  newDir <name>                   - Create a new directory in the current directory.");
+        out.println("  delete <name>                   - Delete a file or directory by name.");
+        out.println("  rename <oldName> <newName>      - Rename an existing file or directory.");
+        out.println("  changeDir <dirName>             - Change the working directory to the specified directory.");
+        out.println("  Names may be paths: a/b/doc, ../c, or /a/b from the root, e.g. changeDir /a/b, delete a/doc.");
+        out.println("  list                            - List all files and directories in the current directory.");
+        out.println("  rList                           - Recursively list all files and directories.");
+        out.println("  rSpace                          - Show the remaining space in the virtual disk.");
+        out.println("  newSimpleCri <criName> <attrName> <op> <val> - Create a simple search criterion.");
+        out.println("  newNegation <criName1> <criName2> - Create a negation criterion.");
+        out.println("  newBinaryCri <criName1> <criName2> <logicOp> - Create a binary (AND/OR) criterion.");
+        out.println("  printAllCriteria                - Print all defined criteria.");
+        out.println("  search <criName>                - Search for files in the current directory based on a criterion.");
+        out.println("  rSearch <criName>               - Recursively search for files based on a criterion.");
+        out.println("      [--offset <n>] [--limit <n>]  - Skip the first n matches / stop after n matches.");
+        out.println("  save <path>                     - Save the virtual disk to a file (excluding criteria). End with '.dat' for convenience.");
+        out.println("  cSave <path>                    - Save the virtual disk and all criteria to a file. End with '.datc' for convenience.");
+        out.println("  load <path>                     - Load the virtual disk from a file (identifies criteria and replays a journal automatically).");
+        out.println("  mLoad <path>                    - Load the virtual disk memory-mapped, reading document content on demand.");
+        out.println("  journal <path>                  - Save the disk and criteria to a file and journal every later change to <path>.wal.");
+        out.println("  checkpoint                      - Fold the journal into its saved file and truncate it.");
+        out.println("  import <hostPath> [targetDir]   - Read a host directory tree into a new directory, in parallel.");
+        out.println("  export <virtualDir> <hostPath>  - Write a directory and everything below it to a host directory.");
+        out.println("  undo                            - Undo the last operation.");
+        out.println("  redo                            - Redo the last undone operation.");
+        out.println("  undoLimit <steps>               - Set how many operations can be undone (default 5).");
+        out.println("  begin [--fail-fast]             - Start a transaction; with --fail-fast a failing command rolls it back.");
+        out.println("  commit                          - End the transaction; one undo reverts all of its commands.");
+        out.println("  rollback                        - End the transaction and revert all of its commands.");
+        out.println("  snapshot <name>                 - Save a named snapshot of the disk.");
+        out.println("  restore <name>                  - Restore the disk to a named snapshot.");
+        out.println("  snapshots                       - List all snapshots of the disk.");
+        out.println("  stats [on|off|reset]            - Show command latencies and disk statistics, or switch timing on or off.");
+        out.println("  quit                            - Exit the application.");
+        out.println("  help                            - Display this help message.");
+        out.println("#####################################################################");
     }
 
 }
@@ -0,0 +1,222 @@
+package hk.edu.polyu.comp.comp2021.cvfs;
+
+import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the CVFS command language to local clients over a Unix domain socket or a loopback TCP port.
+ * Every connection is a session of one shared disk (see {@link CVFS#openSession()}), with its own working
+ * directory, criteria and undo history, and runs the same commands as the interactive interface.
+ * <p>
+ * Protocol: the client sends one command per line in UTF-8. For every command the server writes the output
+ * of the command, then a status line, {@value #STATUS_OK} or {@value #STATUS_ERROR}; after {@code quit} it writes
+ * {@value #STATUS_QUIT} and closes the connection. Clients may send further commands without waiting for the
+ * answer; they are executed in order, and the responses are flushed once no more commands are waiting.
+ * <p>
+ * Each connection is served by its own thread from a pool of at most {@code maxClients} threads. Once all of
+ * them are busy, the server stops accepting, so further clients wait in the backlog of the socket. Within a
+ * connection, commands are read only as fast as they are executed, so the socket buffers bound the commands a
+ * client can have in flight.
+ */
+public class Server implements Closeable {
+    /**
+     * The default number of clients served at the same time.
+     */
+    public static final int DEFAULT_MAX_CLIENTS = 256;
+    /**
+     * The status line ending the response to a successful command.
+     */
+    public static final String STATUS_OK = "%ok";
+    /**
+     * The status line ending the response to a failed command.
+     */
+    public static final String STATUS_ERROR = "%error";
+    /**
+     * The status line ending the response to {@code quit}, after which the server closes the connection.
+     */
+    public static final String STATUS_QUIT = "%quit";
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+    private final CVFS cvfs;
+    private final ServerSocketChannel channel;
+    private final SocketAddress address;
+    private final Path socketFile; // null when listening on a TCP port
+    private final ExecutorService workers;
+    private final Semaphore slots;
+    private final Set<SocketChannel> clients = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    /**
+     * Opens the server socket. Connections are accepted once {@link #serve()} is called.
+     *
+     * @param cvfs       The session whose disk is shared with the clients; it must have a disk.
+     * @param address    The path of a Unix domain socket to create, or a port number to listen on the loopback
+     *                   interface (0 for any free port).
+     * @param maxClients The maximum number of clients served at the same time.
+     * @throws IOException              If the socket cannot be opened, e.g. because the socket file already exists.
+     * @throws IllegalArgumentException If the CVFS has no disk or the client limit is not positive.
+     */
+    public Server(CVFS cvfs, String address, int maxClients) throws IOException {
+        if (cvfs.getDisk() == null) {
+            throw new IllegalArgumentException("No disk exists. Create new or load one.");
+        }
+        if (maxClients <= 0) {
+            throw new IllegalArgumentException("Maximum number of clients must be positive.");
+        }
+        this.cvfs = cvfs;
+        if (address.matches("\\d+")) {
+            socketFile = null;
+            channel = ServerSocketChannel.open(StandardProtocolFamily.INET);
+            channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address)));
+        } else {
+            socketFile = Paths.get(address);
+            if (Files.exists(socketFile)) {
+                throw new IOException("Socket file " + socketFile + " already exists.");
+            }
+            channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.bind(UnixDomainSocketAddress.of(socketFile));
+        }
+        this.address = channel.getLocalAddress();
+        this.slots = new Semaphore(maxClients);
+        this.workers = Executors.newFixedThreadPool(maxClients, runnable -> {
+            Thread thread = new Thread(runnable, "cvfs-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Retrieves the address the server listens on.
+     *
+     * @return The Unix domain socket address, or the loopback address with the actual port.
+     */
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Accepts and serves clients until the server is closed.
+     *
+     * @throws IOException If accepting a connection fails for another reason than closing the server.
+     */
+    public void serve() throws IOException {
+        try {
+            while (!closed) {
+                slots.acquireUninterruptibly(); // Backpressure: stop accepting while every worker is busy
+                SocketChannel client;
+                try {
+                    client = channel.accept();
+                } catch (IOException e) {
+                    slots.release();
+                    throw e;
+                }
+                clients.add(client);
+                workers.execute(() -> handle(client));
+            }
+        } catch (AsynchronousCloseException e) {
+            // Closed by close()
+        }
+    }
+
+    /**
+     * Starts serving clients on a background thread.
+     *
+     * @return The thread running {@link #serve()}.
+     */
+    public Thread start() {
+        Thread thread = new Thread(() -> {
+            try {
+                serve();
+            } catch (IOException e) {
+                System.err.println("Error accepting clients: " + e.getMessage());
+            }
+        }, "cvfs-server");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Stops accepting clients, closes all connections and removes the socket file.
+     *
+     * @throws IOException If the server socket cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+        for (SocketChannel client : clients) {
+            client.close();
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (socketFile != null) {
+            Files.deleteIfExists(socketFile);
+        }
+    }
+
+    /**
+     * Runs the commands of one client in a new session until the client quits or disconnects.
+     *
+     * @param client The connection of the client.
+     */
+    private void handle(SocketChannel client) {
+        try (client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8));
+             PrintStream out = new PrintStream(new BufferedOutputStream(Channels.newOutputStream(client), OUTPUT_BUFFER_SIZE),
+                     false, StandardCharsets.UTF_8)) {
+            CVFS session = cvfs.openSession();
+            session.setOutput(out);
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                Application.Outcome outcome = line.isEmpty() ? Application.Outcome.OK : Application.execute(session, line, out);
+                out.println(outcome == Application.Outcome.OK ? STATUS_OK
+                        : outcome == Application.Outcome.ERROR ? STATUS_ERROR : STATUS_QUIT);
+                if (outcome == Application.Outcome.QUIT) {
+                    break;
+                }
+                if (!in.ready()) {
+                    out.flush(); // Answers to pipelined commands are flushed together
+                }
+                if (out.checkError()) {
+                    break; // The client went away
+                }
+            }
+        } catch (IOException e) {
+            // The client went away
+        } finally {
+            clients.remove(client);
+            slots.release();
+        }
+    }
+}
@@ -1,14 +1,22 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 /**
  * Represents a binary criterion that combines two other criteria using a logical operator.
  * The logical operator can be either AND ("&&") or OR ("||").
  */
 public class BinaryCriterion extends Criterion implements Serializable {
+    private static final long serialVersionUID = -7519289443570616173L; // Unchanged since the original release
     private final Criterion criterionF;
     private final Criterion criterionS;
     private final String logicOp;
+    private transient boolean conjunction; // logicOp resolved once, true for "&&"
 
     /**
      * Constructs a BinaryCriterion with the specified name, two criteria, and a logical operator.
@@ -27,17 +35,82 @@ public class BinaryCriterion extends Criterion implements Serializable {
             throw new StateChangeCommandFailed("Logical operator must be either \"&&\" or \"||\"");
         }
         logicOp = logOp;
+        conjunction = logOp.equals("&&");
+    }
+
+    /**
+     * Retrieves the first combined criterion.
+     *
+     * @return The first criterion.
+     */
+    public Criterion getFirstCriterion() {
+        return criterionF;
+    }
+
+    /**
+     * Retrieves the second combined criterion.
+     *
+     * @return The second criterion.
+     */
+    public Criterion getSecondCriterion() {
+        return criterionS;
+    }
+
+    /**
+     * Retrieves the logical operator combining the two criteria.
+     *
+     * @return Either "&&" or "||".
+     */
+    public String getLogicOp() {
+        return logicOp;
+    }
+
+    /**
+     * Resolves the logical operator again, which is not serialized.
+     *
+     * @param in The stream to read from.
+     * @throws IOException            If an I/O error occurs.
+     * @throws ClassNotFoundException If a class cannot be found.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        conjunction = logicOp.equals("&&");
     }
 
     @Override
     public boolean matches(File file) {
-        if(logicOp.equals("&&")) {
+        if(conjunction) {
             return criterionF.matches(file) && criterionS.matches(file);
         }else{
             return criterionF.matches(file) || criterionS.matches(file);
         }
     }
 
+    /**
+     * Narrows a conjunction to the smaller side that can be narrowed, and a disjunction to the union of both sides.
+     *
+     * @param index The index of the disk.
+     * @return The candidates, or {@code null} if the index cannot narrow the search.
+     */
+    @Override
+    Collection<File> indexedCandidates(FileIndex index) {
+        Collection<File> first = criterionF.indexedCandidates(index);
+        Collection<File> second = criterionS.indexedCandidates(index);
+        if(conjunction) {
+            if(first == null || (second != null && second.size() < first.size())) {
+                return second;
+            }
+            return first;
+        }
+        if(first == null || second == null) {
+            return null;
+        }
+        Set<File> union = Collections.newSetFromMap(new IdentityHashMap<>());
+        union.addAll(first);
+        union.addAll(second);
+        return union;
+    }
+
     @Override
     public String toString() {
         return "BinaryCri {name= '"+getName()+"', criterion1= '"+criterionF.getName()+"', criterion2= '"+ criterionS+"'}";
@@ -0,0 +1,250 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A content-addressed store of document content, keyed by the SHA-256 hash of the UTF-8 text.
+ * Documents with equal content share one {@link Content} object, so memory and saved images hold each
+ * distinct content once. Every blob counts the documents of the live directory tree that reference it and is
+ * dropped from the store when the count reaches zero; snapshots and the undo history keep their documents,
+ * and thereby the content, alive through ordinary references.
+ */
+public class BlobStore {
+    /**
+     * The length of a content hash in bytes.
+     */
+    public static final int HASH_LENGTH = 32;
+
+    private final Map<Key, Blob> byHash = new HashMap<>();
+    private final Map<Content, Blob> byContent = new IdentityHashMap<>();
+    private final MessageDigest digest;
+    private long uniqueLength; // Characters of all distinct content
+
+    /**
+     * A stored content with its hash and the number of live documents referencing it.
+     */
+    private static final class Blob {
+        private final Key key;
+        private final Content content;
+        private int references;
+        private long savedImage; // The segmented image holding the content, 0 if none
+        private long savedOffset; // The position of the content in that image
+
+        private Blob(Key key, Content content) {
+            this.key = key;
+            this.content = content;
+        }
+    }
+
+    /**
+     * A hash usable as a map key.
+     */
+    private static final class Key {
+        private final byte[] hash;
+
+        private Key(byte[] hash) {
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && Arrays.equals(hash, ((Key) other).hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return (hash[0] & 0xFF) << 24 | (hash[1] & 0xFF) << 16 | (hash[2] & 0xFF) << 8 | (hash[3] & 0xFF);
+        }
+    }
+
+    /**
+     * Constructs an empty store.
+     */
+    public BlobStore() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    /**
+     * Builds the store for the documents of a directory tree, replacing duplicate content by shared blobs.
+     *
+     * @param root The root directory.
+     * @return The store with a reference for every document.
+     */
+    static BlobStore build(Directory root) {
+        BlobStore store = new BlobStore();
+        store.retainAll(root);
+        return store;
+    }
+
+    /**
+     * Finds the stored content equal to a text, without adding a reference.
+     *
+     * @param text The text of a new document.
+     * @return The shared content if the text is stored already, otherwise new content that is not stored yet.
+     */
+    public Content intern(String text) {
+        Blob blob = byHash.get(new Key(hash(text)));
+        return blob != null ? blob.content : CompressedContent.of(text);
+    }
+
+    /**
+     * Adds references for every document below a file, replacing their content by the shared blob where one exists.
+     *
+     * @param file A document or directory that was added to the live tree.
+     */
+    void retainAll(File file) {
+        if (file instanceof Document) {
+            Document doc = (Document) file;
+            Content shared = retain(doc.getContentObject());
+            if (shared != doc.getContentObject()) {
+                doc.setContentObject(shared);
+            }
+        } else {
+            for (File child : ((Directory) file).getFiles()) {
+                retainAll(child);
+            }
+        }
+    }
+
+    /**
+     * Removes references for every document below a file.
+     *
+     * @param file A document or directory that was removed from the live tree.
+     */
+    void releaseAll(File file) {
+        if (file instanceof Document) {
+            release(((Document) file).getContentObject());
+        } else {
+            for (File child : ((Directory) file).getFiles()) {
+                releaseAll(child);
+            }
+        }
+    }
+
+    /**
+     * Adds a reference to content, storing it if no equal content is stored.
+     *
+     * @param content The content of a document added to the live tree.
+     * @return The stored content equal to it, which the document should use.
+     */
+    Content retain(Content content) {
+        Blob blob = byContent.get(content);
+        if (blob == null) {
+            Key key = new Key(hash(content.getText()));
+            blob = byHash.get(key);
+            if (blob == null) {
+                blob = add(key, content);
+            }
+        }
+        blob.references++;
+        return blob.content;
+    }
+
+    /**
+     * Removes a reference to content, dropping it from the store when no live document uses it.
+     *
+     * @param content The content of a document removed from the live tree.
+     */
+    void release(Content content) {
+        Blob blob = byContent.get(content);
+        if (blob != null && --blob.references == 0) {
+            byHash.remove(blob.key);
+            byContent.remove(content);
+            uniqueLength -= content.length();
+        }
+    }
+
+    /**
+     * Stores content whose hash is already known, e.g. read from a disk image, without a reference.
+     *
+     * @param hash    The SHA-256 hash of the UTF-8 text.
+     * @param content The content.
+     */
+    void register(byte[] hash, Content content) {
+        Key key = new Key(hash);
+        if (!byHash.containsKey(key)) {
+            add(key, content);
+        }
+    }
+
+    /**
+     * Retrieves the hash of content, computing it if the content is not stored.
+     *
+     * @param content The content.
+     * @return The SHA-256 hash of the UTF-8 text.
+     */
+    byte[] getHash(Content content) {
+        Blob blob = byContent.get(content);
+        return blob != null ? blob.key.hash : hash(content.getText());
+    }
+
+    /**
+     * Retrieves where content was saved in a segmented image.
+     *
+     * @param content The content.
+     * @param imageId The identifier of the image.
+     * @return The position of the content in the image, or -1 if it has not been saved there.
+     */
+    long getSavedOffset(Content content, long imageId) {
+        Blob blob = byContent.get(content);
+        return blob != null && imageId != 0 && blob.savedImage == imageId ? blob.savedOffset : -1;
+    }
+
+    /**
+     * Records where content was saved in a segmented image.
+     *
+     * @param content The content.
+     * @param imageId The identifier of the image.
+     * @param offset  The position of the content in the image.
+     * @return {@code false} if the content is not stored, so the position cannot be recorded.
+     */
+    boolean setSavedOffset(Content content, long imageId, long offset) {
+        Blob blob = byContent.get(content);
+        if (blob == null) {
+            return false;
+        }
+        blob.savedImage = imageId;
+        blob.savedOffset = offset;
+        return true;
+    }
+
+    /**
+     * Retrieves the number of distinct contents in the store.
+     *
+     * @return The number of blobs.
+     */
+    public int getBlobCount() {
+        return byHash.size();
+    }
+
+    /**
+     * Retrieves the size of the distinct contents, counted like document sizes at two bytes per character.
+     *
+     * @return The size in bytes, without the per-document overhead.
+     */
+    public long getUniqueSize() {
+        return uniqueLength * 2;
+    }
+
+    private Blob add(Key key, Content content) {
+        Blob blob = new Blob(key, content);
+        byHash.put(key, blob);
+        byContent.put(content, blob);
+        uniqueLength += content.length();
+        return blob;
+    }
+
+    private synchronized byte[] hash(String text) { // The digest is not thread-safe
+        return digest.digest(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
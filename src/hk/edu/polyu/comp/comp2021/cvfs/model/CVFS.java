@@ -2,18 +2,46 @@ package hk.edu.polyu.comp.comp2021.cvfs.model;
 
 import java.util.*;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Central class representing the Command Virtual File System (CVFS).
  * Handles operations such as creating files, directories, criteria, and managing virtual disk state.
+ * <p>
+ * A CVFS is one session: it has its own working directory, criteria, undo history and output stream.
+ * {@link #openSession()} creates another session on the same disk; sessions may run on different threads,
+ * and each command holds the read or write lock of the disk while it runs, so listings and searches
+ * of many sessions proceed in parallel while changes are serialized.
+ * <p>
+ * A disk with a {@link Journal} records every change; a state-changing command returns once its change
+ * is durable, see {@link #startJournal(String)}.
+ * <p>
+ * Commands between {@link #beginTransaction(boolean)} and {@link #commitTransaction()} are undone as one entry
+ * and can be reverted together with {@link #rollbackTransaction()}.
  */
 public class CVFS {
     private final VirtualDisk OPTIONAL=null;
     private VirtualDisk disk;
     private Map<String, Criterion> criterionMap;
     //For Bonus2
-    private Stack<CVFSState> undoStack;
-    private Stack<CVFSState> redoStack;
+    /**
+     * The default number of commands that can be undone.
+     */
+    public static final int DEFAULT_UNDO_LIMIT = 5;
+    private Deque<Operation> undoStack;
+    private Deque<Operation> redoStack;
+    private List<Operation> transaction; // The operations of the open transaction, or null
+    private boolean failFast;
+    private int undoLimit = DEFAULT_UNDO_LIMIT;
+    private boolean interactive = true;
+    private Stats stats = new Stats(this); // Shared with the sessions opened from this one
+    private PrintStream out; // null for the standard streams at the time of printing
+    private PrintStream err;
 
     /**
      * Initializes a new CVFS instance with no disk and default configurations.
@@ -25,9 +53,62 @@ public class CVFS {
     }
 
     private void setCriterionMap(){
-        criterionMap = new HashMap<>();
+        criterionMap = defaultCriterionMap();
+    }
+
+    private static Map<String, Criterion> defaultCriterionMap(){
+        Map<String, Criterion> criteria = new HashMap<>();
         Criterion isDocument = new IsDocumentCriterion();
-        criterionMap.put("IsDocument", isDocument);
+        criteria.put("IsDocument", isDocument);
+        return criteria;
+    }
+
+    /**
+     * Sets whether the CVFS may ask the user for confirmation on standard input.
+     * Scripts run non-interactively, so replacing an open disk proceeds without asking.
+     *
+     * @param interactive Whether confirmations are read from standard input.
+     */
+    public void setInteractive(boolean interactive){
+        this.interactive = interactive;
+    }
+
+    /**
+     * Sets the stream this session prints command output and error messages to, e.g. the connection of a client.
+     *
+     * @param out The output stream of this session.
+     */
+    public void setOutput(PrintStream out){
+        this.out = out;
+        this.err = out;
+    }
+
+    /**
+     * Opens another session on the disk of this one.
+     * The new session shares the directory tree and snapshots, starts in the root directory with a copy
+     * of the criteria of this session and an empty undo history, and does not ask for confirmations.
+     * Its commands are counted in the {@link Stats} of this session, so one registered MBean covers them all.
+     * Creating or loading a disk in either session afterwards detaches it from the shared disk.
+     *
+     * @return The new session.
+     * @throws IllegalArgumentException If no disk is loaded.
+     */
+    public CVFS openSession(){
+        ensureDiskExists();
+        CVFS session = new CVFS();
+        Lock lock = acquire(false);
+        try {
+            session.disk = disk.openSession();
+        } finally {
+            release(lock);
+        }
+        session.criterionMap.putAll(criterionMap);
+        session.undoLimit = undoLimit;
+        session.stats = stats;
+        session.interactive = false;
+        session.out = out;
+        session.err = err;
+        return session;
     }
 
     /**
@@ -36,8 +117,8 @@ public class CVFS {
      * @param maxSize The maximum size of the disk in bytes.
      */
     public void createDisk(int maxSize){
-        if (this.disk != null) {
-            System.out.println("Warning!!! If current disk isn't saved, you will lost all the data!\nAre you sure you want to continue creating new disk? Yes/No");
+        if (this.disk != null && interactive) {
+            out().println("Warning!!! If current disk isn't saved, you will lost all the data!\nAre you sure you want to continue creating new disk? Yes/No");
             Scanner scanner = new Scanner(System.in);
             while(true){
                 String ans = scanner.nextLine().trim();
@@ -45,24 +126,25 @@ public class CVFS {
                     break;
                 }
                 if(ans.equals("No")){
-                    System.out.println("Operation was cancelled.");
+                    out().println("Operation was cancelled.");
                     return;
                 }
             }
-            System.out.println("Closing the current disk...");
+            out().println("Closing the current disk...");
             this.disk = OPTIONAL;
             System.gc();
         }
+        closeJournal();
         this.disk = new VirtualDisk(maxSize); // Create a new disk
         setCriterionMap();
         setUndoRedoStacks();
-        System.out.println("Created a new virtual disk with size " + maxSize + ".");
+        out().println("Created a new virtual disk with size " + maxSize + ".");
     }
 
     /**
-     * Creates a new document in the current directory.
+     * Creates a new document in the current directory, or in the directory a path leads to, e.g. "a/b/doc".
      *
-     * @param name    The name of the document.
+     * @param name    The name of the document, optionally preceded by the path of its directory.
      * @param type    The type of the document (e.g., txt, java).
      * @param content The content of the document.
      * @throws StateChangeCommandFailed If there is not enough disk space.
@@ -70,68 +152,198 @@ public class CVFS {
     public void createDocument(String name, String type, String content){
         ensureDiskExists();
         beforeExecution();
-        Document doc= new Document(name, type, content);
-        if(doc.getSize()>disk.getRemainedSize()){
-            throw new StateChangeCommandFailed("There is no enough space.");
+        Lock lock = acquire(true);
+        try {
+            long start = stats.start();
+            Document doc= new Document(nameOf(name), type, disk.getBlobStore().intern(content));
+            if(doc.getSize()>disk.getRemainedSize()){
+                throw new StateChangeCommandFailed("There is no enough space.");
+            }
+            stats.stop(Stats.Phase.VALIDATION, start);
+            start = stats.start();
+            Operation operation = disk.inDirectory(directoryOf(name), () -> {
+                disk.addFile(doc);
+                return new Operation.AddFile(disk.getPathName(), doc);
+            });
+            stats.stop(Stats.Phase.MUTATION, start);
+            record(operation);
+        } finally {
+            release(lock);
         }
-        disk.getCurrentDirectory().addFile(doc);
-        System.out.println("Created a new document: " + name + "." + type);
+        commit();
+        out().println("Created a new document: " + name + "." + type);
     }
 
     /**
-     * Creates a new directory in the current directory.
+     * Creates a new directory in the current directory, or in the directory a path leads to, e.g. "a/b/c".
      *
-     * @param name The name of the directory.
+     * @param name The name of the directory, optionally preceded by the path of its parent.
      * @throws StateChangeCommandFailed If there is not enough disk space.
      */
     public void createDirectory(String name){
         ensureDiskExists();
         beforeExecution();
-        Directory dir = new Directory(name);
-        if(dir.getSize()>disk.getRemainedSize()){
-            throw new StateChangeCommandFailed("There is no enough space.");
+        Lock lock = acquire(true);
+        try {
+            long start = stats.start();
+            Directory dir = new Directory(nameOf(name));
+            if(dir.getSize()>disk.getRemainedSize()){
+                throw new StateChangeCommandFailed("There is no enough space.");
+            }
+            stats.stop(Stats.Phase.VALIDATION, start);
+            start = stats.start();
+            Operation operation = disk.inDirectory(directoryOf(name), () -> {
+                disk.addFile(dir);
+                return new Operation.AddFile(disk.getPathName(), dir);
+            });
+            stats.stop(Stats.Phase.MUTATION, start);
+            record(operation);
+        } finally {
+            release(lock);
         }
-        disk.getCurrentDirectory().addFile(dir);
-        System.out.println("Created a new directory: " + name);
+        commit();
+        out().println("Created a new directory: " + name);
     }
 
     /**
-     * Deletes a file or directory by name from the current directory.
+     * Deletes a file or directory by name from the current directory, or by path from another directory.
      *
-     * @param name The name of the file or directory to delete.
-     * @throws StateChangeCommandFailed If it can't find a file or directory.
+     * @param name The name or path of the file or directory to delete, e.g. "doc" or "a/b/doc".
+     * @throws StateChangeCommandFailed If it can't find a file or directory, or it holds the working directory.
      */
     public void delete(String name){
         ensureDiskExists();
         beforeExecution();
-        disk.getCurrentDirectory().removeFile(name);
-        System.out.println("File "+name + " was deleted from working directory");
+        Lock lock = acquire(true);
+        try {
+            long start = stats.start();
+            String fileName = nameOf(name);
+            Operation operation = disk.inDirectory(directoryOf(name), () -> {
+                String previousName = disk.getCurrentDirectory().getPreviousName(fileName);
+                File removed = disk.removeFile(fileName);
+                return new Operation.RemoveFile(disk.getPathName(), removed, previousName);
+            });
+            stats.stop(Stats.Phase.MUTATION, start);
+            record(operation);
+        } finally {
+            release(lock);
+        }
+        commit();
+        out().println("File "+name + " was deleted from working directory");
     }
 
     /**
-     * Renames a file or directory in the current directory.
+     * Renames a file or directory in the current directory, or one that a path leads to.
      *
-     * @param oldName The current name of the file or directory.
+     * @param oldName The current name or path of the file or directory, e.g. "doc" or "a/b/doc".
      * @param newName The new name for the file or directory.
-     * @throws StateChangeCommandFailed If it can't find a file or directory.
+     * @throws StateChangeCommandFailed If it can't find a file or directory, or it holds the working directory.
      */
     public void rename(String oldName, String newName){
         ensureDiskExists();
         beforeExecution();
-        disk.getCurrentDirectory().renameFile(oldName, newName);
-        System.out.println("Renamed file: " + oldName + " to " + newName);
+        Lock lock = acquire(true);
+        try {
+            long start = stats.start();
+            String fileName = nameOf(oldName);
+            Operation operation = disk.inDirectory(directoryOf(oldName), () -> {
+                disk.renameFile(fileName, newName);
+                return new Operation.RenameFile(disk.getPathName(), fileName, newName);
+            });
+            stats.stop(Stats.Phase.MUTATION, start);
+            record(operation);
+        } finally {
+            release(lock);
+        }
+        commit();
+        out().println("Renamed file: " + oldName + " to " + newName);
     }
 
     /**
-     * Changes the working directory.
+     * Changes the working directory, by one or several levels at once.
      *
-     * @param dirName The name of the directory to switch to.
+     * @param dirName The name or path of the directory to switch to, e.g. "a", "..", "a/b/c", "../c" or "/a/b".
      * @throws StateChangeCommandFailed If it can't find a directory.
      */
     public void changeDir(String dirName){
         ensureDiskExists();
         beforeExecution();
-        disk.changeDirectory(dirName);
+        Lock lock = acquire(false); // Only the working directory of this session changes
+        try {
+            long start = stats.start();
+            String left = disk.changeDirectory(dirName);
+            stats.stop(Stats.Phase.MUTATION, start);
+            record(new Operation.ChangeDir(left, disk.getPathName()));
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Saves a named snapshot of the disk in constant time.
+     * The snapshot shares all nodes with the live tree until they are changed.
+     *
+     * @param name The name of the snapshot; an existing snapshot with this name is replaced.
+     */
+    public void createSnapshot(String name){
+        ensureDiskExists();
+        Lock lock = acquire(true);
+        try {
+            disk.getSnapshots().put(name, disk.capture());
+        } finally {
+            release(lock);
+        }
+        out().println("Created snapshot: " + name);
+    }
+
+    /**
+     * Restores the disk and the working directory to a named snapshot.
+     * The restore can be undone like any other state-changing command.
+     *
+     * @param name The name of the snapshot.
+     * @throws StateChangeCommandFailed If no snapshot with this name exists.
+     */
+    public void restoreSnapshot(String name){
+        ensureDiskExists();
+        beforeExecution();
+        Lock lock = acquire(true);
+        try {
+            VirtualDisk.Snapshot snapshot = disk.getSnapshots().get(name);
+            if (snapshot == null){
+                throw new StateChangeCommandFailed("Snapshot with the name '" + name + "' doesn't exist.");
+            }
+            long start = stats.start();
+            VirtualDisk.Snapshot before = disk.capture();
+            stats.stop(Stats.Phase.UNDO, start);
+            start = stats.start();
+            disk.restore(snapshot);
+            stats.stop(Stats.Phase.MUTATION, start);
+            record(new Operation.RestoreSnapshot(before, snapshot));
+        } finally {
+            release(lock);
+        }
+        commit();
+        out().println("Restored snapshot: " + name);
+    }
+
+    /**
+     * Prints the names of all snapshots of the disk together with their entry count and size.
+     */
+    public void printSnapshots(){
+        ensureDiskExists();
+        Lock lock = acquire(false);
+        try {
+            if (disk.getSnapshots().isEmpty()){
+                out().println("There are no snapshots.");
+                return;
+            }
+            for (Map.Entry<String, VirtualDisk.Snapshot> entry : disk.getSnapshots().entrySet()){
+                Directory snapshotRoot = entry.getValue().getRoot();
+                out().println(entry.getKey() + ", Entries: " + snapshotRoot.getDescendantCount() + ", Size: " + snapshotRoot.getSize());
+            }
+        } finally {
+            release(lock);
+        }
     }
 
     /**
@@ -139,11 +351,20 @@ public class CVFS {
      */
     public void list(){
         ensureDiskExists();
-        disk.getCurrentDirectory().listFiles();
+        Lock lock = acquire(false);
+        try {
+            long start = stats.start();
+            disk.getCurrentDirectory().print(false, null, out());
+            stats.stop(Stats.Phase.RENDERING, start);
+        } finally {
+            release(lock);
+        }
     }
 
     /**
      * Lists all files in the current directory matching a specific criterion.
+     * Criteria on name, type and size are answered from the indexes of the disk when that is cheaper than a scan,
+     * and from the {@link SearchCache} if the directory has not changed since a recursive search with the criterion.
      *
      * @param criName The name of the criterion to filter files.
      * @throws IllegalArgumentException If the criterion does not exist.
@@ -154,7 +375,22 @@ public class CVFS {
             throw new IllegalArgumentException("Criteria with this name doesn't exists.");
         }
         Criterion criterion = criterionMap.get(criName);
-        disk.getCurrentDirectory().listFiles(criterion);
+        Lock lock = acquire(false);
+        try {
+            long start = stats.start();
+            List<ListedFile> matches = disk.search(criterion, false);
+            Iterator<ListedFile> cached = matches == null ? disk.cachedSearch(criterion, false) : matches.iterator();
+            stats.stop(Stats.Phase.SEARCH, start);
+            start = stats.start();
+            if (cached != null) {
+                Directory.printListedFiles(cached, null, out());
+            } else {
+                disk.getCurrentDirectory().print(false, criterion, out());
+            }
+            stats.stop(Stats.Phase.RENDERING, start);
+        } finally {
+            release(lock);
+        }
     }
 
     /**
@@ -162,12 +398,21 @@ public class CVFS {
      */
     public void recursiveList(){
         ensureDiskExists();
-        disk.getCurrentDirectory().recursiveListFiles();
+        Lock lock = acquire(false);
+        try {
+            long start = stats.start();
+            disk.getCurrentDirectory().print(true, null, out());
+            stats.stop(Stats.Phase.RENDERING, start);
+        } finally {
+            release(lock);
+        }
     }
 
     /**
      * Recursively lists all files in the current directory and subdirectories
-     * matching a specific criterion.
+     * matching a specific criterion, using the indexes of the disk when possible. Otherwise the directory is walked
+     * with the {@link SearchCache}, which skips the subdirectories unchanged since the last search with the criterion
+     * and matches large directories on several cores.
      *
      * @param criName The name of the criterion to filter files.
      * @throws IllegalArgumentException If the criterion does not exist.
@@ -178,7 +423,101 @@ public class CVFS {
             throw new IllegalArgumentException("Criteria with this name doesn't exists.");
         }
         Criterion criterion = criterionMap.get(criName);
-        disk.getCurrentDirectory().recursiveListFiles(criterion);
+        Lock lock = acquire(false);
+        try {
+            long start = stats.start();
+            List<ListedFile> matches = disk.search(criterion, true);
+            Iterator<ListedFile> found = matches == null ? disk.walkSearch(criterion) : matches.iterator();
+            stats.stop(Stats.Phase.SEARCH, start);
+            start = stats.start();
+            Directory.printListedFiles(found, null, out());
+            stats.stop(Stats.Phase.RENDERING, start);
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Lists one page of the files matching a specific criterion, in the current directory
+     * or recursively below it. The walk stops as soon as the page is complete.
+     *
+     * @param criName   The name of the criterion to filter files.
+     * @param recursive Whether to include files in subdirectories.
+     * @param offset    The number of matches to skip.
+     * @param limit     The maximum number of matches to print.
+     * @throws IllegalArgumentException If the criterion does not exist or the offset or limit is negative.
+     */
+    public void list(String criName, boolean recursive, long offset, long limit){
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Offset and limit must not be negative.");
+        }
+        ensureDiskExists();
+        Criterion criterion = criterionOf(criName);
+        Lock lock = acquire(false);
+        try {
+            Stream<ListedFile> matches = matching(criterion, recursive);
+            long start = stats.start();
+            Directory.printListedFiles(matches.skip(offset).limit(limit).iterator(), null, out());
+            stats.stop(Stats.Phase.RENDERING, start);
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Queries the files in the current directory matching a criterion without printing them.
+     * Matches are produced lazily in listing order, so callers can page through them or stop early;
+     * a directory unchanged since a recursive search with the criterion is answered from the {@link SearchCache}.
+     * The tree is captured under the read lock like a snapshot, so the stream walks the disk as it was when it was
+     * queried while other sessions keep changing it; their changes copy the frozen directories they touch.
+     *
+     * @param criName   The name of the criterion to filter files, or {@code null} to include all files.
+     * @param recursive Whether to include files in subdirectories.
+     * @return The matching files with their depth below the current directory.
+     * @throws IllegalArgumentException If the criterion does not exist.
+     */
+    public Stream<ListedFile> query(String criName, boolean recursive){
+        ensureDiskExists();
+        Criterion criterion = criterionOf(criName);
+        Lock lock = acquire(false);
+        try {
+            disk.capture();
+            return matching(criterion, recursive);
+        } finally {
+            release(lock);
+        }
+    }
+
+    private Criterion criterionOf(String criName){
+        if (criName == null) {
+            return null;
+        }
+        if(!criterionMap.containsKey(criName)){
+            throw new IllegalArgumentException("Criteria with this name doesn't exists.");
+        }
+        return criterionMap.get(criName);
+    }
+
+    /**
+     * Streams the files in the current directory matching a criterion; the caller holds the lock of the disk
+     * until the stream is consumed, or has frozen the tree.
+     */
+    private Stream<ListedFile> matching(Criterion criterion, boolean recursive){
+        if (criterion == null) {
+            return disk.getCurrentDirectory().stream(recursive, null);
+        }
+        long start = stats.start();
+        List<ListedFile> matches = disk.search(criterion, recursive);
+        Iterator<ListedFile> cached = matches == null ? disk.cachedSearch(criterion, recursive) : null;
+        stats.stop(Stats.Phase.SEARCH, start);
+        if (matches != null) {
+            return matches.stream();
+        }
+        if (cached != null) {
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cached,
+                    Spliterator.ORDERED | Spliterator.NONNULL), false);
+        }
+        return disk.getCurrentDirectory().stream(recursive, criterion);
     }
 
     /**
@@ -195,9 +534,8 @@ public class CVFS {
         if(criterionMap.containsKey(criName)){
             throw new StateChangeCommandFailed("Criteria with this name already exists.");
         }
-        Criterion criterion = new SimpleCriterion(criName, attrName, op, val);
-        criterionMap.put(criName, criterion);
-        System.out.println("Created simple criterion: " + criName);
+        storeCriterion(new SimpleCriterion(criName, attrName, op, val));
+        out().println("Created simple criterion: " + criName);
     }
 
     /**
@@ -212,9 +550,8 @@ public class CVFS {
         if (!criterionMap.containsKey(criterion1)) {
             throw new StateChangeCommandFailed("Criterion '" + criterion1 + "' does not exist.");
         }
-        Criterion criterion = new NegationCriterion(criName, criterionMap.get(criterion1));
-        criterionMap.put(criName, criterion);
-        System.out.println("Created negation criterion: " + criName);
+        storeCriterion(new NegationCriterion(criName, criterionMap.get(criterion1)));
+        out().println("Created negation criterion: " + criName);
     }
 
     /**
@@ -232,9 +569,53 @@ public class CVFS {
         if (!(criterionMap.containsKey(criterion1) && criterionMap.containsKey(criterion2))) {
             throw new StateChangeCommandFailed("Both criteria must exist.");
         }
-        Criterion criterion = new BinaryCriterion(criName, criterionMap.get(criterion1), logOp, criterionMap.get(criterion2));
-        criterionMap.put(criName, criterion);
-        System.out.println("Created binary criterion: " + criName);
+        storeCriterion(new BinaryCriterion(criName, criterionMap.get(criterion1), logOp, criterionMap.get(criterion2)));
+        out().println("Created binary criterion: " + criName);
+    }
+
+    /**
+     * Stores a new criterion as an undoable command.
+     *
+     * @param criterion The criterion to store under its name.
+     */
+    private void storeCriterion(Criterion criterion){
+        Lock lock = acquire(true); // Checkpoints read the journaled criteria under the read lock
+        try {
+            record(new Operation.PutCriterion(criterion, putCriterion(criterion)));
+        } finally {
+            release(lock);
+        }
+        commit();
+    }
+
+    /**
+     * Stores a criterion in the criterion map and journals the change if the criteria of this session are journaled.
+     * The caller must hold the write lock of the disk, if there is one.
+     *
+     * @param criterion The criterion to store under its name.
+     * @return The criterion previously stored under the name, or {@code null}.
+     */
+    Criterion putCriterion(Criterion criterion){
+        Criterion replaced = criterionMap.put(criterion.getName(), criterion);
+        Journal journal = disk == null ? null : disk.getJournal();
+        if (journal != null && journal.journalsCriteria(criterionMap)) {
+            journal.logPutCriterion(criterion);
+        }
+        return replaced;
+    }
+
+    /**
+     * Removes a criterion from the criterion map and journals the change if the criteria of this session are journaled.
+     * The caller must hold the write lock of the disk, if there is one.
+     *
+     * @param name The name of the criterion.
+     */
+    void removeCriterion(String name){
+        criterionMap.remove(name);
+        Journal journal = disk == null ? null : disk.getJournal();
+        if (journal != null && journal.journalsCriteria(criterionMap)) {
+            journal.logRemoveCriterion(name);
+        }
     }
 
     /**
@@ -242,118 +623,527 @@ public class CVFS {
      */
     public void printAllCriterion(){
         for (Criterion cri : criterionMap.values()){
-            System.out.println(cri);
+            out().println(cri);
         }
     }
 
     /**
-     * Saves the current state of the virtual disk to a file.
+     * Saves the current state of the virtual disk to a file in the binary {@link SegmentedImage} format.
+     * Saving again to the file the disk was last saved to or loaded from only appends the directories changed
+     * since. Saving to the image of the {@link Journal} of the disk writes a checkpoint, with the journaled criteria.
      *
      * @param path             The file path to save the disk.
      * @param withAllCriteria Whether to save all criteria in the map as well.
+     * @throws StateChangeCommandFailed If the file cannot be written.
      */
     public void saveDisk(String path, boolean withAllCriteria){
         ensureDiskExists();
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(path))) {
-            oos.writeObject(disk);
-            oos.writeBoolean(withAllCriteria);
-            if(withAllCriteria) oos.writeObject(criterionMap);
-            System.out.println("Virtual disk saved to " + path);
+        Lock lock = acquire(false);
+        try {
+            long start = stats.start();
+            Journal journal = disk.getJournal();
+            long written;
+            if (journal != null && isSameFile(journal.getImage(), Paths.get(path))) {
+                written = journal.checkpoint(disk); // Appending behind its back would orphan the journal
+            } else {
+                written = SegmentedImage.write(Paths.get(path), disk, withAllCriteria ? criterionMap : null);
+            }
+            stats.stop(Stats.Phase.SAVE, start);
+            stats.addBytesWritten(written);
+            out().println("Virtual disk saved to " + path);
         } catch (IOException e) {
-            System.err.println("Error saving virtual disk: " + e.getMessage());
+            throw new StateChangeCommandFailed("Error saving virtual disk: " + e.getMessage());
+        } finally {
+            release(lock);
         }
     }
 
+    private static boolean isSameFile(Path first, Path second) {
+        return first.toAbsolutePath().normalize().equals(second.toAbsolutePath().normalize());
+    }
+
     /**
      * Loads a virtual disk from a file.
+     * Reads binary {@link DiskImage} files as well as legacy files written with Java serialization.
      *
      * @param path The file path to load the disk from.
+     * @throws StateChangeCommandFailed If the file cannot be read or is not a disk file; the current disk is kept.
      */
     public void loadDisk(String path) {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(path))) {
-            disk = (VirtualDisk) ois.readObject();
-            boolean withAllCriteria = ois.readBoolean();
-            if(withAllCriteria) {
-                criterionMap = (Map<String, Criterion>) ois.readObject();
-            }
-            else{
-                setCriterionMap();
+        loadDisk(path, false);
+    }
+
+    /**
+     * Loads a virtual disk from a file, optionally memory-mapping it.
+     * A mapped binary image keeps document content in the mapping until it is read;
+     * legacy files are always read completely. If the image has a {@link Journal}, the changes recorded since
+     * the image was written are replayed, and later changes are journaled again.
+     *
+     * @param path   The file path to load the disk from.
+     * @param mapped Whether to memory-map the image and load document content lazily.
+     * @throws StateChangeCommandFailed If the file cannot be read or is not a disk file; the current disk is kept.
+     */
+    public void loadDisk(String path, boolean mapped) {
+        try {
+            long start = stats.start();
+            Journal journal = null;
+            if (DiskImage.isImage(Paths.get(path))) {
+                DiskImage image = DiskImage.read(Paths.get(path), mapped);
+                Map<String, Criterion> criteria = image.getCriterionMap();
+                if (criteria == null) {
+                    criteria = defaultCriterionMap();
+                }
+                if (Files.exists(Journal.pathOf(Paths.get(path)))) {
+                    journal = Journal.open(Paths.get(path), image.getDisk(), criteria);
+                }
+                closeJournal();
+                disk = image.getDisk();
+                criterionMap = criteria;
+                if (journal != null) {
+                    disk.setJournal(journal);
+                }
+            } else {
+                closeJournal();
+                loadLegacyDisk(path);
             }
+            stats.stop(Stats.Phase.LOAD, start);
+            stats.addBytesRead(Files.size(Paths.get(path)));
             setUndoRedoStacks();
-            System.out.println("Virtual disk loaded from " + path);
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Error loading virtual disk: " + e.getMessage());
+            out().println("Virtual disk loaded from " + path);
+            if (journal != null) {
+                out().println("Replayed " + journal.getReplayedCount() + " changes from " + Journal.pathOf(Paths.get(path)));
+            }
+        } catch (IOException e) {
+            throw new StateChangeCommandFailed("Error loading virtual disk: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads a disk written with Java serialization by the original release, see {@link LegacyImage}.
+     *
+     * @param path The file path to load the disk from.
+     * @throws IOException If the file cannot be read or is not a disk file.
+     */
+    private void loadLegacyDisk(String path) throws IOException {
+        LegacyImage image = LegacyImage.read(Paths.get(path));
+        disk = image.getDisk();
+        if (image.getCriterionMap() != null) {
+            criterionMap = image.getCriterionMap();
+        }
+        else{
+            setCriterionMap();
         }
     }
+
+    /**
+     * Imports a directory tree of the host file system as a new directory, see {@link Importer}.
+     * The host files are read in parallel without holding the lock of the disk; the subtree is then attached
+     * with one space check and undone as a whole by a single {@link #undo()}.
+     *
+     * @param hostPath  The host directory to import.
+     * @param targetDir The path of the directory to import into, or {@code null} for the working directory.
+     * @throws StateChangeCommandFailed If the host directory cannot be read, there is not enough space,
+     *                                  or the target already has a file with the name of the host directory.
+     */
+    public void importTree(String hostPath, String targetDir){
+        ensureDiskExists();
+        beforeExecution();
+        long start = stats.start();
+        Importer.Result result;
+        try {
+            result = Importer.read(Paths.get(hostPath));
+        } catch (IOException e) {
+            throw new StateChangeCommandFailed("Error importing " + hostPath + ": " + e.getMessage());
+        }
+        stats.stop(Stats.Phase.IMPORT, start);
+        stats.addBytesRead(result.getBytesRead());
+        Directory imported = result.getRoot();
+        Lock lock = acquire(true);
+        try {
+            start = stats.start();
+            if(imported.getSize()>disk.getRemainedSize()){
+                throw new StateChangeCommandFailed("There is no enough space.");
+            }
+            stats.stop(Stats.Phase.VALIDATION, start);
+            start = stats.start();
+            Operation operation = disk.inDirectory(targetDir, () -> {
+                disk.addFile(imported);
+                return new Operation.AddFile(disk.getPathName(), imported);
+            });
+            stats.stop(Stats.Phase.MUTATION, start);
+            record(operation);
+        } finally {
+            release(lock);
+        }
+        commit();
+        out().println("Imported " + imported.getDescendantCount() + " files into " + imported.getName()
+                + (result.getSkipped() > 0 ? ", skipped " + result.getSkipped() : ""));
+    }
+
+    /**
+     * Writes a directory of the disk and everything below it to the host file system, see {@link Exporter}.
+     * The write lock is only held to freeze the tree like a snapshot, so the export sees the disk as it was when
+     * the command started while other sessions keep changing it; their changes copy the frozen nodes.
+     *
+     * @param virtualDir The path of the directory to export.
+     * @param hostPath   The host directory to write the files and subdirectories of the directory to.
+     * @throws StateChangeCommandFailed If the directory does not exist, or the host files cannot be written.
+     */
+    public void exportTree(String virtualDir, String hostPath){
+        ensureDiskExists();
+        Directory source;
+        Lock lock = acquire(true);
+        try {
+            source = disk.inDirectory(virtualDir, disk::getCurrentDirectory);
+            disk.capture();
+        } finally {
+            release(lock);
+        }
+        try {
+            long start = stats.start();
+            Exporter.Result result = Exporter.write(source, Paths.get(hostPath), out());
+            stats.stop(Stats.Phase.EXPORT, start);
+            stats.addBytesWritten(result.getBytesWritten());
+            out().println("Exported " + result.getDocuments() + " documents to " + hostPath);
+        } catch (IOException e) {
+            throw new StateChangeCommandFailed("Error exporting to " + hostPath + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Makes a file the checkpoint of the disk and journals every later change next to it.
+     * The disk and the criteria of this session are written to the file as with {@link #saveDisk(String, boolean)};
+     * from then on, every state-changing command of every session of the disk appends its change to the journal
+     * and returns once it is durable, so nothing is lost when the process ends without saving.
+     * {@link #loadDisk(String)} of the file restores the latest state. The journal is folded into a new
+     * checkpoint once it reaches {@link Journal#getCheckpointSize()} bytes, or with {@link #checkpoint()}.
+     *
+     * @param path The file path of the checkpoint image; the journal is the same path with {@value Journal#SUFFIX}.
+     * @throws StateChangeCommandFailed If the checkpoint or the journal cannot be written.
+     */
+    public void startJournal(String path){
+        ensureDiskExists();
+        Lock lock = acquire(true);
+        try {
+            long start = stats.start();
+            Journal previous = disk.getJournal();
+            disk.setJournal(null);
+            if (previous != null) {
+                previous.close();
+            }
+            Journal journal = Journal.create(Paths.get(path), disk, criterionMap);
+            disk.setJournal(journal);
+            stats.stop(Stats.Phase.SAVE, start);
+            stats.addBytesWritten(Files.size(Paths.get(path)));
+            out().println("Journaling changes to " + Journal.pathOf(Paths.get(path)));
+        } catch (IOException e) {
+            throw new StateChangeCommandFailed("Error starting journal: " + e.getMessage());
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Writes the journaled disk to its checkpoint image and truncates the journal.
+     *
+     * @throws IllegalArgumentException If no disk is loaded or the disk is not journaled.
+     * @throws StateChangeCommandFailed If the checkpoint cannot be written.
+     */
+    public void checkpoint(){
+        ensureDiskExists();
+        Journal journal = disk.getJournal();
+        if (journal == null) {
+            throw new IllegalArgumentException("The disk is not journaled. Start a journal first.");
+        }
+        Lock lock = acquire(false);
+        try {
+            long start = stats.start();
+            stats.addBytesWritten(journal.checkpoint(disk));
+            stats.stop(Stats.Phase.JOURNAL, start);
+            out().println("Checkpoint written to " + journal.getImage());
+        } catch (IOException e) {
+            throw new StateChangeCommandFailed("Error writing checkpoint: " + e.getMessage());
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Waits until the change of the last command is durable in the journal of the disk, if there is one,
+     * and writes a checkpoint once the journal has grown large enough or could not be written.
+     * Inside a transaction the changes are only forced when it is committed or rolled back.
+     *
+     * @throws StateChangeCommandFailed If neither the journal nor a checkpoint can be written;
+     *                                  the change stays in memory.
+     */
+    private void commit(){
+        Journal journal = disk == null ? null : disk.getJournal();
+        if (journal == null || transaction != null) { // A transaction is forced once when it ends
+            return;
+        }
+        long start = stats.start();
+        IOException error = null;
+        try {
+            journal.commit();
+        } catch (IOException e) {
+            error = e;
+        }
+        if (journal.needsCheckpoint()) {
+            Lock lock = acquire(false);
+            try {
+                if (journal.needsCheckpoint()) {
+                    journal.checkpoint(disk);
+                }
+                error = null; // The change is in the checkpoint
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                release(lock);
+            }
+        }
+        stats.stop(Stats.Phase.JOURNAL, start);
+        if (error != null) {
+            throw new StateChangeCommandFailed("The change was made but could not be journaled: " + error.getMessage());
+        }
+    }
+
+    /**
+     * Stops journaling the disk before this session replaces it, if this session started the journal.
+     */
+    private void closeJournal(){
+        Journal journal = disk == null ? null : disk.getJournal();
+        if (journal == null || !journal.journalsCriteria(criterionMap)) {
+            return;
+        }
+        Lock lock = acquire(true);
+        try {
+            disk.setJournal(null);
+            journal.close();
+        } catch (IOException e) {
+            err().println("Error closing journal: " + e.getMessage());
+        } finally {
+            release(lock);
+        }
+    }
+
 ///////////////////////////////////////////////////////////////////////////////////////////////////
 //    Bonus2 methods
     private void setUndoRedoStacks(){
-        undoStack=new Stack<>();
-        redoStack=new Stack<>();
+        undoStack=new ArrayDeque<>();
+        redoStack=new ArrayDeque<>();
+        transaction = null;
+    }
+
+    /**
+     * Sets how many commands can be undone. Older entries are dropped once the limit is exceeded.
+     * Each entry only holds what its command changed, so thousands of steps are cheap to keep.
+     *
+     * @param undoLimit The maximum number of undoable commands.
+     * @throws IllegalArgumentException If the limit is negative.
+     */
+    public void setUndoLimit(int undoLimit){
+        if (undoLimit < 0) {
+            throw new IllegalArgumentException("Undo limit must not be negative.");
+        }
+        this.undoLimit = undoLimit;
+        trimUndoStack();
     }
 
     /**
-     * Performs the undo operation by reverting to the previous state of the CVFS.
-     * Moves the current state to the redo stack.
+     * Retrieves how many commands can be undone.
+     *
+     * @return The maximum number of undoable commands.
+     */
+    public int getUndoLimit(){
+        return undoLimit;
+    }
+
+    /**
+     * Performs the undo operation by reverting the last recorded operation.
+     * Moves the operation to the redo stack. If another session has changed the disk so that the
+     * operation cannot be reverted, it stays on the undo stack and the failure is thrown.
+     *
+     * @throws StateChangeCommandFailed If the operation cannot be reverted.
+     * @throws IllegalArgumentException If a transaction is open.
      */
     public void undo(){
+        ensureNoTransaction();
         if (undoStack.isEmpty()){
-            System.out.println("There is nothing to undo.");
+            out().println("There is nothing to undo.");
             return;
         }
-        CVFSState curState = new CVFSState(disk, criterionMap);
-        redoStack.push(curState);
-
-        CVFSState prevState = undoStack.pop();
-        disk= prevState.getDiskState();
-        criterionMap= prevState.getCriterionMapState();
+        Operation operation = undoStack.peek();
+        Lock lock = acquire(true);
+        try {
+            long start = stats.start();
+            operation.undo(this);
+            stats.stop(Stats.Phase.MUTATION, start);
+        } finally {
+            release(lock);
+        }
+        redoStack.push(undoStack.pop());
+        commit();
     }
 
     /**
-     * Performs the redo operation by restoring the state from the redo stack.
-     * Moves the current state to the undo stack.
+     * Performs the redo operation by re-applying the last undone operation.
+     * Moves the operation back to the undo stack, or leaves it on the redo stack if it cannot be re-applied.
+     *
+     * @throws StateChangeCommandFailed If the operation cannot be re-applied.
+     * @throws IllegalArgumentException If a transaction is open.
      */
     public void redo(){
+        ensureNoTransaction();
         if (redoStack.isEmpty()){
-            System.out.println("There is nothing to redo.");
+            out().println("There is nothing to redo.");
             return;
         }
-        CVFSState curState = new CVFSState(disk, criterionMap);
-        undoStack.push(curState);
+        Operation operation = redoStack.peek();
+        Lock lock = acquire(true);
+        try {
+            long start = stats.start();
+            operation.redo(this);
+            stats.stop(Stats.Phase.MUTATION, start);
+        } finally {
+            release(lock);
+        }
+        undoStack.push(redoStack.pop());
+        commit();
+    }
+
+    /**
+     * Starts a transaction: the following state-changing commands are collected instead of being pushed to the
+     * undo stack one by one, until {@link #commitTransaction()} pushes them as a single entry or
+     * {@link #rollbackTransaction()} reverts them. With a journal, their changes are forced once at the end.
+     * <p>
+     * A transaction makes its commands atomic for this session only: other sessions of the disk still see and
+     * interleave with each command as it runs, and a crash replays the journaled part of an open transaction.
+     *
+     * @param failFast Whether a failing command rolls back the transaction, see {@link #handleStateChangeCommandFailed()}.
+     * @throws IllegalArgumentException If no disk is loaded or a transaction is already open.
+     */
+    public void beginTransaction(boolean failFast){
+        ensureDiskExists();
+        if (transaction != null) {
+            throw new IllegalArgumentException("A transaction is already open. Commit or roll it back first.");
+        }
+        beforeExecution();
+        transaction = new ArrayList<>();
+        this.failFast = failFast;
+        out().println("Began a transaction" + (failFast ? " that rolls back at the first failing command." : "."));
+    }
 
-        CVFSState nextState = redoStack.pop();
-        disk= nextState.getDiskState();
-        criterionMap= nextState.getCriterionMapState();
+    /**
+     * Ends the open transaction and pushes its changes to the undo stack as one entry, so a single
+     * {@link #undo()} reverts all of them.
+     *
+     * @throws IllegalArgumentException If no transaction is open.
+     * @throws StateChangeCommandFailed If the changes cannot be journaled; they stay in memory.
+     */
+    public void commitTransaction(){
+        List<Operation> operations = endTransaction();
+        if (!operations.isEmpty()) {
+            record(new Operation.Batch(operations));
+        }
+        commit();
+        out().println("Committed " + operations.size() + " changes.");
+    }
+
+    /**
+     * Ends the open transaction and reverts its changes, newest first, to the state when it began.
+     * If another session has changed the disk so that a change cannot be reverted, nothing is reverted and
+     * the transaction stays open.
+     *
+     * @throws IllegalArgumentException If no transaction is open.
+     * @throws StateChangeCommandFailed If a change cannot be reverted.
+     */
+    public void rollbackTransaction(){
+        Operation.Batch batch = new Operation.Batch(endTransaction());
+        Lock lock = acquire(true);
+        try {
+            long start = stats.start();
+            batch.undo(this);
+            stats.stop(Stats.Phase.MUTATION, start);
+        } catch (StateChangeCommandFailed e) {
+            transaction = new ArrayList<>(batch.getOperations());
+            throw new StateChangeCommandFailed("The transaction could not be rolled back: " + e.getMessage());
+        } finally {
+            release(lock);
+        }
+        commit();
+        out().println("Rolled back " + batch.size() + " changes.");
     }
 
     /**
-     * Saves the current state of the CVFS to the undo stack
-     * and clears the redo stack to maintain consistency.
+     * Tells whether a transaction is open.
+     *
+     * @return {@code true} between {@link #beginTransaction(boolean)} and its commit or rollback.
+     */
+    public boolean isInTransaction(){
+        return transaction != null;
+    }
+
+    private List<Operation> endTransaction(){
+        if (transaction == null) {
+            throw new IllegalArgumentException("There is no open transaction.");
+        }
+        List<Operation> operations = transaction;
+        transaction = null;
+        return operations;
+    }
+
+    private void ensureNoTransaction(){
+        if (transaction != null) {
+            throw new IllegalArgumentException("Undo and redo are not available in a transaction. Roll it back instead.");
+        }
+    }
+
+    /**
+     * Prepares a state-changing command: clears the redo stack to maintain consistency.
+     * The command records its operation with {@link #record(Operation)} once it succeeds.
      */
     public void beforeExecution(){
-        saveState();
         redoStack.clear();
     }
 
     /**
-     * Handles a failed state change command by removing the last saved state
-     * from the undo stack.
+     * Handles a failed state change command.
+     * Commands fail before changing anything and only record an operation once they succeed,
+     * so there is no journal entry to discard and the undo history stays as it was.
+     * Inside a transaction begun with fail-fast, the whole transaction is rolled back.
      */
     public void handleStateChangeCommandFailed(){
-        undoStack.pop();
+        if (transaction == null || !failFast) {
+            return;
+        }
+        try {
+            rollbackTransaction();
+        } catch (StateChangeCommandFailed e) {
+            err().println("Error: " + e.getMessage());
+        }
     }
 
     /**
-     * Saves the current state of the CVFS to the undo stack.
-     * Ensures the undo stack does not exceed its maximum size of 5 states.
+     * Pushes the operation of a successful command to the undo stack, or adds it to the open transaction.
+     * Ensures the undo stack does not exceed the undo limit.
+     *
+     * @param operation The operation describing what the command changed.
      */
-    public void saveState(){
-        CVFSState state = new CVFSState(disk,criterionMap);
-        undoStack.push(state);
-        //Setting maximum size for undo and redo no more than 5
-        //Theoretically redoStack.maxSize can't be more that undoStack.maxSize
-        if(undoStack.size()>5){
-            undoStack.remove(0);
+    private void record(Operation operation){
+        long start = stats.start();
+        if (transaction != null) {
+            transaction.add(operation);
+        } else {
+            undoStack.push(operation);
+            trimUndoStack();
+        }
+        stats.stop(Stats.Phase.UNDO, start);
+    }
+
+    private void trimUndoStack(){
+        //Theoretically redoStack.size can't be more that undoLimit
+        while(undoStack.size()>undoLimit){
+            undoStack.removeLast();
         }
     }
 
@@ -366,14 +1156,27 @@ public class CVFS {
      */
     public String getWorkingDir(){
         if (disk==null) return "";
-        StringBuilder res= new StringBuilder();
-        Directory workingDir= disk.getCurrentDirectory();
-        while (workingDir.getParent()!=null){
-            res.insert(0, "/"+workingDir.getName());
-            workingDir=workingDir.getParent();
+        Lock lock = acquire(false);
+        try {
+            return disk.getPathName();
+        } finally {
+            release(lock);
         }
-        res.insert(0,"$");
-        return res.toString();
+    }
+
+    /**
+     * Retrieves the path of the directory a path to a file leads through, e.g. "a/b" for "a/b/doc".
+     *
+     * @param path The name of a file, optionally preceded by the path of its directory.
+     * @return The path of the directory, or {@code null} if the path is a plain name.
+     */
+    private static String directoryOf(String path){
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? null : slash == 0 ? "/" : path.substring(0, slash);
+    }
+
+    private static String nameOf(String path){
+        return path.substring(path.lastIndexOf('/') + 1);
     }
 
     /**
@@ -381,7 +1184,12 @@ public class CVFS {
      */
     public void showRemainedSpace(){
         ensureDiskExists();
-        System.out.println("Free space: " + disk.getRemainedSize() + " bytes");
+        Lock lock = acquire(false);
+        try {
+            out().println("Free space: " + disk.getRemainedSize() + " bytes");
+        } finally {
+            release(lock);
+        }
     }
 
     /**
@@ -395,6 +1203,35 @@ public class CVFS {
         }
     }
 
+    /**
+     * Acquires the read or write lock of the disk for a command of this session.
+     *
+     * @param write Whether the command changes the disk.
+     * @return The acquired lock, or {@code null} if there is no disk; to be passed to {@link #release(Lock)}.
+     */
+    private Lock acquire(boolean write){
+        if (disk == null) {
+            return null;
+        }
+        Lock lock = write ? disk.getLock().writeLock() : disk.getLock().readLock();
+        lock.lock();
+        return lock;
+    }
+
+    private PrintStream out(){
+        return out != null ? out : System.out;
+    }
+
+    private PrintStream err(){
+        return err != null ? err : System.err;
+    }
+
+    private static void release(Lock lock){
+        if (lock != null) {
+            lock.unlock();
+        }
+    }
+
     /**
      * Retrieves the current virtual disk.
      *
@@ -404,6 +1241,40 @@ public class CVFS {
         return disk;
     }
 
+    /**
+     * Retrieves the latency histograms and counters of this file system, shared with the sessions opened from it.
+     *
+     * @return The statistics.
+     */
+    public Stats getStats() {
+        return stats;
+    }
+
+    /**
+     * Retrieves the number of commands that can currently be undone.
+     *
+     * @return The size of the undo stack.
+     */
+    public int getUndoCount() {
+        return undoStack.size();
+    }
+
+    /**
+     * Estimates the memory held by the undo and redo stacks.
+     *
+     * @return The sum of {@link Operation#retainedSize()} over both stacks.
+     */
+    long getUndoHistorySize() {
+        long size = 0;
+        for (Operation operation : undoStack) {
+            size += operation.retainedSize();
+        }
+        for (Operation operation : redoStack) {
+            size += operation.retainedSize();
+        }
+        return size;
+    }
+
     /**
      * Retrieves the map of all stored criteria.
      *
@@ -0,0 +1,156 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Document content kept on the heap as deflated UTF-8 bytes.
+ * The character length is stored alongside, so document sizes never need the text;
+ * the bytes are inflated on every call to {@link #getText()}.
+ */
+public class CompressedContent extends Content implements Serializable {
+    private static final long serialVersionUID = 1L;
+    /**
+     * The default number of characters from which new content is compressed.
+     */
+    public static final int DEFAULT_THRESHOLD = 1024;
+    private static volatile int threshold = Integer.getInteger("cvfs.compressThreshold", DEFAULT_THRESHOLD);
+
+    private final byte[] deflated;
+    private final int byteLength;
+    private final int length;
+
+    /**
+     * Constructs content from bytes that are already deflated, e.g. read from a disk image.
+     *
+     * @param deflated   The deflated UTF-8 bytes.
+     * @param byteLength The length of the UTF-8 bytes before deflation.
+     * @param length     The length of the content in characters.
+     */
+    CompressedContent(byte[] deflated, int byteLength, int length) {
+        this.deflated = deflated;
+        this.byteLength = byteLength;
+        this.length = length;
+    }
+
+    /**
+     * Sets the number of characters from which new content is compressed.
+     *
+     * @param characters The minimum length, e.g. {@link Integer#MAX_VALUE} to disable compression.
+     * @throws IllegalArgumentException If the threshold is not positive.
+     */
+    public static void setThreshold(int characters) {
+        if (characters <= 0) {
+            throw new IllegalArgumentException("Compression threshold must be positive.");
+        }
+        threshold = characters;
+    }
+
+    /**
+     * Retrieves the number of characters from which new content is compressed.
+     *
+     * @return The minimum length.
+     */
+    public static int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Creates the content for a text, compressed if it reaches the threshold and deflating makes it smaller.
+     *
+     * @param text The text of a new document.
+     * @return A {@link CompressedContent}, or a {@link TextContent} for short or incompressible text.
+     */
+    public static Content of(String text) {
+        if (text.length() < threshold) {
+            return new TextContent(text);
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        byte[] deflated = deflate(bytes);
+        if (deflated.length >= bytes.length) {
+            return new TextContent(text);
+        }
+        return new CompressedContent(deflated, bytes.length, text.length());
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public String getText() {
+        return inflate(ByteBuffer.wrap(deflated), byteLength);
+    }
+
+    /**
+     * Inflates deflated UTF-8 bytes into text.
+     *
+     * @param deflated   The deflated bytes, e.g. a slice of a mapped disk image; its position is not changed.
+     * @param byteLength The length of the UTF-8 bytes before deflation.
+     * @return The text.
+     * @throws IllegalStateException If the bytes are corrupt or truncated.
+     */
+    static String inflate(ByteBuffer deflated, int byteLength) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated.duplicate());
+            byte[] bytes = new byte[byteLength];
+            int read = 0;
+            while (read < byteLength && !inflater.finished()) {
+                int n = inflater.inflate(bytes, read, byteLength - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != byteLength) {
+                throw new IllegalStateException("Compressed content is truncated.");
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed content is corrupt.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Retrieves the deflated bytes, which disk images store without inflating them.
+     *
+     * @return The deflated UTF-8 bytes; must not be modified.
+     */
+    byte[] getDeflated() {
+        return deflated;
+    }
+
+    /**
+     * Retrieves the length of the UTF-8 bytes before deflation.
+     *
+     * @return The number of bytes.
+     */
+    int getByteLength() {
+        return byteLength;
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 16);
+            byte[] buffer = new byte[Math.min(bytes.length, 8192) + 16];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+}
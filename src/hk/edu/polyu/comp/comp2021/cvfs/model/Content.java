@@ -0,0 +1,24 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.Serializable;
+
+/**
+ * Represents the content of a document.
+ * The length is always available without materializing the text, so document sizes can be computed cheaply.
+ */
+public abstract class Content implements Serializable {
+    private static final long serialVersionUID = 1L;
+    /**
+     * Retrieves the length of the content in characters.
+     *
+     * @return The number of characters.
+     */
+    public abstract int length();
+
+    /**
+     * Retrieves the content as text, materializing it if necessary.
+     *
+     * @return The text of the content.
+     */
+    public abstract String getText();
+}
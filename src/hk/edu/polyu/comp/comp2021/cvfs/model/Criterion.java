@@ -1,11 +1,13 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model;
 
 import java.io.Serializable;
+import java.util.Collection;
 /**
  * Represents an abstract criterion used to evaluate files based on specific conditions.
  * Subclasses of this class define concrete criteria with specific matching logic.
  */
 public abstract class Criterion implements Serializable {
+    private static final long serialVersionUID = -2567474117770152795L; // Unchanged since the original release
     private String name;
 
     /**
@@ -42,6 +44,17 @@ public abstract class Criterion implements Serializable {
      */
     public abstract boolean matches(File file);
 
+    /**
+     * Narrows the files that can match this criterion with the secondary indexes of a disk.
+     * Every match must be among the candidates, but not every candidate has to match.
+     *
+     * @param index The index of the disk.
+     * @return The candidates, or {@code null} if the index cannot narrow the search.
+     */
+    Collection<File> indexedCandidates(FileIndex index) {
+        return null;
+    }
+
     @Override
     public abstract String toString();
 }
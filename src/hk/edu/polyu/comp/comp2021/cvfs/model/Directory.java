@@ -1,17 +1,58 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
 import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Represents a directory in the virtual file system.
- * A directory can contain files and subdirectories, and it tracks its parent directory for navigation.
+ * A directory can contain files and subdirectories.
+ * Children are indexed by name for constant-time lookup and are also linked in insertion order for listing.
+ * Directories do not point to their parents because they may be shared by several snapshots of the tree;
+ * {@link VirtualDisk} tracks the path to the working directory instead, so directories on a disk
+ * should be changed through the disk, which also keeps ancestors and snapshots consistent.
  */
 public class Directory extends File implements Serializable {
-    private final List<File> files;
-    private Directory parent; // Track parent directory for navigation
-    private static final Directory PARENT_OF_ROOT=null;
+    private static final long serialVersionUID = 2L; // Changed since the original release, whose files LegacyImage reads
+    private transient Map<String, Entry> index; // Name-keyed index of the children
+    private transient Entry head; // First child in insertion order
+    private transient Entry tail; // Last child in insertion order
+    private transient int size; // Aggregate size of this directory and everything below it
+    private transient int descendantCount; // Number of files and directories below this directory
+    private transient long savedImage; // The segmented image holding the record of this directory, 0 if changed since
+    private transient long savedOffset; // The position of that record
+    private transient long version; // Incremented by every change of this directory or, through the disk, below it
+    private static final long POSITION_GAP = 1L << 20;
+
+    /**
+     * A node of the insertion-ordered child list.
+     */
+    private static final class Entry {
+        private File file;
+        private Entry prev;
+        private Entry next;
+        private long position; // Increases along the list, see link()
+
+        private Entry(File file) {
+            this.file = file;
+        }
+    }
 
     /**
      * Constructs a new directory with the specified name.
@@ -21,81 +62,121 @@ public class Directory extends File implements Serializable {
      */
     public Directory(String name) {
         super(name);
-        this.files = new ArrayList<>();
-        this.parent = PARENT_OF_ROOT; // Root directory has no parent
+        this.index = new HashMap<>();
+        this.size = DEFAULT_SIZE;
+        this.descendantCount = 0;
     }
 
     /**
-     * Retrieves the list of files and subdirectories within this directory.
+     * Retrieves the files and subdirectories within this directory in insertion order.
+     * The collection is a read-only view; use {@link #addFile(File)} and {@link #removeFile(String)} to modify it.
      *
-     * @return The list of files and subdirectories.
+     * @return The files and subdirectories.
      */
-    public List<File> getFiles() {
-        return files;
+    public Collection<File> getFiles() {
+        return new AbstractCollection<File>() {
+            @Override
+            public Iterator<File> iterator() {
+                return new Iterator<File>() {
+                    private Entry cursor = head;
+
+                    @Override
+                    public boolean hasNext() {
+                        return cursor != null;
+                    }
+
+                    @Override
+                    public File next() {
+                        if (cursor == null) {
+                            throw new NoSuchElementException();
+                        }
+                        File file = cursor.file;
+                        cursor = cursor.next;
+                        return file;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return index.size();
+            }
+        };
     }
 
     /**
-     * Sets the parent directory of this directory.
+     * Adds a file or subdirectory to the end of this directory.
      *
-     * @param parent The parent directory.
+     * @param file The file or subdirectory to add.
+     * @throws StateChangeCommandFailed If a file with the same name already exists in this directory.
      */
-    public void setParent(Directory parent) {
-        this.parent = parent;
+    public void addFile(File file) {
+        insertFile(file, tail);
     }
 
     /**
-     * Retrieves the parent directory of this directory.
+     * Adds a file or subdirectory right after another child, restoring the position it was removed from.
      *
-     * @return The parent directory, or {@code null} if this is the root directory.
+     * @param file         The file or subdirectory to add.
+     * @param previousName The name of the child to insert after, or {@code null} to insert at the beginning.
+     * @throws StateChangeCommandFailed If a file with the same name already exists, or the previous child does not exist.
      */
-    public Directory getParent() {
-        return parent;
+    public void addFileAfter(File file, String previousName) {
+        Entry previous = null;
+        if (previousName != null) {
+            previous = index.get(previousName);
+            if (previous == null) {
+                throw new StateChangeCommandFailed("A file with the name '" + previousName + "' doesn't exist.");
+            }
+        }
+        insertFile(file, previous);
     }
 
-    /**
-     * Adds a file or subdirectory to this directory.
-     *
-     * @param file The file or subdirectory to add.
-     * @throws StateChangeCommandFailed If a file with the same name already exists in this directory.
-     */
-    public void addFile(File file) {
-        File foundFile=findFile(file);
-        if (foundFile!=null) {
+    private void insertFile(File file, Entry previous) {
+        if (index.containsKey(file.getName())) {
             throw new StateChangeCommandFailed("A file with the name '" + file.getName() + "' already exists.");
         }
-        files.add(file);
-        if (file instanceof Directory) {
-            ((Directory) file).setParent(this); // Set parent for subdirectory
-        }
+        link(file, previous);
+        adjustAggregates(file.getSize(), countOf(file));
     }
 
     /**
      * Removes a file or subdirectory by its name from this directory.
      *
      * @param fileName The name of the file or subdirectory to remove.
+     * @return The removed file or subdirectory.
      * @throws StateChangeCommandFailed If no file with the specified name exists in this directory.
      */
-    public void removeFile(String fileName){
-        File foundFile = findFile(fileName);
-        if(foundFile==null){
+    public File removeFile(String fileName){
+        Entry entry = index.remove(fileName);
+        if(entry==null){
             throw new StateChangeCommandFailed("A file with the name '" + fileName + "' doesn't exist.");
         }
-        files.remove(foundFile);
+        unlink(entry);
+        adjustAggregates(-entry.file.getSize(), -countOf(entry.file));
+        return entry.file;
     }
 
     /**
      * Renames a file or subdirectory in this directory.
+     * The file keeps its position in the listing order.
      *
      * @param oldFileName The current name of the file or subdirectory.
      * @param newFileName The new name for the file or subdirectory.
-     * @throws StateChangeCommandFailed If no file with the specified name exists in this directory.
+     * @throws StateChangeCommandFailed If no file with the old name exists, or another file already uses the new name.
      */
     public void renameFile(String oldFileName, String newFileName){
-        File foundFile=findFile(oldFileName);
-        if(foundFile==null) {
+        Entry entry = index.get(oldFileName);
+        if(entry==null) {
             throw new StateChangeCommandFailed("A file with the name '" + oldFileName + "' does not exist.");
         }
-        foundFile.setName(newFileName);
+        if (!oldFileName.equals(newFileName) && index.containsKey(newFileName)) {
+            throw new StateChangeCommandFailed("A file with the name '" + newFileName + "' already exists.");
+        }
+        entry.file.setName(newFileName);
+        index.remove(oldFileName);
+        index.put(newFileName, entry);
+        version++;
     }
 
     /**
@@ -105,10 +186,7 @@ public class Directory extends File implements Serializable {
      * @return The file or subdirectory if found, or {@code null} if not found.
      */
     public File findFile(File file){
-        for (File existingFile : files) {
-            if (existingFile.getName().equals(file.getName())) {return existingFile;}
-        }
-        return null;
+        return findFile(file.getName());
     }
     /**
      * Searches for a file or subdirectory by name in this directory.
@@ -117,10 +195,123 @@ public class Directory extends File implements Serializable {
      * @return The file or subdirectory if found, or {@code null} if not found.
      */
     public File findFile(String fileName){
-        for (File existingFile : files) {
-            if (existingFile.getName().equals(fileName)) {return existingFile;}
+        Entry entry = index.get(fileName);
+        return entry == null ? null : entry.file;
+    }
+
+    /**
+     * Replaces a child with another file of the same name, keeping its position.
+     * The replacement must have the same size and descendant count, e.g. a copy of the child.
+     *
+     * @param fileName    The name of the child to replace.
+     * @param replacement The file to put in its place.
+     */
+    void replaceFile(String fileName, File replacement) {
+        index.get(fileName).file = replacement;
+        version++;
+    }
+
+    /**
+     * Retrieves the name of the last child in listing order.
+     *
+     * @return The name of the last child, or {@code null} if the directory is empty.
+     */
+    public String getLastName() {
+        return tail == null ? null : tail.file.getName();
+    }
+
+    /**
+     * Retrieves the name of the child listed right before the specified one.
+     *
+     * @param fileName The name of the file or subdirectory.
+     * @return The name of the previous child, or {@code null} if the file is listed first or does not exist.
+     */
+    public String getPreviousName(String fileName) {
+        Entry entry = index.get(fileName);
+        if (entry == null || entry.prev == null) {
+            return null;
+        }
+        return entry.prev.file.getName();
+    }
+
+    /**
+     * Links a file into the child list after the given entry and registers it in the index.
+     *
+     * @param file     The file to link.
+     * @param previous The entry to link after, or {@code null} to link at the beginning.
+     */
+    private void link(File file, Entry previous) {
+        Entry entry = new Entry(file);
+        entry.prev = previous;
+        entry.next = previous == null ? head : previous.next;
+        long before = entry.prev == null ? 0 : entry.prev.position;
+        long after = entry.next == null ? before + 2 * POSITION_GAP : entry.next.position;
+        if (after - before < 2) {
+            renumber();
+            before = entry.prev == null ? 0 : entry.prev.position;
+            after = entry.next == null ? before + 2 * POSITION_GAP : entry.next.position;
+        }
+        entry.position = before + (after - before) / 2;
+        if (entry.prev == null) {
+            head = entry;
+        } else {
+            entry.prev.next = entry;
+        }
+        if (entry.next == null) {
+            tail = entry;
+        } else {
+            entry.next.prev = entry;
+        }
+        index.put(file.getName(), entry);
+        version++;
+    }
+
+    /**
+     * Spreads the positions of all children evenly again once there is no room left between two of them.
+     */
+    private void renumber() {
+        long position = 0;
+        for (Entry entry = head; entry != null; entry = entry.next) {
+            position += POSITION_GAP;
+            entry.position = position;
         }
-        return null;
+    }
+
+    /**
+     * Retrieves a number that orders a child among its siblings in listing order.
+     * Positions are only comparable within one directory and may change when the directory is copied.
+     *
+     * @param fileName The name of the child.
+     * @return The position of the child.
+     * @throws StateChangeCommandFailed If no child with this name exists.
+     */
+    public long getPosition(String fileName) {
+        Entry entry = index.get(fileName);
+        if (entry == null) {
+            throw new StateChangeCommandFailed("A file with the name '" + fileName + "' doesn't exist.");
+        }
+        return entry.position;
+    }
+
+    /**
+     * Detaches an entry from the child list. The caller removes it from the index.
+     *
+     * @param entry The entry to detach.
+     */
+    private void unlink(Entry entry) {
+        version++;
+        if (entry.prev == null) {
+            head = entry.next;
+        } else {
+            entry.prev.next = entry.next;
+        }
+        if (entry.next == null) {
+            tail = entry.prev;
+        } else {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
     }
 
     /**
@@ -128,9 +319,7 @@ public class Directory extends File implements Serializable {
      * Also calculates and displays the total count and size of files in the directory.
      */
     public void listFiles() {
-        int[] totals = {0, 0}; // Array to store total file count and size
-        listFiles(this, 0, false, null, totals);
-        System.out.println("\nTotal files: " + totals[0] + ",   Total Size: " + totals[1]);
+        print(false, null, System.out);
     }
 
     /**
@@ -139,7 +328,7 @@ public class Directory extends File implements Serializable {
      * @param criterion The criterion to filter files and subdirectories.
      */
     public void listFiles(Criterion criterion) {
-        listFiles(this, 0, false, criterion, null);
+        print(false, criterion, System.out);
     }
 
     /**
@@ -147,9 +336,7 @@ public class Directory extends File implements Serializable {
      * Also calculates and displays the total count and size of files in the directory tree.
      */
     public void recursiveListFiles() {
-        int[] totals = {0, 0};
-        listFiles(this, 0, true, null, totals);
-        System.out.println("\nTotal files: " + totals[0] + ",   Total Size: " + totals[1]);
+        print(true, null, System.out);
     }
 
     /**
@@ -159,59 +346,218 @@ public class Directory extends File implements Serializable {
      * @param criterion The criterion to filter files and subdirectories.
      */
     public void recursiveListFiles(Criterion criterion) {
-        listFiles(this, 0, true, criterion, null);
+        print(true, criterion, System.out);
+    }
+
+    /**
+     * Lists the files of this directory to an output stream, like the public listing methods do to standard output.
+     * A listing without criterion ends with the total count and size of the files.
+     *
+     * @param recursive Whether to include subdirectories recursively.
+     * @param criterion The criterion to filter files and subdirectories, or {@code null} to include all.
+     * @param out       The stream to print to.
+     */
+    void print(boolean recursive, Criterion criterion, PrintStream out) {
+        int[] totals = criterion == null ? new int[]{0, 0} : null; // Total file count and size
+        listFiles(recursive, criterion, totals, out);
+        if (totals != null) {
+            out.println("\nTotal files: " + totals[0] + ",   Total Size: " + totals[1]);
+        }
+    }
+
+    /**
+     * Lazily lists the files and subdirectories of this directory in depth-first order.
+     * Files are produced one at a time as the stream is consumed, so {@code limit} and other
+     * short-circuiting operations stop the walk early. The directory must not change while the stream is open.
+     *
+     * @param recursive Whether to include the contents of subdirectories.
+     * @param criterion The criterion to filter files and subdirectories, or {@code null} to include all.
+     * @return The matching files with their depth below this directory.
+     */
+    public Stream<ListedFile> stream(boolean recursive, Criterion criterion) {
+        Iterator<ListedFile> iterator = new ListingIterator(this, recursive, criterion);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
     }
 
     // Unified method for listing and searching (flat and recursive)
     /**
      * Unified method for listing files and subdirectories, supporting both flat and recursive views.
      * Optionally filters files by a specified criterion and calculates total file count and size.
+     * Large recursive listings are collected by {@link ParallelLister} and printed in the same order.
      *
-     * @param directory The directory to list files from.
-     * @param level     The current depth in the directory hierarchy.
      * @param recursive Whether to include subdirectories recursively.
      * @param criterion The criterion to filter files and subdirectories, or {@code null} to include all.
      * @param totals    An array to store total file count and size, or {@code null} if not needed.
+     * @param out       The stream to print to.
      */
-    private void listFiles(Directory directory, int level, boolean recursive, Criterion criterion, int[] totals) {
-        StringBuilder temp = new StringBuilder();
-        for (int i = 0; i < level; i++) {
-            temp.append("  ");
+    private void listFiles(boolean recursive, Criterion criterion, int[] totals, PrintStream out) {
+        if (recursive && ParallelLister.shouldParallelize(this)) {
+            printListedFiles(ParallelLister.collect(this, criterion).iterator(), totals, out);
+        } else {
+            printListedFiles(new ListingIterator(this, recursive, criterion), totals, out);
         }
-        String indent = temp.toString();
-
-        for (File file : directory.getFiles()) {
-            boolean matches = criterion == null || criterion.matches(file); // Check criterion
+    }
 
-            if (matches) {
-                System.out.println(indent + file);
-                if(totals!=null){
-                    totals[0]++;
-                    if(level==0) {
-                        totals[1] += file.getSize();
-                    }
+    /**
+     * Prints listed files indented by their depth, two spaces per level.
+     *
+     * @param listedFiles The files in depth-first order with their depth.
+     * @param totals      An array to store total file count and size, or {@code null} if not needed.
+     * @param out         The stream to print to.
+     */
+    static void printListedFiles(Iterator<ListedFile> listedFiles, int[] totals, PrintStream out) {
+        List<String> indents = new ArrayList<>();
+        while (listedFiles.hasNext()) {
+            ListedFile listed = listedFiles.next();
+            int depth = listed.getDepth();
+            while (indents.size() <= depth) {
+                indents.add(indents.isEmpty() ? "" : indents.get(indents.size() - 1) + "  ");
+            }
+            out.println(indents.get(depth) + listed.getFile());
+            if (totals != null) {
+                totals[0]++;
+                if (depth == 0) {
+                    totals[1] += listed.getFile().getSize();
                 }
             }
+        }
+    }
 
-            if (recursive && file instanceof Directory) {
-                listFiles((Directory) file, level + 1, true, criterion, totals);
-            }
+    /**
+     * Applies a change in size and entry count to this directory.
+     * {@link VirtualDisk} applies the same change to the ancestors, so the aggregates stay in sync without walking the subtree.
+     *
+     * @param sizeDelta  The change in size in bytes.
+     * @param countDelta The change in the number of descendants.
+     */
+    void adjustAggregates(int sizeDelta, int countDelta) {
+        size += sizeDelta;
+        descendantCount += countDelta;
+        version++;
+    }
+
+    /**
+     * Counts the entries a file contributes to its ancestors: itself and, for a directory, all of its descendants.
+     *
+     * @param file The file being added or removed.
+     * @return The number of entries represented by the file.
+     */
+    static int countOf(File file) {
+        if (file instanceof Directory) {
+            return 1 + ((Directory) file).getDescendantCount();
         }
+        return 1;
+    }
+
+    /**
+     * Retrieves the number of files and directories contained in this directory and its subdirectories.
+     *
+     * @return The number of descendants.
+     */
+    public int getDescendantCount() {
+        return descendantCount;
     }
 
     /**
-     * Calculates and retrieves the total size of the directory,
+     * Retrieves the total size of the directory,
      * including the sizes of all files and subdirectories it contains.
+     * The value is maintained incrementally by {@link #addFile(File)} and {@link #removeFile(String)}.
      *
      * @return The total size of the directory in bytes.
      */
     @Override
     public int getSize() {
-        int totalSize = DEFAULT_SIZE; // Base size of a directory
-        for (File file : files) {
-            totalSize += file.getSize();
+        return size;
+    }
+
+    /**
+     * Retrieves where this directory was last saved in a segmented image, unless it has changed since.
+     *
+     * @param imageId The identifier of the image.
+     * @return The position of the record of this directory in the image, or -1 if it has to be written again.
+     */
+    long getSavedOffset(long imageId) {
+        return imageId != 0 && savedImage == imageId ? savedOffset : -1;
+    }
+
+    /**
+     * Records where this directory was saved in a segmented image.
+     *
+     * @param imageId The identifier of the image.
+     * @param offset  The position of the record of this directory in the image.
+     */
+    void setSavedOffset(long imageId, long offset) {
+        savedImage = imageId;
+        savedOffset = offset;
+    }
+
+    /**
+     * Marks this directory as changed since it was last saved, so the next save writes it again.
+     */
+    void markChanged() {
+        savedImage = 0;
+        version++;
+    }
+
+    /**
+     * Retrieves the modification version of this directory. It changes whenever this directory changes in place,
+     * and, as long as the tree is changed through {@link VirtualDisk}, whenever anything below it changes,
+     * since the disk copies or marks every directory on the path of a change. A directory object with the same
+     * version therefore still has the same subtree.
+     *
+     * @return The version, only comparable with earlier versions of the same directory object.
+     */
+    long getVersion() {
+        return version;
+    }
+
+    @Override
+    File copy(Object owner) {
+        Directory copy = new Directory(getName());
+        for (Entry entry = head; entry != null; entry = entry.next) {
+            copy.link(entry.file, copy.tail);
+        }
+        copy.size = size;
+        copy.descendantCount = descendantCount;
+        copy.setOwner(owner);
+        return copy;
+    }
+
+    /**
+     * Writes the children in listing order instead of serializing the linked entries,
+     * which would otherwise recurse once per sibling.
+     *
+     * @param out The stream to write to.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(index.size());
+        for (Entry entry = head; entry != null; entry = entry.next) {
+            out.writeObject(entry.file);
+        }
+    }
+
+    /**
+     * Rebuilds the index, the child list and the aggregates from the children written by
+     * {@link #writeObject(ObjectOutputStream)}.
+     *
+     * @param in The stream to read from.
+     * @throws IOException            If an I/O error occurs.
+     * @throws ClassNotFoundException If a child class cannot be found.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        index = new HashMap<>();
+        size = DEFAULT_SIZE;
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            File file = (File) in.readObject();
+            link(file, tail);
+            size += file.getSize();
+            descendantCount += countOf(file);
         }
-        return totalSize;
     }
 
     /**
@@ -223,4 +569,51 @@ public class Directory extends File implements Serializable {
     public String toString() {
         return getName() + ", Size: " + getSize();
     }
+
+    /**
+     * Walks a directory depth-first with an explicit stack of child iterators,
+     * stopping at each matching file until it is requested.
+     */
+    private static final class ListingIterator implements Iterator<ListedFile> {
+        private final Deque<Iterator<File>> stack = new ArrayDeque<>();
+        private final boolean recursive;
+        private final Criterion criterion;
+        private ListedFile next;
+
+        private ListingIterator(Directory directory, boolean recursive, Criterion criterion) {
+            this.recursive = recursive;
+            this.criterion = criterion;
+            stack.push(directory.getFiles().iterator());
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !stack.isEmpty()) {
+                Iterator<File> files = stack.peek();
+                if (!files.hasNext()) {
+                    stack.pop();
+                    continue;
+                }
+                File file = files.next();
+                int depth = stack.size() - 1;
+                if (criterion == null || criterion.matches(file)) {
+                    next = new ListedFile(file, depth);
+                }
+                if (recursive && file instanceof Directory) {
+                    stack.push(((Directory) file).getFiles().iterator());
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public ListedFile next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ListedFile result = next;
+            next = null;
+            return result;
+        }
+    }
 }
@@ -0,0 +1,737 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes the compact binary image of a virtual disk (REQ15, REQ16, BON1).
+ * <p>
+ * Layout of version 3, all numbers big-endian, "varint" meaning an unsigned LEB128 integer:
+ * <pre>
+ * int    magic "CVFS"
+ * short  version
+ * byte   flags (bit 0: criteria included)
+ * int    maximum disk size
+ * int    number of entries, including the root
+ * int    number of strings
+ * int    number of criteria
+ * int    number of blobs
+ * string table    varint byte length + UTF-8 bytes, for every distinct name, type and criterion string
+ * blob table      32-byte SHA-256 hash, byte encoding, varint char length, varint UTF-8 byte length, then
+ *                 encoding 0: the UTF-8 bytes; encoding 1: varint deflated length + deflated UTF-8 bytes;
+ *                 once for every distinct document content (see {@link BlobStore}, {@link CompressedContent})
+ * tree            pre-order; per entry: byte kind, varint name id, then
+ *                 document:  varint type id, varint blob id
+ *                 directory: varint child count, children
+ * working path    varint depth, name id of every directory below the root
+ * criteria        per criterion: byte kind, varint name id, kind specific fields referring to
+ *                 strings and to earlier criteria by id; then varint map size, (key id, criterion id) pairs
+ * </pre>
+ * Version 2 has no encoding byte and stores every blob as UTF-8. Version 1 has no blob table and no blob count;
+ * its documents store varint char length, varint byte length and the UTF-8 content inline instead of a blob id.
+ * Both are still read, and so is version 4, the segmented image that {@link CVFS} saves (see {@link SegmentedImage}).
+ * <p>
+ * Files are streamed through a fixed-size buffer over a {@link FileChannel}, or read from a memory mapping
+ * in which case document content stays in the mapping until it is accessed (see {@link MappedContent}).
+ * Images are written to a temporary file that then replaces the target, so a mapped image stays intact
+ * while the disk is saved over it.
+ */
+public class DiskImage {
+    /**
+     * The first four bytes of every image, "CVFS" in ASCII.
+     */
+    public static final int MAGIC = 0x43564653;
+    /**
+     * The version of the layout written by this class.
+     */
+    public static final short VERSION = 3;
+    private static final short VERSION_INLINE_CONTENT = 1;
+    private static final short VERSION_UTF8_BLOBS = 2;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte FLAG_CRITERIA = 1;
+    private static final byte ENCODING_UTF8 = 0;
+    private static final byte ENCODING_DEFLATE = 1;
+    private static final byte KIND_DOCUMENT = 0;
+    private static final byte KIND_DIRECTORY = 1;
+    private static final byte KIND_IS_DOCUMENT = 0;
+    private static final byte KIND_SIMPLE = 1;
+    private static final byte KIND_NEGATION = 2;
+    private static final byte KIND_BINARY = 3;
+
+    private final VirtualDisk disk;
+    private final Map<String, Criterion> criterionMap;
+
+    DiskImage(VirtualDisk disk, Map<String, Criterion> criterionMap) {
+        this.disk = disk;
+        this.criterionMap = criterionMap;
+    }
+
+    /**
+     * Retrieves the loaded virtual disk.
+     *
+     * @return The virtual disk.
+     */
+    public VirtualDisk getDisk() {
+        return disk;
+    }
+
+    /**
+     * Retrieves the loaded criteria.
+     *
+     * @return The criterion map, or {@code null} if the image was saved without criteria.
+     */
+    public Map<String, Criterion> getCriterionMap() {
+        return criterionMap;
+    }
+
+    /**
+     * Checks whether a file starts with the image magic number, as opposed to a legacy serialized disk.
+     *
+     * @param path The file to check.
+     * @return {@code true} if the file is a binary disk image.
+     * @throws IOException If the file cannot be read.
+     */
+    public static boolean isImage(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading until the magic number is complete or the file ends.
+            }
+            return !buffer.hasRemaining() && buffer.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Writes a virtual disk and optionally its criteria to a file.
+     *
+     * @param path         The file to write.
+     * @param disk         The virtual disk.
+     * @param criterionMap The criteria to include, or {@code null} to save the disk only.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(Path path, VirtualDisk disk, Map<String, Criterion> criterionMap) throws IOException {
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        Map<Content, Integer> blobIds = new IdentityHashMap<>();
+        List<Content> blobs = new ArrayList<>();
+        BlobStore store = disk.getBlobStore(); // Makes equal content of the live tree share one object
+        collectStrings(disk.getRoot(), strings, blobIds, blobs);
+        List<Criterion> criteria = new ArrayList<>();
+        Map<Criterion, Integer> criterionIds = new IdentityHashMap<>();
+        if (criterionMap != null) {
+            for (Map.Entry<String, Criterion> entry : criterionMap.entrySet()) {
+                intern(entry.getKey(), strings);
+                collectCriterion(entry.getValue(), criteria, criterionIds, strings);
+            }
+        }
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output out = new Output(channel);
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeByte(criterionMap != null ? FLAG_CRITERIA : 0);
+            out.writeInt(disk.getMaxSize());
+            out.writeInt(disk.getRoot().getDescendantCount() + 1);
+            out.writeInt(strings.size());
+            out.writeInt(criteria.size());
+            out.writeInt(blobs.size());
+            for (String string : strings.keySet()) {
+                out.writeString(string);
+            }
+            for (Content blob : blobs) {
+                writeBlob(out, blob, store.getHash(blob));
+            }
+            writeFile(out, disk.getRoot(), strings, blobIds);
+            List<Directory> workingPath = disk.getPath();
+            out.writeVarInt(workingPath.size() - 1);
+            for (int i = 1; i < workingPath.size(); i++) {
+                out.writeVarInt(strings.get(workingPath.get(i).getName()));
+            }
+            if (criterionMap != null) {
+                for (Criterion criterion : criteria) {
+                    writeCriterion(out, criterion, criterionIds, strings);
+                }
+                out.writeVarInt(criterionMap.size());
+                for (Map.Entry<String, Criterion> entry : criterionMap.entrySet()) {
+                    out.writeVarInt(strings.get(entry.getKey()));
+                    out.writeVarInt(criterionIds.get(entry.getValue()));
+                }
+            }
+            out.flush();
+            channel.force(false); // The image must be complete before it replaces the old one
+        }
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads a virtual disk and its criteria, if any, from a file.
+     *
+     * @param path The file to read.
+     * @return The loaded image.
+     * @throws IOException If the file cannot be read or is not a valid image.
+     */
+    public static DiskImage read(Path path) throws IOException {
+        return read(path, false);
+    }
+
+    /**
+     * Reads a virtual disk and its criteria, if any, from a file.
+     * In mapped mode the file is memory-mapped: the directory tree is built eagerly, while every document
+     * only keeps the location of its content, so load time and heap usage depend on the metadata alone.
+     * Documents of a version 2 or 3 image share one content object per blob, and the disk gets a {@link BlobStore}
+     * seeded with the stored hashes, so no content has to be read to deduplicate new documents.
+     * Deflated blobs stay deflated, on the heap or in the mapping, until they are read.
+     *
+     * @param path   The file to read.
+     * @param mapped Whether to map the file and leave document content in the mapping.
+     * @return The loaded image.
+     * @throws IOException If the file cannot be read or is not a valid image.
+     */
+    public static DiskImage read(Path path, boolean mapped) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Input in;
+            if (mapped) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Disk image is too large to be mapped.");
+                }
+                in = new Input(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), true);
+            } else {
+                in = new Input(channel);
+            }
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a CVFS disk image.");
+            }
+            short version = in.readShort();
+            if (version == SegmentedImage.VERSION) {
+                return SegmentedImage.read(channel, mapped);
+            }
+            if (version < VERSION_INLINE_CONTENT || version > VERSION) {
+                throw new IOException("Unsupported disk image version " + version + ".");
+            }
+            boolean withCriteria = (in.readByte() & FLAG_CRITERIA) != 0;
+            int maxSize = in.readInt();
+            in.readInt(); // Entry count, only needed by readers that preallocate
+            String[] strings = new String[in.readInt()];
+            Criterion[] criteria = new Criterion[in.readInt()];
+            Content[] blobs = version == VERSION_INLINE_CONTENT ? null : new Content[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readString();
+            }
+            BlobStore store = null;
+            if (blobs != null) {
+                store = new BlobStore();
+                for (int i = 0; i < blobs.length; i++) {
+                    byte[] hash = in.readBytes(BlobStore.HASH_LENGTH);
+                    blobs[i] = readBlob(in, version);
+                    store.register(hash, blobs[i]);
+                }
+            }
+            File root = readFile(in, strings, blobs);
+            if (!(root instanceof Directory)) {
+                throw new IOException("Disk image root is not a directory.");
+            }
+            if (store != null) {
+                store.retainAll(root);
+            }
+            VirtualDisk disk = new VirtualDisk(maxSize, (Directory) root, store);
+            int depth = in.readVarInt();
+            for (int i = 0; i < depth; i++) {
+                disk.changeDirectory(strings[in.readVarInt()]);
+            }
+            Map<String, Criterion> criterionMap = null;
+            if (withCriteria) {
+                for (int i = 0; i < criteria.length; i++) {
+                    criteria[i] = readCriterion(in, strings, criteria);
+                }
+                int mapSize = in.readVarInt();
+                criterionMap = new HashMap<>();
+                for (int i = 0; i < mapSize; i++) {
+                    String key = strings[in.readVarInt()];
+                    criterionMap.put(key, criteria[in.readVarInt()]);
+                }
+            }
+            return new DiskImage(disk, criterionMap);
+        } catch (StateChangeCommandFailed | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupted disk image: " + e.getMessage(), e);
+        }
+    }
+
+    private static void collectStrings(File file, Map<String, Integer> strings,
+                                       Map<Content, Integer> blobIds, List<Content> blobs) {
+        intern(file.getName(), strings);
+        if (file instanceof Document) {
+            intern(((Document) file).getType(), strings);
+            Content content = ((Document) file).getContentObject();
+            if (!blobIds.containsKey(content)) {
+                blobIds.put(content, blobs.size());
+                blobs.add(content);
+            }
+        } else {
+            for (File child : ((Directory) file).getFiles()) {
+                collectStrings(child, strings, blobIds, blobs);
+            }
+        }
+    }
+
+    private static void intern(String string, Map<String, Integer> strings) {
+        if (!strings.containsKey(string)) {
+            strings.put(string, strings.size());
+        }
+    }
+
+    /**
+     * Adds a criterion after all criteria it depends on, so that readers can resolve references by id.
+     */
+    private static void collectCriterion(Criterion criterion, List<Criterion> criteria,
+                                         Map<Criterion, Integer> criterionIds, Map<String, Integer> strings) {
+        if (criterionIds.containsKey(criterion)) {
+            return;
+        }
+        intern(criterion.getName(), strings);
+        if (criterion instanceof SimpleCriterion) {
+            SimpleCriterion simple = (SimpleCriterion) criterion;
+            intern(simple.getAttrName(), strings);
+            intern(simple.getOperator(), strings);
+            intern(simple.getValue(), strings);
+        } else if (criterion instanceof NegationCriterion) {
+            collectCriterion(((NegationCriterion) criterion).getInnerCriterion(), criteria, criterionIds, strings);
+        } else if (criterion instanceof BinaryCriterion) {
+            BinaryCriterion binary = (BinaryCriterion) criterion;
+            collectCriterion(binary.getFirstCriterion(), criteria, criterionIds, strings);
+            collectCriterion(binary.getSecondCriterion(), criteria, criterionIds, strings);
+            intern(binary.getLogicOp(), strings);
+        }
+        criterionIds.put(criterion, criteria.size());
+        criteria.add(criterion);
+    }
+
+    private static void writeFile(Output out, File file, Map<String, Integer> strings,
+                                  Map<Content, Integer> blobIds) throws IOException {
+        if (file instanceof Document) {
+            Document doc = (Document) file;
+            out.writeByte(KIND_DOCUMENT);
+            out.writeVarInt(strings.get(doc.getName()));
+            out.writeVarInt(strings.get(doc.getType()));
+            out.writeVarInt(blobIds.get(doc.getContentObject()));
+        } else {
+            Directory dir = (Directory) file;
+            out.writeByte(KIND_DIRECTORY);
+            out.writeVarInt(strings.get(dir.getName()));
+            out.writeVarInt(dir.getFiles().size());
+            for (File child : dir.getFiles()) {
+                writeFile(out, child, strings, blobIds);
+            }
+        }
+    }
+
+    /**
+     * Reads an entry and its children; {@code blobs} is {@code null} for a version 1 image with inline content.
+     */
+    private static File readFile(Input in, String[] strings, Content[] blobs) throws IOException {
+        byte kind = in.readByte();
+        String name = strings[in.readVarInt()];
+        if (kind == KIND_DOCUMENT) {
+            String type = strings[in.readVarInt()];
+            return new Document(name, type, blobs != null ? blobs[in.readVarInt()] : readContent(in));
+        }
+        if (kind != KIND_DIRECTORY) {
+            throw new IOException("Unknown entry kind " + kind + ".");
+        }
+        Directory dir = new Directory(name);
+        int childCount = in.readVarInt();
+        for (int i = 0; i < childCount; i++) {
+            dir.addFile(readFile(in, strings, blobs)); // Children are complete, so the aggregates are correct
+        }
+        return dir;
+    }
+
+    /**
+     * Writes the hash and content of a blob; deflated content is copied without inflating it.
+     */
+    static void writeBlob(Output out, Content blob, byte[] hash) throws IOException {
+        out.writeBytes(hash);
+        if (blob instanceof CompressedContent) {
+            CompressedContent compressed = (CompressedContent) blob;
+            writeDeflated(out, compressed.length(), compressed.getByteLength(), compressed.getDeflated());
+        } else if (blob instanceof MappedContent && ((MappedContent) blob).getInflatedLength() >= 0) {
+            MappedContent mapped = (MappedContent) blob;
+            ByteBuffer deflated = mapped.getBytes();
+            byte[] bytes = new byte[deflated.remaining()];
+            deflated.get(bytes);
+            writeDeflated(out, mapped.length(), mapped.getInflatedLength(), bytes);
+        } else {
+            String text = blob.getText();
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            out.writeByte(ENCODING_UTF8);
+            out.writeVarInt(text.length());
+            out.writeVarInt(bytes.length);
+            out.writeBytes(bytes);
+        }
+    }
+
+    /**
+     * Reads the content of a blob after its hash, in the encoding of the given image version.
+     */
+    static Content readBlob(Input in, short version) throws IOException {
+        byte encoding = version == VERSION_UTF8_BLOBS ? ENCODING_UTF8 : in.readByte();
+        if (encoding == ENCODING_DEFLATE) {
+            int length = in.readVarInt();
+            int byteLength = in.readVarInt();
+            int deflatedLength = in.readVarInt();
+            return in.isMapped()
+                    ? new MappedContent(in.slice(deflatedLength), length, byteLength)
+                    : new CompressedContent(in.readBytes(deflatedLength), byteLength, length);
+        } else if (encoding == ENCODING_UTF8) {
+            return readContent(in);
+        }
+        throw new IOException("Unknown blob encoding " + encoding + ".");
+    }
+
+    /**
+     * Writes criteria with their own string table, laid out like the criteria of a whole image.
+     */
+    static void writeCriteria(Output out, Map<String, Criterion> criterionMap) throws IOException {
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        List<Criterion> criteria = new ArrayList<>();
+        Map<Criterion, Integer> criterionIds = new IdentityHashMap<>();
+        for (Map.Entry<String, Criterion> entry : criterionMap.entrySet()) {
+            intern(entry.getKey(), strings);
+            collectCriterion(entry.getValue(), criteria, criterionIds, strings);
+        }
+        out.writeVarInt(strings.size());
+        for (String string : strings.keySet()) {
+            out.writeString(string);
+        }
+        out.writeVarInt(criteria.size());
+        for (Criterion criterion : criteria) {
+            writeCriterion(out, criterion, criterionIds, strings);
+        }
+        out.writeVarInt(criterionMap.size());
+        for (Map.Entry<String, Criterion> entry : criterionMap.entrySet()) {
+            out.writeVarInt(strings.get(entry.getKey()));
+            out.writeVarInt(criterionIds.get(entry.getValue()));
+        }
+    }
+
+    /**
+     * Reads criteria written by {@link #writeCriteria(Output, Map)}.
+     */
+    static Map<String, Criterion> readCriteria(Input in) throws IOException {
+        String[] strings = new String[in.readVarInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readString();
+        }
+        Criterion[] criteria = new Criterion[in.readVarInt()];
+        for (int i = 0; i < criteria.length; i++) {
+            criteria[i] = readCriterion(in, strings, criteria);
+        }
+        int mapSize = in.readVarInt();
+        Map<String, Criterion> criterionMap = new HashMap<>();
+        for (int i = 0; i < mapSize; i++) {
+            String key = strings[in.readVarInt()];
+            criterionMap.put(key, criteria[in.readVarInt()]);
+        }
+        return criterionMap;
+    }
+
+    private static void writeDeflated(Output out, int length, int byteLength, byte[] deflated) throws IOException {
+        out.writeByte(ENCODING_DEFLATE);
+        out.writeVarInt(length);
+        out.writeVarInt(byteLength);
+        out.writeVarInt(deflated.length);
+        out.writeBytes(deflated);
+    }
+
+    private static Content readContent(Input in) throws IOException {
+        int length = in.readVarInt();
+        int byteLength = in.readVarInt();
+        if (in.isMapped()) {
+            return new MappedContent(in.slice(byteLength), length);
+        }
+        return new TextContent(new String(in.readBytes(byteLength), StandardCharsets.UTF_8));
+    }
+
+    private static void writeCriterion(Output out, Criterion criterion, Map<Criterion, Integer> criterionIds,
+                                       Map<String, Integer> strings) throws IOException {
+        if (criterion instanceof IsDocumentCriterion) {
+            out.writeByte(KIND_IS_DOCUMENT);
+            out.writeVarInt(strings.get(criterion.getName()));
+        } else if (criterion instanceof SimpleCriterion) {
+            SimpleCriterion simple = (SimpleCriterion) criterion;
+            out.writeByte(KIND_SIMPLE);
+            out.writeVarInt(strings.get(simple.getName()));
+            out.writeVarInt(strings.get(simple.getAttrName()));
+            out.writeVarInt(strings.get(simple.getOperator()));
+            out.writeVarInt(strings.get(simple.getValue()));
+        } else if (criterion instanceof NegationCriterion) {
+            out.writeByte(KIND_NEGATION);
+            out.writeVarInt(strings.get(criterion.getName()));
+            out.writeVarInt(criterionIds.get(((NegationCriterion) criterion).getInnerCriterion()));
+        } else if (criterion instanceof BinaryCriterion) {
+            BinaryCriterion binary = (BinaryCriterion) criterion;
+            out.writeByte(KIND_BINARY);
+            out.writeVarInt(strings.get(binary.getName()));
+            out.writeVarInt(criterionIds.get(binary.getFirstCriterion()));
+            out.writeVarInt(strings.get(binary.getLogicOp()));
+            out.writeVarInt(criterionIds.get(binary.getSecondCriterion()));
+        } else {
+            throw new IOException("Unsupported criterion type " + criterion.getClass().getSimpleName() + ".");
+        }
+    }
+
+    private static Criterion readCriterion(Input in, String[] strings, Criterion[] criteria) throws IOException {
+        byte kind = in.readByte();
+        String name = strings[in.readVarInt()];
+        switch (kind) {
+            case KIND_IS_DOCUMENT:
+                return new IsDocumentCriterion();
+            case KIND_SIMPLE:
+                return new SimpleCriterion(name, strings[in.readVarInt()], strings[in.readVarInt()], strings[in.readVarInt()]);
+            case KIND_NEGATION:
+                return new NegationCriterion(name, criteria[in.readVarInt()]);
+            case KIND_BINARY:
+                Criterion first = criteria[in.readVarInt()];
+                String logicOp = strings[in.readVarInt()];
+                return new BinaryCriterion(name, first, logicOp, criteria[in.readVarInt()]);
+            default:
+                throw new IOException("Unknown criterion kind " + kind + ".");
+        }
+    }
+
+    /**
+     * Buffered writer of big-endian numbers and bytes over a channel, starting at the position of the channel.
+     */
+    static final class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Retrieves the position in the file the next byte will be written to.
+         */
+        long position() throws IOException {
+            return channel.position() + buffer.position();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void writeByte(int value) throws IOException {
+            ensure(1);
+            buffer.put((byte) value);
+        }
+
+        void writeShort(short value) throws IOException {
+            ensure(2);
+            buffer.putShort(value);
+        }
+
+        void writeInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void writeVarInt(int value) throws IOException {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        void writeLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        void writeVarLong(long value) throws IOException {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        void writeString(String string) throws IOException {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            writeBytes(bytes);
+        }
+
+        void writeBytes(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Reader of big-endian numbers and bytes, either buffered over a channel or directly over a mapping.
+     */
+    static final class Input {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final boolean mapped;
+
+        private Input(FileChannel channel) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            this.mapped = false;
+            buffer.flip();
+        }
+
+        /**
+         * Reads from a buffer holding the whole file.
+         *
+         * @param mapping The buffer, positioned at the start of the file.
+         * @param mapped  Whether document content may keep referring to the buffer instead of being copied.
+         */
+        Input(ByteBuffer mapping, boolean mapped) {
+            this.channel = null;
+            this.buffer = mapping;
+            this.mapped = mapped;
+        }
+
+        boolean isMapped() {
+            return mapped;
+        }
+
+        /**
+         * Moves to a position of a file read from a buffer.
+         */
+        void seek(long position) throws IOException {
+            if (channel != null || position < 0 || position > buffer.limit()) {
+                throw new IOException("Invalid position " + position + " in disk image.");
+            }
+            buffer.position((int) position);
+        }
+
+        /**
+         * Returns the next bytes of a mapped image as a read-only view and skips them.
+         */
+        ByteBuffer slice(int length) throws IOException {
+            ensure(length);
+            ByteBuffer slice = buffer.slice(buffer.position(), length).asReadOnlyBuffer();
+            buffer.position(buffer.position() + length);
+            return slice;
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            if (channel == null) {
+                throw new IOException("Unexpected end of disk image.");
+            }
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Unexpected end of disk image.");
+                }
+            }
+            buffer.flip();
+        }
+
+        byte readByte() throws IOException {
+            ensure(1);
+            return buffer.get();
+        }
+
+        short readShort() throws IOException {
+            ensure(2);
+            return buffer.getShort();
+        }
+
+        int readInt() throws IOException {
+            ensure(4);
+            return buffer.getInt();
+        }
+
+        int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed number in disk image.");
+        }
+
+        long readLong() throws IOException {
+            ensure(8);
+            return buffer.getLong();
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed number in disk image.");
+        }
+
+        String readString() throws IOException {
+            return new String(readBytes(readVarInt()), StandardCharsets.UTF_8);
+        }
+
+        byte[] readBytes(int length) throws IOException {
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                if (!buffer.hasRemaining()) {
+                    ensure(1);
+                }
+                int chunk = Math.min(buffer.remaining(), length - offset);
+                buffer.get(bytes, offset, chunk);
+                offset += chunk;
+            }
+            return bytes;
+        }
+    }
+}
@@ -1,14 +1,17 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model;
 
 import java.io.Serializable;
+import java.util.regex.Pattern;
 
 /**
  * Represents a document in the virtual file system.
  * A document has a name, type, and content, and its size is calculated based on its content length.
  */
 public class Document extends File implements Serializable {
+    private static final long serialVersionUID = 2L; // Changed since the original release, whose files LegacyImage reads
+    private static final Pattern TYPE_PATTERN = Pattern.compile("^(txt|java|html|css)$");
     private String type;
-    private final String content;
+    private Content content;
 
     /**
      * Constructs a new document with the specified name, type, and content.
@@ -19,11 +22,30 @@ public class Document extends File implements Serializable {
      * @throws StateChangeCommandFailed If the document type is invalid.
      */
     public Document(String name, String type, String content){
+        this(name, type, new TextContent(content));
+    }
+
+    /**
+     * Constructs a new document whose content is provided by a {@link Content}, e.g. one mapped from a disk image.
+     *
+     * @param name    The name of the document.
+     * @param type    The type of the document (e.g., txt, java, html, css).
+     * @param content The content of the document.
+     * @throws StateChangeCommandFailed If the document type is invalid.
+     */
+    Document(String name, String type, Content content){
         super(name);
         this.setType(type);
         this.content=content;
     }
 
+    @Override
+    File copy(Object owner) {
+        Document copy = new Document(getName(), type, content);
+        copy.setOwner(owner);
+        return copy;
+    }
+
     /**
      * Sets the type of the document. The type must be one of the allowed values: txt, java, html, css.
      *
@@ -31,7 +53,7 @@ public class Document extends File implements Serializable {
      * @throws StateChangeCommandFailed If the document type is not one of the allowed values.
      */
     private void setType(String type){
-        if (!type.matches("^(txt|java|html|css)$")) {
+        if (!TYPE_PATTERN.matcher(type).matches()) {
             throw new StateChangeCommandFailed("File type must be one of the following: txt, java, html, css.");
         }
         this.type=type;
@@ -46,9 +68,37 @@ public class Document extends File implements Serializable {
         return type;
     }
 
+    /**
+     * Retrieves the content of the document, materializing it if it is still in a mapped image.
+     *
+     * @return The content of the document.
+     */
+    public String getContent(){
+        return content.getText();
+    }
+
+    /**
+     * Retrieves the content object, which may be shared with other documents by a {@link BlobStore}.
+     *
+     * @return The content.
+     */
+    Content getContentObject(){
+        return content;
+    }
+
+    /**
+     * Replaces the content with an equal content object, e.g. the shared blob of a {@link BlobStore}.
+     * The text, and therefore the size, must not change, because the document may be shared by snapshots.
+     *
+     * @param content The equal content.
+     */
+    void setContentObject(Content content){
+        this.content=content;
+    }
+
     /**
      * Calculates and retrieves the size of the document.
-     * The size is calculated as {@code content length * 2 + DEFAULT_SIZE}.
+     * The size is calculated as {@code content length * 2 + DEFAULT_SIZE} without materializing the content.
      *
      * @return The size of the document in bytes.
      */
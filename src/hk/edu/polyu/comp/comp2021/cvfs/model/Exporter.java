@@ -0,0 +1,167 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes a {@link Directory} subtree to the host file system, as directories and {@code <name>.<type>} files.
+ * <p>
+ * All directories are created first by one thread; the content of the documents is then written through
+ * {@link FileChannel}s on a fixed pool of {@link #getThreads()} threads. The subtree must not change while it is
+ * written, e.g. because it was frozen by {@link VirtualDisk#capture()}, so other sessions can keep changing the disk.
+ */
+public class Exporter {
+    /**
+     * The default number of threads writing files.
+     */
+    public static final int DEFAULT_THREADS = 8;
+    private static final int PROGRESS_STEPS = 10;
+    private static volatile int threads = Integer.getInteger("cvfs.exportThreads", DEFAULT_THREADS);
+
+    private Exporter() {
+    }
+
+    /**
+     * What an export wrote.
+     */
+    public static final class Result {
+        private final int documents;
+        private final long bytesWritten;
+
+        private Result(int documents, long bytesWritten) {
+            this.documents = documents;
+            this.bytesWritten = bytesWritten;
+        }
+
+        /**
+         * Retrieves the number of documents written.
+         *
+         * @return The number of files.
+         */
+        public int getDocuments() {
+            return documents;
+        }
+
+        /**
+         * Retrieves the number of bytes of content written.
+         *
+         * @return The number of bytes.
+         */
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+    }
+
+    /**
+     * Sets the number of threads that write documents during an export.
+     *
+     * @param count The number of threads.
+     * @throws IllegalArgumentException If the count is not positive.
+     */
+    public static void setThreads(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Export threads must be positive.");
+        }
+        threads = count;
+    }
+
+    /**
+     * Retrieves the number of threads that write documents during an export.
+     *
+     * @return The number of threads.
+     */
+    public static int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Writes the files and subdirectories of a directory into a host directory, creating it if needed and
+     * replacing files of the same names.
+     *
+     * @param dir      The directory to export, which must not change meanwhile.
+     * @param hostDir  The host directory to write to.
+     * @param progress The stream to report every tenth of the written documents to, or {@code null}.
+     * @return The number of documents and bytes written.
+     * @throws IOException If a directory or file cannot be written, or the thread is interrupted.
+     */
+    public static Result write(Directory dir, Path hostDir, PrintStream progress) throws IOException {
+        List<Document> documents = new ArrayList<>();
+        List<Path> paths = new ArrayList<>();
+        createDirectories(dir, hostDir, documents, paths);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "cvfs-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Integer>> writes = new ArrayList<>(documents.size());
+            for (int i = 0; i < documents.size(); i++) {
+                Document doc = documents.get(i);
+                Path path = paths.get(i);
+                writes.add(pool.submit(() -> writeDocument(doc, path)));
+            }
+            long bytes = 0;
+            int reported = 0;
+            for (int i = 0; i < writes.size(); i++) {
+                bytes += writes.get(i).get();
+                int step = (i + 1) * PROGRESS_STEPS / writes.size();
+                if (progress != null && step > reported) {
+                    reported = step;
+                    progress.println("Exported " + (i + 1) + " of " + writes.size() + " documents");
+                }
+            }
+            return new Result(documents.size(), bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while exporting.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates the host directory of a directory and of every subdirectory, collecting the documents to write.
+     */
+    private static void createDirectories(Directory dir, Path hostDir, List<Document> documents, List<Path> paths)
+            throws IOException {
+        Files.createDirectories(hostDir);
+        for (File file : dir.getFiles()) {
+            if (file instanceof Document) {
+                Document doc = (Document) file;
+                documents.add(doc);
+                paths.add(hostDir.resolve(doc.getName() + "." + doc.getType()));
+            } else {
+                createDirectories((Directory) file, hostDir.resolve(file.getName()), documents, paths);
+            }
+        }
+    }
+
+    private static int writeDocument(Document doc, Path path) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(doc.getContent().getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+        return bytes.limit();
+    }
+}
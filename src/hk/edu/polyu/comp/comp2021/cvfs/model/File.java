@@ -1,6 +1,7 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model;
 
 import java.io.Serializable;
+import java.util.regex.Pattern;
 
 /**
  * Represents an abstract file in the virtual file system.
@@ -8,7 +9,10 @@ import java.io.Serializable;
  * Each file has a name and a default size.
  */
 public abstract class File implements Serializable {
+    private static final long serialVersionUID = 2875056720452520569L; // Unchanged since the original release
+    private static final Pattern NAME_PATTERN = Pattern.compile("^[a-zA-Z0-9]*$");
     private String name;
+    private transient Object owner; // Disk token that may change this file in place, see VirtualDisk
     /**
      * The default size of a file in bytes.
      */
@@ -34,7 +38,7 @@ public abstract class File implements Serializable {
         if (name.length() > 10) {
             throw new StateChangeCommandFailed("File name must not exceed 10 characters.");
         }
-        if (!name.matches("^[a-zA-Z0-9]*$")) {
+        if (!NAME_PATTERN.matcher(name).matches()) {
             throw new StateChangeCommandFailed("File name can only contain letters and digits.");
         }
         // Ensure it is not empty; assign a default name if necessary
@@ -60,6 +64,33 @@ public abstract class File implements Serializable {
         return DEFAULT_SIZE;
     }
 
+    /**
+     * Retrieves the token of the disk state that may change this file in place.
+     *
+     * @return The owner token, or {@code null} if the file was never copied by a disk.
+     */
+    Object getOwner(){
+        return owner;
+    }
+
+    /**
+     * Sets the token of the disk state that may change this file in place.
+     *
+     * @param owner The owner token.
+     */
+    void setOwner(Object owner){
+        this.owner = owner;
+    }
+
+    /**
+     * Creates a shallow copy of this file that can be changed without affecting the original.
+     * Used by {@link VirtualDisk} to copy nodes shared with a snapshot.
+     *
+     * @param owner The token of the disk state that owns the copy.
+     * @return The copy.
+     */
+    abstract File copy(Object owner);
+
     @Override
     public abstract String toString();
 }
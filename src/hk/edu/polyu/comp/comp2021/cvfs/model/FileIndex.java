@@ -0,0 +1,380 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Disk-wide secondary indexes over the live directory tree of a {@link VirtualDisk}.
+ * Maps every file to its parent directory, documents to their type, files to their size in a sorted map,
+ * and every {@value #GRAM_LENGTH}-character substring (trigram) of a name to the files having it,
+ * so that selective criteria find their candidates without scanning the disk.
+ * The index is maintained by the mutating methods of {@link VirtualDisk}; it only describes the live tree,
+ * not the snapshots that share nodes with it.
+ */
+public class FileIndex {
+    private final Map<File, Directory> parents = new IdentityHashMap<>();
+    private final Map<String, Set<File>> byType = new HashMap<>();
+    private final TreeMap<Integer, Set<File>> bySize = new TreeMap<>();
+    private final Map<String, Set<File>> byGram = new HashMap<>();
+
+    /**
+     * The length of the indexed substrings. Names have at most 10 characters, so a name has at most 8 trigrams.
+     */
+    static final int GRAM_LENGTH = 3;
+
+    /**
+     * Builds the index for a whole tree. The root itself is not indexed because it is never a search result.
+     *
+     * @param root The root directory.
+     * @return The index of all files below the root.
+     */
+    static FileIndex build(Directory root) {
+        FileIndex index = new FileIndex();
+        for (File file : root.getFiles()) {
+            index.add(file, root);
+        }
+        return index;
+    }
+
+    /**
+     * Indexes a file that was added to a directory, together with its whole subtree.
+     *
+     * @param file   The added file or directory.
+     * @param parent The directory it was added to.
+     */
+    void add(File file, Directory parent) {
+        parents.put(file, parent);
+        bySize.computeIfAbsent(file.getSize(), size -> newIdentitySet()).add(file);
+        addName(file, file.getName());
+        if (file instanceof Document) {
+            byType.computeIfAbsent(((Document) file).getType(), type -> newIdentitySet()).add(file);
+        } else {
+            for (File child : ((Directory) file).getFiles()) {
+                add(child, (Directory) file);
+            }
+        }
+    }
+
+    /**
+     * Removes a file that was removed from its directory, together with its whole subtree.
+     *
+     * @param file The removed file or directory.
+     */
+    void remove(File file) {
+        parents.remove(file);
+        removeFrom(bySize, file.getSize(), file);
+        removeName(file, file.getName());
+        if (file instanceof Document) {
+            removeFrom(byType, ((Document) file).getType(), file);
+        } else {
+            for (File child : ((Directory) file).getFiles()) {
+                remove(child);
+            }
+        }
+    }
+
+    /**
+     * Moves a file whose size changed to its new place in the size index.
+     *
+     * @param file    The file or directory, already with its new size.
+     * @param oldSize The size it was indexed under.
+     */
+    void resize(File file, int oldSize) {
+        if (oldSize == file.getSize() || !parents.containsKey(file)) {
+            return;
+        }
+        removeFrom(bySize, oldSize, file);
+        bySize.computeIfAbsent(file.getSize(), size -> newIdentitySet()).add(file);
+    }
+
+    /**
+     * Moves a renamed file to the trigrams of its new name.
+     *
+     * @param file    The file or directory, already with its new name.
+     * @param oldName The name it was indexed under.
+     */
+    void rename(File file, String oldName) {
+        if (parents.containsKey(file)) {
+            removeName(file, oldName);
+            addName(file, file.getName());
+        }
+    }
+
+    /**
+     * Replaces a file with its copy, e.g. when the disk copies a node shared with a snapshot.
+     * The copy must have the same type, size and children as the original.
+     *
+     * @param original The file that is no longer in the live tree.
+     * @param copy     The file that took its place.
+     */
+    void replace(File original, File copy) {
+        if (copy instanceof Directory) {
+            for (File child : ((Directory) copy).getFiles()) {
+                parents.put(child, (Directory) copy);
+            }
+        }
+        Directory parent = parents.remove(original);
+        if (parent == null) {
+            return; // The root is not indexed
+        }
+        parents.put(copy, parent);
+        removeFrom(bySize, original.getSize(), original);
+        bySize.computeIfAbsent(copy.getSize(), size -> newIdentitySet()).add(copy);
+        removeName(original, original.getName());
+        addName(copy, copy.getName());
+        if (original instanceof Document) {
+            String type = ((Document) original).getType();
+            removeFrom(byType, type, original);
+            byType.computeIfAbsent(type, t -> newIdentitySet()).add(copy);
+        }
+    }
+
+    /**
+     * Retrieves the directory containing a file in the live tree.
+     *
+     * @param file The file or directory.
+     * @return The parent directory, or {@code null} for the root or a file that is not on the disk.
+     */
+    public Directory getParent(File file) {
+        return parents.get(file);
+    }
+
+    /**
+     * Retrieves all documents of a type.
+     *
+     * @param type The document type.
+     * @return A read-only view of the documents.
+     */
+    public Collection<File> ofType(String type) {
+        Set<File> files = byType.get(type);
+        return files == null ? Collections.emptySet() : Collections.unmodifiableSet(files);
+    }
+
+    /**
+     * Retrieves the files whose name may contain a string.
+     * Intersects the postings of the trigrams of the string, so the result can contain files
+     * whose name has all the trigrams but not the string itself.
+     *
+     * @param part The string to search for.
+     * @return The candidates, or {@code null} for strings shorter than a trigram, which match too many names to narrow.
+     */
+    public Collection<File> withNamePart(String part) {
+        if (part.length() < GRAM_LENGTH) {
+            return null;
+        }
+        if (part.length() == GRAM_LENGTH) {
+            Set<File> files = byGram.get(part);
+            return files == null ? Collections.emptySet() : Collections.unmodifiableSet(files);
+        }
+        List<Set<File>> postings = new ArrayList<>();
+        for (int i = 0; i + GRAM_LENGTH <= part.length(); i++) {
+            Set<File> files = byGram.get(part.substring(i, i + GRAM_LENGTH));
+            if (files == null) {
+                return Collections.emptySet();
+            }
+            postings.add(files);
+        }
+        postings.sort((a, b) -> Integer.compare(a.size(), b.size()));
+        List<File> candidates = new ArrayList<>();
+        for (File file : postings.get(0)) {
+            boolean inAll = true;
+            for (int i = 1; i < postings.size() && inAll; i++) {
+                inAll = postings.get(i).contains(file);
+            }
+            if (inAll) {
+                candidates.add(file);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Retrieves all files whose size compares to a bound with an operator.
+     *
+     * @param operator One of <, <=, >, >=, ==.
+     * @param bound    The size to compare with.
+     * @return A read-only view of the files, or {@code null} for operators the index cannot answer.
+     */
+    public Collection<File> ofSize(String operator, int bound) {
+        switch (operator) {
+            case "<":
+                return flatten(bySize.headMap(bound, false));
+            case "<=":
+                return flatten(bySize.headMap(bound, true));
+            case ">":
+                return flatten(bySize.tailMap(bound, false));
+            case ">=":
+                return flatten(bySize.tailMap(bound, true));
+            case "==":
+                return flatten(bySize.subMap(bound, true, bound, true));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Retrieves the number of indexed files.
+     *
+     * @return The number of files and directories below the root.
+     */
+    public int size() {
+        return parents.size();
+    }
+
+    /**
+     * Retrieves the number of distinct keys over all indexes: types, sizes and trigrams.
+     *
+     * @return The number of keys.
+     */
+    public int getKeyCount() {
+        return byType.size() + bySize.size() + byGram.size();
+    }
+
+    private static Collection<File> flatten(NavigableMap<Integer, Set<File>> sizes) {
+        return new AbstractCollection<File>() {
+            @Override
+            public Iterator<File> iterator() {
+                Iterator<Set<File>> sets = sizes.values().iterator();
+                return new Iterator<File>() {
+                    private Iterator<File> current = Collections.emptyIterator();
+
+                    @Override
+                    public boolean hasNext() {
+                        while (!current.hasNext() && sets.hasNext()) {
+                            current = sets.next().iterator();
+                        }
+                        return current.hasNext();
+                    }
+
+                    @Override
+                    public File next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return current.next();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                int size = 0;
+                for (Set<File> files : sizes.values()) {
+                    size += files.size();
+                }
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Collects the candidates that match a criterion and lie below a directory, in listing order.
+     *
+     * @param candidates The candidates from the index, a superset of the matches.
+     * @param criterion  The criterion to verify every candidate with.
+     * @param directory  The directory to search.
+     * @param recursive  Whether to include files in subdirectories.
+     * @param limit      The number of candidates after which walking the directory is cheaper.
+     * @return The matching files with their depth below the directory, or {@code null} if the limit was exceeded.
+     */
+    List<ListedFile> collect(Collection<File> candidates, Criterion criterion, Directory directory,
+                             boolean recursive, int limit) {
+        List<File> files = new ArrayList<>();
+        List<long[]> keys = new ArrayList<>();
+        int seen = 0;
+        for (File file : candidates) {
+            if (++seen > limit) {
+                return null;
+            }
+            long[] key = keyOf(file, directory, recursive);
+            if (key != null && criterion.matches(file)) {
+                files.add(file);
+                keys.add(key);
+            }
+        }
+        Integer[] order = new Integer[files.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> compareKeys(keys.get(a), keys.get(b)));
+        List<ListedFile> result = new ArrayList<>(order.length);
+        for (int i : order) {
+            result.add(new ListedFile(files.get(i), keys.get(i).length - 1));
+        }
+        return result;
+    }
+
+    /**
+     * Builds the sequence of sibling positions from the directory down to a file,
+     * which orders files like a depth-first listing.
+     *
+     * @return The positions, or {@code null} if the file is not in scope.
+     */
+    private long[] keyOf(File file, Directory directory, boolean recursive) {
+        List<File> chain = new ArrayList<>();
+        File current = file;
+        Directory parent = parents.get(current);
+        while (parent != directory) {
+            if (parent == null || !recursive) {
+                return null;
+            }
+            chain.add(current);
+            current = parent;
+            parent = parents.get(current);
+        }
+        chain.add(current);
+        long[] key = new long[chain.size()];
+        for (int i = 0; i < key.length; i++) {
+            File step = chain.get(chain.size() - 1 - i);
+            key[i] = parents.get(step).getPosition(step.getName());
+        }
+        return key;
+    }
+
+    private static int compareKeys(long[] a, long[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            if (a[i] != b[i]) {
+                return Long.compare(a[i], b[i]);
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    private void addName(File file, String name) {
+        for (int i = 0; i + GRAM_LENGTH <= name.length(); i++) {
+            byGram.computeIfAbsent(name.substring(i, i + GRAM_LENGTH), gram -> newIdentitySet()).add(file);
+        }
+    }
+
+    private void removeName(File file, String name) {
+        for (int i = 0; i + GRAM_LENGTH <= name.length(); i++) {
+            removeFrom(byGram, name.substring(i, i + GRAM_LENGTH), file);
+        }
+    }
+
+    private static <K> void removeFrom(Map<K, Set<File>> map, K key, File file) {
+        Set<File> files = map.get(key);
+        if (files != null) {
+            files.remove(file);
+            if (files.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    private static Set<File> newIdentitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+}
@@ -0,0 +1,309 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads a directory tree of the host file system into a detached {@link Directory} subtree, which a single
+ * command can then attach to a disk.
+ * <p>
+ * The tree is walked with {@link Files#walkFileTree}, while the files are read and decoded on a fixed pool of
+ * {@link #getThreads()} threads, so the import is limited by the read speed of the host disk rather than by one
+ * thread waiting for each file. Host names are cut down to the letters and digits a {@link File} name allows
+ * and to its maximum length; the extension selects the document type, see {@link #typeOf(String)}.
+ * Files with another extension, content that is not UTF-8 text, names that are empty or taken after cutting
+ * them down, and files that cannot be read are skipped and counted.
+ */
+public class Importer {
+    /**
+     * The default number of threads reading files.
+     */
+    public static final int DEFAULT_THREADS = 8;
+    private static final int MAX_NAME_LENGTH = 10;
+    private static final Map<String, String> TYPES = new HashMap<>();
+    private static volatile int threads = Integer.getInteger("cvfs.importThreads", DEFAULT_THREADS);
+
+    static {
+        for (String extension : new String[]{"", "txt", "text", "md", "log", "csv", "json", "xml", "yml", "yaml",
+                "properties"}) {
+            TYPES.put(extension, "txt");
+        }
+        TYPES.put("java", "java");
+        TYPES.put("html", "html");
+        TYPES.put("htm", "html");
+        TYPES.put("css", "css");
+    }
+
+    private Importer() {
+    }
+
+    /**
+     * The subtree read from the host and what was left out.
+     */
+    public static final class Result {
+        private final Directory root;
+        private final int skipped;
+        private final long bytesRead;
+
+        private Result(Directory root, int skipped, long bytesRead) {
+            this.root = root;
+            this.skipped = skipped;
+            this.bytesRead = bytesRead;
+        }
+
+        /**
+         * Retrieves the subtree, which is not attached to any disk yet.
+         *
+         * @return The directory named after the host directory.
+         */
+        public Directory getRoot() {
+            return root;
+        }
+
+        /**
+         * Retrieves the number of host files and directories that were not imported.
+         *
+         * @return The number of skipped entries.
+         */
+        public int getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Retrieves the number of bytes read from the host files.
+         *
+         * @return The number of bytes.
+         */
+        public long getBytesRead() {
+            return bytesRead;
+        }
+    }
+
+    /**
+     * Sets the number of threads that read host files during an import.
+     *
+     * @param count The number of threads.
+     * @throws IllegalArgumentException If the count is not positive.
+     */
+    public static void setThreads(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Import threads must be positive.");
+        }
+        threads = count;
+    }
+
+    /**
+     * Retrieves the number of threads that read host files during an import.
+     *
+     * @return The number of threads.
+     */
+    public static int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Maps the extension of a host file to a document type: "java", "html" and "htm", "css", and "txt" for
+     * plain text formats and files without an extension.
+     *
+     * @param extension The extension without the dot, in any case.
+     * @return The document type, or {@code null} if files with the extension are not imported.
+     */
+    public static String typeOf(String extension) {
+        return TYPES.get(extension.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Reads a host directory and everything below it.
+     *
+     * @param hostDir The directory to read.
+     * @return The subtree and the number of skipped entries.
+     * @throws IOException              If the directory cannot be walked, or the thread is interrupted.
+     * @throws StateChangeCommandFailed If the name of the directory has no letters or digits.
+     */
+    public static Result read(Path hostDir) throws IOException {
+        if (!Files.isDirectory(hostDir)) {
+            throw new IOException(hostDir + " is not a directory.");
+        }
+        Path fileName = hostDir.toAbsolutePath().normalize().getFileName();
+        String rootName = fileName == null ? "" : nameOf(fileName.toString());
+        if (rootName.isEmpty()) {
+            throw new StateChangeCommandFailed("The name of " + hostDir + " has no letters or digits.");
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "cvfs-import");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Walker walker = new Walker(rootName, pool);
+            Files.walkFileTree(hostDir, walker);
+            Directory root = walker.build(walker.root);
+            return new Result(root, walker.skipped, walker.bytesRead.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Cuts a host name down to the letters and digits a {@link File} name allows and to its maximum length.
+     */
+    private static String nameOf(String hostName) {
+        StringBuilder name = new StringBuilder(MAX_NAME_LENGTH);
+        for (int i = 0; i < hostName.length() && name.length() < MAX_NAME_LENGTH; i++) {
+            char c = hostName.charAt(i);
+            if (c < 128 && Character.isLetterOrDigit(c)) {
+                name.append(c);
+            }
+        }
+        return name.toString();
+    }
+
+    /**
+     * A directory whose files are still being read, with its children in the order they were visited.
+     */
+    private static final class Node {
+        private final String name;
+        private final List<Object> children = new ArrayList<>(); // Nodes and futures of documents
+        private final Set<String> names = new HashSet<>();
+
+        private Node(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Builds the plan of the subtree while walking the host tree and hands every file to the pool.
+     */
+    private static final class Walker extends SimpleFileVisitor<Path> {
+        private final Node root;
+        private final ExecutorService pool;
+        private final Deque<Node> open = new ArrayDeque<>(); // The directories being walked, innermost first
+        private final AtomicLong bytesRead = new AtomicLong();
+        private int skipped;
+
+        private Walker(String rootName, ExecutorService pool) {
+            this.root = new Node(rootName);
+            this.pool = pool;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+            if (open.isEmpty()) {
+                open.push(root);
+                return FileVisitResult.CONTINUE;
+            }
+            Node parent = open.peek();
+            String name = nameOf(dir.getFileName().toString());
+            if (name.isEmpty() || !parent.names.add(name)) {
+                skipped++;
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+            Node node = new Node(name);
+            parent.children.add(node);
+            open.push(node);
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+            open.pop();
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+            String hostName = file.getFileName().toString();
+            int dot = hostName.lastIndexOf('.');
+            String type = typeOf(dot <= 0 ? "" : hostName.substring(dot + 1));
+            String name = nameOf(dot <= 0 ? hostName : hostName.substring(0, dot));
+            Node parent = open.peek();
+            if (!attributes.isRegularFile() || type == null || name.isEmpty() || !parent.names.add(name)) {
+                skipped++;
+                return FileVisitResult.CONTINUE;
+            }
+            parent.children.add(pool.submit(() -> readDocument(file, name, type)));
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+            if (open.isEmpty()) {
+                throw e; // The host directory itself cannot be read
+            }
+            skipped++;
+            return FileVisitResult.CONTINUE;
+        }
+
+        /**
+         * Reads and decodes one file on a thread of the pool.
+         *
+         * @return The document, or {@code null} if the file is not UTF-8 text or cannot be read.
+         */
+        private Document readDocument(Path file, String name, String type) {
+            try {
+                byte[] bytes = Files.readAllBytes(file);
+                bytesRead.addAndGet(bytes.length);
+                String text = StandardCharsets.UTF_8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT)
+                        .decode(ByteBuffer.wrap(bytes)).toString();
+                if (text.indexOf('\0') >= 0) {
+                    return null; // Binary content that happens to be valid UTF-8
+                }
+                return new Document(name, type, CompressedContent.of(text));
+            } catch (IOException e) { // Including content that is not UTF-8
+                return null;
+            }
+        }
+
+        /**
+         * Creates the directories bottom-up once the documents of each are read, so every aggregate is correct.
+         */
+        @SuppressWarnings("unchecked")
+        private Directory build(Node node) throws IOException {
+            Directory dir = new Directory(node.name);
+            for (Object child : node.children) {
+                if (child instanceof Node) {
+                    dir.addFile(build((Node) child));
+                    continue;
+                }
+                Document doc;
+                try {
+                    doc = ((Future<Document>) child).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while importing.", e);
+                } catch (ExecutionException e) {
+                    doc = null;
+                }
+                if (doc != null) {
+                    dir.addFile(doc);
+                } else {
+                    skipped++;
+                }
+            }
+            return dir;
+        }
+    }
+}
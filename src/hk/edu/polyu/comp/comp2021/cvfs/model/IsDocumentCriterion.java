@@ -7,6 +7,7 @@ import java.io.Serializable;
  * This criterion is used to filter files of type {@link Document}.
  */
 public class IsDocumentCriterion extends Criterion implements Serializable {
+    private static final long serialVersionUID = 3845796390458175708L; // Unchanged since the original release
     /**
      * Constructs a new `IsDocumentCriterion` with the name "IsDocument".
      */
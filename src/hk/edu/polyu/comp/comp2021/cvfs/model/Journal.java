@@ -0,0 +1,773 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only write-ahead journal of the changes of a disk since its last checkpoint.
+ * The checkpoint is a {@link SegmentedImage} with criteria; the journal lives next to it with the suffix
+ * {@value #SUFFIX}. Every change of the tree is recorded by {@link VirtualDisk} with the absolute path of the
+ * directory it happened in, so the changes of all sessions of the disk, including undo and redo, are journaled
+ * in the order they were made; criterion changes are recorded for the session that started the journal.
+ * Loading the image replays the journal, see {@link #open(Path, VirtualDisk, Map)}.
+ * <p>
+ * A command is durable once {@link #commit()} returns. Commits are grouped: the first waiting session writes
+ * and forces the records of all sessions at once, optionally waiting up to {@link #getGroupDelay()} microseconds
+ * for {@link #getGroupSize()} records to gather first, while the others wait for it. Once the journal reaches
+ * {@link #getCheckpointSize()} bytes, the next commit writes a new checkpoint and truncates the journal.
+ * <p>
+ * Layout, all numbers big-endian:
+ * <pre>
+ * int    magic "CVJL"
+ * short  version
+ * long   identifier of the checkpoint image
+ * long   sequence number of the checkpoint within the image
+ * records         int payload length, int CRC-32 of the payload, payload
+ * </pre>
+ * A journal whose header does not match its image was written before a later checkpoint and is ignored. Replay stops at the first incomplete or corrupted record, which a crash may
+ * have left at the end, and the journal is truncated there.
+ */
+public class Journal implements Closeable {
+    /**
+     * The first four bytes of every journal, "CVJL" in ASCII.
+     */
+    public static final int MAGIC = 0x43564A4C;
+    /**
+     * The version of the layout written by this class.
+     */
+    public static final short VERSION = 2;
+    /**
+     * The suffix appended to the path of the image to name its journal.
+     */
+    public static final String SUFFIX = ".wal";
+    /**
+     * The default number of records a group commit waits for.
+     */
+    public static final int DEFAULT_GROUP_SIZE = 64;
+    /**
+     * The default journal size in bytes from which a checkpoint is written.
+     */
+    public static final long DEFAULT_CHECKPOINT_SIZE = 16L << 20;
+    private static final int HEADER_SIZE = 4 + 2 + 8 + 8;
+    private static final byte RECORD_ADD = 0;
+    private static final byte RECORD_REMOVE = 1;
+    private static final byte RECORD_RENAME = 2;
+    private static final byte RECORD_RESTORE = 3;
+    private static final byte RECORD_PUT_CRITERION = 4;
+    private static final byte RECORD_REMOVE_CRITERION = 5;
+    private static final byte KIND_DOCUMENT = 0;
+    private static final byte KIND_DIRECTORY = 1;
+    private static final byte KIND_IS_DOCUMENT = 0;
+    private static final byte KIND_SIMPLE = 1;
+    private static final byte KIND_NEGATION = 2;
+    private static final byte KIND_BINARY = 3;
+
+    private static volatile int groupSize = Integer.getInteger("cvfs.journalGroupSize", DEFAULT_GROUP_SIZE);
+    private static volatile int groupDelay = Integer.getInteger("cvfs.journalGroupDelay", 0);
+    private static volatile long checkpointSize = Long.getLong("cvfs.checkpointSize", DEFAULT_CHECKPOINT_SIZE);
+
+    private final Path image;
+    private final FileChannel channel;
+    private final Map<String, Criterion> criterionMap;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+    private int pendingRecords;
+    private long appended; // Records appended since the journal was opened
+    private long durable; // Records written and forced
+    private long size; // Bytes in the file, without the pending records
+    private boolean busy; // A group commit or checkpoint is writing
+    private IOException failure; // The error of a failed group commit, until the next checkpoint
+    private int replayed;
+    private long forces; // Group commits written
+
+    private Journal(Path image, FileChannel channel, Map<String, Criterion> criterionMap, long size) {
+        this.image = image;
+        this.channel = channel;
+        this.criterionMap = criterionMap;
+        this.size = size;
+    }
+
+    /**
+     * Sets the number of records the first waiting commit collects before it writes the journal.
+     *
+     * @param records The group size; 1 writes as soon as a commit waits.
+     * @throws IllegalArgumentException If the size is not positive.
+     */
+    public static void setGroupSize(int records) {
+        if (records <= 0) {
+            throw new IllegalArgumentException("Group size must be positive.");
+        }
+        groupSize = records;
+    }
+
+    /**
+     * Retrieves the number of records a group commit waits for.
+     *
+     * @return The group size.
+     */
+    public static int getGroupSize() {
+        return groupSize;
+    }
+
+    /**
+     * Sets how long the first waiting commit waits for the group to fill before it writes the journal.
+     *
+     * @param micros The delay in microseconds; 0 writes at once and only groups the records of commits
+     *               that arrive while the previous write is in progress.
+     * @throws IllegalArgumentException If the delay is negative.
+     */
+    public static void setGroupDelay(int micros) {
+        if (micros < 0) {
+            throw new IllegalArgumentException("Group delay must not be negative.");
+        }
+        groupDelay = micros;
+    }
+
+    /**
+     * Retrieves how long a group commit waits for the group to fill.
+     *
+     * @return The delay in microseconds.
+     */
+    public static int getGroupDelay() {
+        return groupDelay;
+    }
+
+    /**
+     * Sets the journal size from which a checkpoint is written and the journal truncated.
+     *
+     * @param bytes The size in bytes.
+     * @throws IllegalArgumentException If the size is not positive.
+     */
+    public static void setCheckpointSize(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Checkpoint size must be positive.");
+        }
+        checkpointSize = bytes;
+    }
+
+    /**
+     * Retrieves the journal size from which a checkpoint is written.
+     *
+     * @return The size in bytes.
+     */
+    public static long getCheckpointSize() {
+        return checkpointSize;
+    }
+
+    /**
+     * Retrieves the path of the journal of an image.
+     *
+     * @param image The path of the checkpoint image.
+     * @return The path of its journal.
+     */
+    public static Path pathOf(Path image) {
+        return image.resolveSibling(image.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Writes a checkpoint of a disk and starts an empty journal next to it, replacing an existing one.
+     * The caller must hold the lock of the disk.
+     *
+     * @param image        The path of the checkpoint image.
+     * @param disk         The disk to journal.
+     * @param criterionMap The criteria saved with every checkpoint and journaled with the disk.
+     * @return The journal, to be attached with {@link VirtualDisk#setJournal(Journal)}.
+     * @throws IOException If the image or the journal cannot be written.
+     */
+    static Journal create(Path image, VirtualDisk disk, Map<String, Criterion> criterionMap) throws IOException {
+        SegmentedImage.write(image, disk, criterionMap);
+        FileChannel channel = FileChannel.open(pathOf(image), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        Journal journal = new Journal(image, channel, criterionMap, HEADER_SIZE);
+        journal.writeHeader();
+        return journal;
+    }
+
+    /**
+     * Replays the journal of an image onto the disk and criteria just loaded from it and opens the journal for
+     * further changes. A journal that belongs to an earlier checkpoint is started over.
+     *
+     * @param image        The path of the loaded checkpoint image.
+     * @param disk         The disk loaded from the image.
+     * @param criterionMap The criteria loaded from the image.
+     * @return The journal, to be attached with {@link VirtualDisk#setJournal(Journal)}.
+     * @throws IOException If the journal cannot be read, or a record cannot be applied to the disk.
+     */
+    static Journal open(Path image, VirtualDisk disk, Map<String, Criterion> criterionMap) throws IOException {
+        FileChannel channel = FileChannel.open(pathOf(image), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            Journal journal = new Journal(image, channel, criterionMap, HEADER_SIZE);
+            if (!journal.matchesImage()) {
+                journal.writeHeader();
+                return journal;
+            }
+            journal.size = journal.replay(disk);
+            channel.truncate(journal.size); // Drops a record torn by a crash
+            channel.force(false);
+            return journal;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Retrieves the number of records applied when the journal was opened.
+     *
+     * @return The number of replayed records.
+     */
+    public int getReplayedCount() {
+        return replayed;
+    }
+
+    /**
+     * Retrieves the number of group commits written since the journal was opened.
+     * Divided into the number of commands, it tells how many commands share one force.
+     *
+     * @return The number of forces of the journal by commits.
+     */
+    public synchronized long getForceCount() {
+        return forces;
+    }
+
+    /**
+     * Retrieves the path of the checkpoint image of this journal.
+     *
+     * @return The image path.
+     */
+    public Path getImage() {
+        return image;
+    }
+
+    /**
+     * Checks whether this journal records the criterion changes of a session.
+     *
+     * @param criteria The criterion map of the session.
+     * @return {@code true} if the map is the one saved with the checkpoints.
+     */
+    boolean journalsCriteria(Map<String, Criterion> criteria) {
+        return criteria == criterionMap;
+    }
+
+    /**
+     * Records that a file was added to a directory.
+     *
+     * @param path         The directories from the root down to the one the file was added to.
+     * @param file         The added file or directory, with all its children.
+     * @param previousName The name of the child it was inserted after, or {@code null} for the beginning.
+     */
+    synchronized void logAdd(List<Directory> path, File file, String previousName) {
+        try {
+            recordOut.writeByte(RECORD_ADD);
+            writePath(recordOut, path);
+            writeNullableString(recordOut, previousName);
+            writeFile(recordOut, file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Not thrown by in-memory streams
+        }
+        append();
+    }
+
+    /**
+     * Records that a file was removed from a directory.
+     *
+     * @param path     The directories from the root down to the one the file was removed from.
+     * @param fileName The name of the removed file.
+     */
+    synchronized void logRemove(List<Directory> path, String fileName) {
+        try {
+            recordOut.writeByte(RECORD_REMOVE);
+            writePath(recordOut, path);
+            writeString(recordOut, fileName);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        append();
+    }
+
+    /**
+     * Records that a file in a directory was renamed.
+     *
+     * @param path    The directories from the root down to the one containing the file.
+     * @param oldName The name before the rename.
+     * @param newName The name after the rename.
+     */
+    synchronized void logRename(List<Directory> path, String oldName, String newName) {
+        try {
+            recordOut.writeByte(RECORD_RENAME);
+            writePath(recordOut, path);
+            writeString(recordOut, oldName);
+            writeString(recordOut, newName);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        append();
+    }
+
+    /**
+     * Records that the tree was replaced by a snapshot. Snapshots are not saved, so the record holds
+     * the whole restored tree and costs as much as a checkpoint.
+     *
+     * @param root The restored root directory.
+     */
+    synchronized void logRestore(Directory root) {
+        try {
+            recordOut.writeByte(RECORD_RESTORE);
+            writeFile(recordOut, root);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        append();
+    }
+
+    /**
+     * Records that a criterion was stored, possibly replacing one with the same name.
+     *
+     * @param criterion The stored criterion.
+     */
+    synchronized void logPutCriterion(Criterion criterion) {
+        try {
+            recordOut.writeByte(RECORD_PUT_CRITERION);
+            writeCriterion(recordOut, criterion);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        append();
+    }
+
+    /**
+     * Records that a criterion was removed.
+     *
+     * @param name The name of the removed criterion.
+     */
+    synchronized void logRemoveCriterion(String name) {
+        try {
+            recordOut.writeByte(RECORD_REMOVE_CRITERION);
+            writeString(recordOut, name);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        append();
+    }
+
+    /**
+     * Waits until every record appended so far is written and forced to the storage device.
+     * If no other commit is writing, this one writes the records of all sessions as one group.
+     *
+     * @throws IOException If the journal cannot be written, now or by an earlier commit since the last checkpoint.
+     */
+    public void commit() throws IOException {
+        byte[] batch;
+        long upTo;
+        synchronized (this) {
+            long target = appended;
+            while (busy && durable < target && failure == null) {
+                waitForWriter();
+            }
+            if (failure != null) {
+                throw new IOException("Journal is not written since an earlier error: " + failure.getMessage(), failure);
+            }
+            if (durable >= target) {
+                return; // Written by the group of another commit
+            }
+            busy = true;
+            long deadline = System.nanoTime() + groupDelay * 1000L;
+            long remaining;
+            while (pendingRecords < groupSize && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    wait(remaining / 1_000_000, (int) (remaining % 1_000_000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            batch = pending.toByteArray();
+            pending.reset();
+            pendingRecords = 0;
+            upTo = appended;
+        }
+        IOException error = null;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(batch);
+            long position = size;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            error = e;
+        }
+        synchronized (this) {
+            busy = false;
+            if (error == null) {
+                size += batch.length;
+                durable = upTo;
+                forces++;
+            } else {
+                failure = error; // The records are lost; only a checkpoint can make the disk durable again
+            }
+            notifyAll();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Checks whether the journal has grown enough to be replaced by a checkpoint.
+     *
+     * @return {@code true} if the journal has reached the checkpoint size or a commit has failed.
+     */
+    public synchronized boolean needsCheckpoint() {
+        return size + pending.size() >= checkpointSize || failure != null;
+    }
+
+    /**
+     * Writes the disk and the journaled criteria to the image and truncates the journal.
+     * The caller must hold at least the read lock of the disk, so no change is journaled meanwhile.
+     * The image commits the checkpoint atomically, usually appending only the directories changed since the last
+     * one; a crash before the journal is truncated leaves a journal that no longer matches the image and is
+     * ignored on load.
+     *
+     * @param disk The journaled disk.
+     * @return The number of bytes written to the image.
+     * @throws IOException If the image or the journal cannot be written.
+     */
+    public long checkpoint(VirtualDisk disk) throws IOException {
+        synchronized (this) {
+            while (busy) {
+                waitForWriter();
+            }
+            busy = true;
+        }
+        try {
+            long written = SegmentedImage.write(image, disk, criterionMap);
+            writeHeader();
+            synchronized (this) {
+                pending.reset();
+                pendingRecords = 0;
+                durable = appended; // Everything appended is in the image
+                size = HEADER_SIZE;
+                failure = null;
+            }
+            return written;
+        } finally {
+            synchronized (this) {
+                busy = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes the records that are still pending and closes the journal.
+     *
+     * @throws IOException If the records cannot be written or the file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (failure == null) {
+                commit();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Frames the record in {@link #record} with its length and checksum and moves it to the pending records.
+     */
+    private void append() {
+        byte[] payload = record.toByteArray();
+        record.reset();
+        crc.reset();
+        crc.update(payload);
+        try {
+            pendingOut.writeInt(payload.length);
+            pendingOut.writeInt((int) crc.getValue());
+            pendingOut.write(payload);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        pendingRecords++;
+        appended++;
+        if (pendingRecords >= groupSize) {
+            notifyAll(); // Wakes a group commit waiting for the group to fill
+        }
+    }
+
+    private void waitForWriter() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StateChangeCommandFailed("Interrupted while waiting for the journal.");
+        }
+    }
+
+    /**
+     * Truncates the journal to a header that names the current checkpoint of the image.
+     */
+    private void writeHeader() throws IOException {
+        SegmentedImage.Superblock checkpoint = SegmentedImage.readSuperblock(image);
+        if (checkpoint == null) {
+            throw new IOException("The checkpoint image " + image + " has no complete save.");
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putShort(VERSION);
+        header.putLong(checkpoint.getImageId());
+        header.putLong(checkpoint.getSequence());
+        header.flip();
+        channel.truncate(0);
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.force(false);
+    }
+
+    private boolean matchesImage() throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            return false; // Empty, or a crash interrupted the header
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+            // Keep reading until the header is complete.
+        }
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a CVFS journal: " + pathOf(image) + ".");
+        }
+        short version = header.getShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported journal version " + version + ".");
+        }
+        SegmentedImage.Superblock checkpoint = SegmentedImage.readSuperblock(image);
+        return checkpoint != null && header.getLong() == checkpoint.getImageId()
+                && header.getLong() == checkpoint.getSequence();
+    }
+
+    /**
+     * Applies the complete records of the journal in order.
+     *
+     * @return The position after the last complete record.
+     */
+    private long replay(VirtualDisk disk) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(channel.position(HEADER_SIZE)), 1 << 16));
+        long position = HEADER_SIZE;
+        while (true) {
+            byte[] payload;
+            try {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0 || length > channel.size() - position) {
+                    break;
+                }
+                payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+            } catch (EOFException e) {
+                break;
+            }
+            try {
+                apply(new DataInputStream(new ByteArrayInputStream(payload)), disk);
+            } catch (StateChangeCommandFailed | IllegalArgumentException e) {
+                throw new IOException("Journal record " + (replayed + 1) + " cannot be applied: " + e.getMessage(), e);
+            }
+            replayed++;
+            position += 8 + payload.length;
+        }
+        return position;
+    }
+
+    private void apply(DataInputStream in, VirtualDisk disk) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case RECORD_ADD: {
+                VirtualDisk view = readPath(in, disk);
+                String previousName = readNullableString(in);
+                view.addFileAfter(readFile(in, disk.getBlobStore()), previousName);
+                break;
+            }
+            case RECORD_REMOVE:
+                readPath(in, disk).removeFile(readString(in));
+                break;
+            case RECORD_RENAME: {
+                VirtualDisk view = readPath(in, disk);
+                view.renameFile(readString(in), readString(in));
+                break;
+            }
+            case RECORD_RESTORE:
+                File root = readFile(in, disk.getBlobStore());
+                if (!(root instanceof Directory)) {
+                    throw new IOException("Restored root is not a directory.");
+                }
+                disk.restore((Directory) root);
+                break;
+            case RECORD_PUT_CRITERION:
+                Criterion criterion = readCriterion(in);
+                criterionMap.put(criterion.getName(), criterion);
+                break;
+            case RECORD_REMOVE_CRITERION:
+                criterionMap.remove(readString(in));
+                break;
+            default:
+                throw new IOException("Unknown journal record type " + type + ".");
+        }
+    }
+
+    private static void writePath(DataOutputStream out, List<Directory> path) throws IOException {
+        out.writeInt(path.size() - 1);
+        for (int i = 1; i < path.size(); i++) {
+            writeString(out, path.get(i).getName());
+        }
+    }
+
+    /**
+     * Opens a view of the disk on the directory named by a recorded path.
+     */
+    private static VirtualDisk readPath(DataInputStream in, VirtualDisk disk) throws IOException {
+        int depth = in.readInt();
+        List<String> names = new ArrayList<>(depth);
+        for (int i = 0; i < depth; i++) {
+            names.add(readString(in));
+        }
+        VirtualDisk view = disk.openSession();
+        for (String name : names) {
+            view.changeDirectory(name);
+        }
+        return view;
+    }
+
+    private static void writeFile(DataOutputStream out, File file) throws IOException {
+        if (file instanceof Document) {
+            Document doc = (Document) file;
+            out.writeByte(KIND_DOCUMENT);
+            writeString(out, doc.getName());
+            writeString(out, doc.getType());
+            writeString(out, doc.getContent());
+        } else {
+            Directory dir = (Directory) file;
+            out.writeByte(KIND_DIRECTORY);
+            writeString(out, dir.getName());
+            out.writeInt(dir.getFiles().size());
+            for (File child : dir.getFiles()) {
+                writeFile(out, child);
+            }
+        }
+    }
+
+    private static File readFile(DataInputStream in, BlobStore store) throws IOException {
+        byte kind = in.readByte();
+        String name = readString(in);
+        if (kind == KIND_DOCUMENT) {
+            String type = readString(in);
+            return new Document(name, type, store.intern(readString(in)));
+        }
+        if (kind != KIND_DIRECTORY) {
+            throw new IOException("Unknown entry kind " + kind + ".");
+        }
+        Directory dir = new Directory(name);
+        int childCount = in.readInt();
+        for (int i = 0; i < childCount; i++) {
+            dir.addFile(readFile(in, store));
+        }
+        return dir;
+    }
+
+    private static void writeCriterion(DataOutputStream out, Criterion criterion) throws IOException {
+        if (criterion instanceof IsDocumentCriterion) {
+            out.writeByte(KIND_IS_DOCUMENT);
+        } else if (criterion instanceof SimpleCriterion) {
+            SimpleCriterion simple = (SimpleCriterion) criterion;
+            out.writeByte(KIND_SIMPLE);
+            writeString(out, simple.getName());
+            writeString(out, simple.getAttrName());
+            writeString(out, simple.getOperator());
+            writeString(out, simple.getValue());
+        } else if (criterion instanceof NegationCriterion) {
+            out.writeByte(KIND_NEGATION);
+            writeString(out, criterion.getName());
+            writeCriterion(out, ((NegationCriterion) criterion).getInnerCriterion());
+        } else if (criterion instanceof BinaryCriterion) {
+            BinaryCriterion binary = (BinaryCriterion) criterion;
+            out.writeByte(KIND_BINARY);
+            writeString(out, binary.getName());
+            writeCriterion(out, binary.getFirstCriterion());
+            writeString(out, binary.getLogicOp());
+            writeCriterion(out, binary.getSecondCriterion());
+        } else {
+            throw new IOException("Unsupported criterion type " + criterion.getClass().getSimpleName() + ".");
+        }
+    }
+
+    private static Criterion readCriterion(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        switch (kind) {
+            case KIND_IS_DOCUMENT:
+                return new IsDocumentCriterion();
+            case KIND_SIMPLE:
+                return new SimpleCriterion(readString(in), readString(in), readString(in), readString(in));
+            case KIND_NEGATION:
+                String name = readString(in);
+                return new NegationCriterion(name, readCriterion(in));
+            case KIND_BINARY:
+                String binaryName = readString(in);
+                Criterion first = readCriterion(in);
+                String logicOp = readString(in);
+                return new BinaryCriterion(binaryName, first, logicOp, readCriterion(in));
+            default:
+                throw new IOException("Unknown criterion kind " + kind + ".");
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeNullableString(DataOutputStream out, String string) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            writeString(out, string);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? readString(in) : null;
+    }
+}
@@ -0,0 +1,179 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the disk files written by the original release, which saved the disk with Java serialization:
+ * the {@code VirtualDisk} object, a boolean telling whether criteria follow and, if so, the criterion map.
+ * <p>
+ * The model classes have changed since, so the stream is not deserialized into them. Instead, the class names
+ * of the model are mapped onto the classes of {@code hk.edu.polyu.comp.comp2021.cvfs.model.legacy}, which have
+ * the serialized layout of the original release, and the result is converted into the current model.
+ * Only those classes and the collections they held are accepted, so a file cannot make the reader
+ * instantiate anything else.
+ */
+class LegacyImage {
+    private static final String MODEL_PACKAGE = "hk.edu.polyu.comp.comp2021.cvfs.model.";
+    private static final String LEGACY_PACKAGE = MODEL_PACKAGE + "legacy.";
+    private static final Set<String> MODEL_CLASSES = new HashSet<>(Arrays.asList("VirtualDisk", "File",
+            "Directory", "Document", "Criterion", "SimpleCriterion", "NegationCriterion", "BinaryCriterion",
+            "IsDocumentCriterion"));
+    private static final Set<String> COLLECTION_CLASSES = new HashSet<>(Arrays.asList("java.util.ArrayList",
+            "java.util.HashMap"));
+
+    private final VirtualDisk disk;
+    private final Map<String, Criterion> criterionMap;
+
+    private LegacyImage(VirtualDisk disk, Map<String, Criterion> criterionMap) {
+        this.disk = disk;
+        this.criterionMap = criterionMap;
+    }
+
+    /**
+     * Retrieves the loaded virtual disk.
+     *
+     * @return The virtual disk, with the working directory it was saved in.
+     */
+    VirtualDisk getDisk() {
+        return disk;
+    }
+
+    /**
+     * Retrieves the loaded criteria.
+     *
+     * @return The criterion map, or {@code null} if the disk was saved without criteria.
+     */
+    Map<String, Criterion> getCriterionMap() {
+        return criterionMap;
+    }
+
+    /**
+     * Reads a disk file of the original release.
+     *
+     * @param path The file to read.
+     * @return The disk and criteria of the file.
+     * @throws IOException If the file cannot be read or is not a disk file of the original release.
+     */
+    static LegacyImage read(Path path) throws IOException {
+        try (ObjectInputStream in = new LegacyInputStream(Files.newInputStream(path))) {
+            Object disk = in.readObject();
+            if (!(disk instanceof hk.edu.polyu.comp.comp2021.cvfs.model.legacy.VirtualDisk)) {
+                throw new StreamCorruptedException("Not a virtual disk file");
+            }
+            Map<String, Criterion> criteria = null;
+            if (in.readBoolean()) {
+                Object map = in.readObject();
+                if (!(map instanceof Map)) {
+                    throw new StreamCorruptedException("Not a criterion map");
+                }
+                criteria = convertCriteria((Map<?, ?>) map);
+            }
+            return new LegacyImage(convertDisk((hk.edu.polyu.comp.comp2021.cvfs.model.legacy.VirtualDisk) disk), criteria);
+        } catch (ClassNotFoundException | ClassCastException | StateChangeCommandFailed e) {
+            throw new StreamCorruptedException("Not a valid virtual disk file: " + e.getMessage());
+        }
+    }
+
+    private static VirtualDisk convertDisk(hk.edu.polyu.comp.comp2021.cvfs.model.legacy.VirtualDisk legacy) {
+        VirtualDisk disk = new VirtualDisk(legacy.getMaxSize(), convertDirectory(legacy.getRoot()));
+        Deque<String> workingPath = new ArrayDeque<>();
+        for (hk.edu.polyu.comp.comp2021.cvfs.model.legacy.Directory dir = legacy.getCurrentDirectory();
+             dir != null && dir.getParent() != null; dir = dir.getParent()) {
+            workingPath.push(dir.getName());
+        }
+        for (String name : workingPath) {
+            disk.changeDirectory(name);
+        }
+        return disk;
+    }
+
+    private static Directory convertDirectory(hk.edu.polyu.comp.comp2021.cvfs.model.legacy.Directory legacy) {
+        Directory directory = new Directory(legacy.getName());
+        for (hk.edu.polyu.comp.comp2021.cvfs.model.legacy.File file : legacy.getFiles()) {
+            if (file instanceof hk.edu.polyu.comp.comp2021.cvfs.model.legacy.Directory) {
+                directory.addFile(convertDirectory((hk.edu.polyu.comp.comp2021.cvfs.model.legacy.Directory) file));
+            } else {
+                hk.edu.polyu.comp.comp2021.cvfs.model.legacy.Document document =
+                        (hk.edu.polyu.comp.comp2021.cvfs.model.legacy.Document) file;
+                directory.addFile(new Document(document.getName(), document.getType(), document.getContent()));
+            }
+        }
+        return directory;
+    }
+
+    private static Map<String, Criterion> convertCriteria(Map<?, ?> legacy) {
+        Map<hk.edu.polyu.comp.comp2021.cvfs.model.legacy.Criterion, Criterion> converted = new IdentityHashMap<>();
+        Map<String, Criterion> criteria = new HashMap<>();
+        for (Map.Entry<?, ?> entry : legacy.entrySet()) {
+            criteria.put((String) entry.getKey(),
+                    convertCriterion((hk.edu.polyu.comp.comp2021.cvfs.model.legacy.Criterion) entry.getValue(), converted));
+        }
+        return criteria;
+    }
+
+    /**
+     * Converts a criterion, converting a criterion shared by several composite criteria only once.
+     */
+    private static Criterion convertCriterion(hk.edu.polyu.comp.comp2021.cvfs.model.legacy.Criterion legacy,
+                                              Map<hk.edu.polyu.comp.comp2021.cvfs.model.legacy.Criterion, Criterion> converted) {
+        Criterion criterion = converted.get(legacy);
+        if (criterion != null) {
+            return criterion;
+        }
+        if (legacy instanceof hk.edu.polyu.comp.comp2021.cvfs.model.legacy.SimpleCriterion) {
+            hk.edu.polyu.comp.comp2021.cvfs.model.legacy.SimpleCriterion simple =
+                    (hk.edu.polyu.comp.comp2021.cvfs.model.legacy.SimpleCriterion) legacy;
+            criterion = new SimpleCriterion(simple.getName(), simple.getAttrName(), simple.getOperator(), simple.getValue());
+        } else if (legacy instanceof hk.edu.polyu.comp.comp2021.cvfs.model.legacy.NegationCriterion) {
+            criterion = new NegationCriterion(legacy.getName(), convertCriterion(
+                    ((hk.edu.polyu.comp.comp2021.cvfs.model.legacy.NegationCriterion) legacy).getInnerCriterion(), converted));
+        } else if (legacy instanceof hk.edu.polyu.comp.comp2021.cvfs.model.legacy.BinaryCriterion) {
+            hk.edu.polyu.comp.comp2021.cvfs.model.legacy.BinaryCriterion binary =
+                    (hk.edu.polyu.comp.comp2021.cvfs.model.legacy.BinaryCriterion) legacy;
+            criterion = new BinaryCriterion(binary.getName(), convertCriterion(binary.getFirstCriterion(), converted),
+                    binary.getLogicOp(), convertCriterion(binary.getSecondCriterion(), converted));
+        } else {
+            criterion = new IsDocumentCriterion();
+        }
+        converted.put(legacy, criterion);
+        return criterion;
+    }
+
+    /**
+     * Resolves the model classes of the original release to their serialized layouts, and rejects any other class
+     * except the collections they held.
+     */
+    private static final class LegacyInputStream extends ObjectInputStream {
+        private LegacyInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            if (name.startsWith(MODEL_PACKAGE) && MODEL_CLASSES.contains(name.substring(MODEL_PACKAGE.length()))) {
+                return Class.forName(LEGACY_PACKAGE + name.substring(MODEL_PACKAGE.length()), false,
+                        LegacyImage.class.getClassLoader());
+            }
+            if (COLLECTION_CLASSES.contains(name)) {
+                return super.resolveClass(desc);
+            }
+            throw new InvalidClassException(name, "Not part of a virtual disk file");
+        }
+    }
+}
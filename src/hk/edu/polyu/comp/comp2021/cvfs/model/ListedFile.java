@@ -0,0 +1,38 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+/**
+ * A file produced by a listing or search, together with its depth below the listed directory.
+ */
+public class ListedFile {
+    private final File file;
+    private final int depth;
+
+    /**
+     * Constructs a listed file.
+     *
+     * @param file  The file or directory.
+     * @param depth The depth below the listed directory, 0 for its direct children.
+     */
+    public ListedFile(File file, int depth) {
+        this.file = file;
+        this.depth = depth;
+    }
+
+    /**
+     * Retrieves the listed file or directory.
+     *
+     * @return The file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Retrieves the depth of the file below the listed directory.
+     *
+     * @return The depth, 0 for direct children.
+     */
+    public int getDepth() {
+        return depth;
+    }
+}
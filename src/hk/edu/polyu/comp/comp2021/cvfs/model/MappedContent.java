@@ -0,0 +1,82 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Document content that stays in a memory-mapped disk image until it is read.
+ * Only the position in the image and the character length are kept on the heap;
+ * the UTF-8 bytes, which may be deflated (see {@link CompressedContent}), are decoded on every call to {@link #getText()}.
+ */
+public class MappedContent extends Content implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final transient ByteBuffer bytes;
+    private final int length;
+    private final int inflatedLength; // -1 if the bytes are not deflated
+
+    /**
+     * Constructs content backed by a region of a mapped image.
+     *
+     * @param bytes  The UTF-8 bytes of the content, a slice of the mapped image.
+     * @param length The length of the content in characters.
+     */
+    public MappedContent(ByteBuffer bytes, int length) {
+        this(bytes, length, -1);
+    }
+
+    /**
+     * Constructs content backed by a region of a mapped image that holds deflated UTF-8 bytes.
+     *
+     * @param bytes          The deflated bytes, a slice of the mapped image.
+     * @param length         The length of the content in characters.
+     * @param inflatedLength The length of the UTF-8 bytes before deflation, or -1 if the bytes are not deflated.
+     */
+    MappedContent(ByteBuffer bytes, int length, int inflatedLength) {
+        this.bytes = bytes;
+        this.length = length;
+        this.inflatedLength = inflatedLength;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public String getText() {
+        if (inflatedLength >= 0) {
+            return CompressedContent.inflate(bytes, inflatedLength);
+        }
+        return StandardCharsets.UTF_8.decode(bytes.duplicate()).toString();
+    }
+
+    /**
+     * Retrieves the length of the UTF-8 bytes before deflation.
+     *
+     * @return The number of bytes, or -1 if the mapped bytes are not deflated.
+     */
+    int getInflatedLength() {
+        return inflatedLength;
+    }
+
+    /**
+     * Retrieves the mapped bytes, which disk images copy without decoding them.
+     *
+     * @return A view of the bytes with its own position.
+     */
+    ByteBuffer getBytes() {
+        return bytes.duplicate();
+    }
+
+    /**
+     * Serializes the content as plain text, because a mapping cannot outlive the process.
+     *
+     * @return The equivalent {@link TextContent}.
+     * @throws ObjectStreamException Never thrown.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return new TextContent(getText());
+    }
+}
@@ -7,6 +7,7 @@ import java.io.Serializable;
  * This criterion matches files that do not match the given inner criterion.
  */
 public class NegationCriterion extends Criterion implements Serializable {
+    private static final long serialVersionUID = -5561457963478456631L; // Unchanged since the original release
     private final Criterion innerCriterion;
 
     /**
@@ -21,6 +22,15 @@ public class NegationCriterion extends Criterion implements Serializable {
         innerCriterion = criterion;
     }
 
+    /**
+     * Retrieves the criterion negated by this criterion.
+     *
+     * @return The inner criterion.
+     */
+    public Criterion getInnerCriterion() {
+        return innerCriterion;
+    }
+
     /**
      * Checks if the specified file matches the negation criterion.
      * The file matches if and only if it does not match the inner criterion.
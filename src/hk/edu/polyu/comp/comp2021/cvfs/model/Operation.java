@@ -0,0 +1,333 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents one recorded change of the CVFS state that can be reverted and re-applied (BON2).
+ * Instead of copying the whole disk, each state-changing command records only what it changed.
+ * Changes of files record the absolute path of the directory they happened in, so they are undone and redone
+ * there whatever the working directory is at that time.
+ */
+public abstract class Operation {
+    /**
+     * Reverts the change described by this operation.
+     *
+     * @param cvfs The CVFS whose state is reverted.
+     */
+    public abstract void undo(CVFS cvfs);
+
+    /**
+     * Re-applies the change described by this operation.
+     *
+     * @param cvfs The CVFS whose state is changed.
+     */
+    public abstract void redo(CVFS cvfs);
+
+    /**
+     * Estimates the memory this operation keeps alive, for the statistics of the undo history.
+     * A removed file counts with its disk size, since the operation may be all that keeps it;
+     * files and snapshots shared with the live tree are not counted.
+     *
+     * @return The estimated size in bytes.
+     */
+    public long retainedSize() {
+        return 32;
+    }
+
+    /**
+     * Records that a file or directory was added to a directory.
+     */
+    public static class AddFile extends Operation {
+        private final String directory;
+        private final File file;
+
+        /**
+         * Constructs the operation for a newly added file.
+         *
+         * @param directory The absolute path of the directory the file was added to.
+         * @param file      The file or directory that was added.
+         */
+        public AddFile(String directory, File file) {
+            this.directory = directory;
+            this.file = file;
+        }
+
+        @Override
+        public void undo(CVFS cvfs) {
+            VirtualDisk disk = cvfs.getDisk();
+            disk.inDirectory(directory, () -> disk.removeFile(file.getName()));
+        }
+
+        @Override
+        public void redo(CVFS cvfs) {
+            VirtualDisk disk = cvfs.getDisk();
+            disk.inDirectory(directory, () -> {
+                disk.addFile(file);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Records that a file or directory was removed from a directory.
+     */
+    public static class RemoveFile extends Operation {
+        private final String directory;
+        private final File file;
+        private final String previousName;
+
+        /**
+         * Constructs the operation for a removed file.
+         *
+         * @param directory    The absolute path of the directory the file was removed from.
+         * @param file         The file or directory that was removed.
+         * @param previousName The name of the file listed before it, or {@code null} if it was listed first.
+         */
+        public RemoveFile(String directory, File file, String previousName) {
+            this.directory = directory;
+            this.file = file;
+            this.previousName = previousName;
+        }
+
+        @Override
+        public long retainedSize() {
+            return super.retainedSize() + file.getSize();
+        }
+
+        @Override
+        public void undo(CVFS cvfs) {
+            VirtualDisk disk = cvfs.getDisk();
+            disk.inDirectory(directory, () -> {
+                disk.addFileAfter(file, previousName);
+                return null;
+            });
+        }
+
+        @Override
+        public void redo(CVFS cvfs) {
+            VirtualDisk disk = cvfs.getDisk();
+            disk.inDirectory(directory, () -> disk.removeFile(file.getName()));
+        }
+    }
+
+    /**
+     * Records that a file or directory was renamed.
+     */
+    public static class RenameFile extends Operation {
+        private final String directory;
+        private final String oldName;
+        private final String newName;
+
+        /**
+         * Constructs the operation for a rename.
+         *
+         * @param directory The absolute path of the directory holding the file.
+         * @param oldName   The name before the rename.
+         * @param newName   The name after the rename.
+         */
+        public RenameFile(String directory, String oldName, String newName) {
+            this.directory = directory;
+            this.oldName = oldName;
+            this.newName = newName;
+        }
+
+        @Override
+        public void undo(CVFS cvfs) {
+            rename(cvfs, newName, oldName);
+        }
+
+        @Override
+        public void redo(CVFS cvfs) {
+            rename(cvfs, oldName, newName);
+        }
+
+        private void rename(CVFS cvfs, String from, String to) {
+            VirtualDisk disk = cvfs.getDisk();
+            disk.inDirectory(directory, () -> {
+                disk.renameFile(from, to);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Records a change of the working directory, by any number of levels.
+     */
+    public static class ChangeDir extends Operation {
+        private final String from;
+        private final String to;
+
+        /**
+         * Constructs the operation for a directory change.
+         *
+         * @param from The absolute path of the directory that was left.
+         * @param to   The absolute path of the new working directory.
+         */
+        public ChangeDir(String from, String to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void undo(CVFS cvfs) {
+            move(cvfs, to, from);
+        }
+
+        @Override
+        public void redo(CVFS cvfs) {
+            move(cvfs, from, to);
+        }
+
+        /**
+         * Changes the working directory, unless another session has moved it since, e.g. by deleting it.
+         */
+        private static void move(CVFS cvfs, String expected, String target) {
+            VirtualDisk disk = cvfs.getDisk();
+            if (!disk.getPathName().equals(expected)) {
+                throw new StateChangeCommandFailed("The working directory is no longer " + expected + ".");
+            }
+            disk.changeDirectory(target);
+        }
+    }
+
+    /**
+     * Records that the disk was restored to a snapshot.
+     */
+    public static class RestoreSnapshot extends Operation {
+        private final VirtualDisk.Snapshot before;
+        private final VirtualDisk.Snapshot after;
+
+        /**
+         * Constructs the operation for a restore.
+         *
+         * @param before The state captured right before the restore.
+         * @param after  The snapshot that was restored.
+         */
+        public RestoreSnapshot(VirtualDisk.Snapshot before, VirtualDisk.Snapshot after) {
+            this.before = before;
+            this.after = after;
+        }
+
+        @Override
+        public void undo(CVFS cvfs) {
+            cvfs.getDisk().restore(before);
+        }
+
+        @Override
+        public void redo(CVFS cvfs) {
+            cvfs.getDisk().restore(after);
+        }
+    }
+
+    /**
+     * Records that a criterion was stored in the criterion map, possibly replacing another one.
+     */
+    public static class PutCriterion extends Operation {
+        private final Criterion criterion;
+        private final Criterion replaced;
+
+        /**
+         * Constructs the operation for a stored criterion.
+         *
+         * @param criterion The criterion that was stored.
+         * @param replaced  The criterion previously stored under the same name, or {@code null}.
+         */
+        public PutCriterion(Criterion criterion, Criterion replaced) {
+            this.criterion = criterion;
+            this.replaced = replaced;
+        }
+
+        @Override
+        public void undo(CVFS cvfs) {
+            if (replaced == null) {
+                cvfs.removeCriterion(criterion.getName());
+            } else {
+                cvfs.putCriterion(replaced);
+            }
+        }
+
+        @Override
+        public void redo(CVFS cvfs) {
+            cvfs.putCriterion(criterion);
+        }
+    }
+
+    /**
+     * Records the changes of a transaction, which are undone and redone together.
+     * If one of them cannot be reverted or re-applied, those already handled are put back, so the whole batch
+     * either changes or stays as it was.
+     */
+    public static class Batch extends Operation {
+        private final List<Operation> operations;
+
+        /**
+         * Constructs the operation for a committed transaction.
+         *
+         * @param operations The operations of the transaction in the order they were made.
+         */
+        public Batch(List<Operation> operations) {
+            this.operations = new ArrayList<>(operations);
+        }
+
+        /**
+         * Retrieves the number of changes in the batch.
+         *
+         * @return The number of operations.
+         */
+        public int size() {
+            return operations.size();
+        }
+
+        /**
+         * Retrieves the changes of the batch.
+         *
+         * @return The operations in the order they were made.
+         */
+        public List<Operation> getOperations() {
+            return Collections.unmodifiableList(operations);
+        }
+
+        @Override
+        public long retainedSize() {
+            long size = super.retainedSize();
+            for (Operation operation : operations) {
+                size += operation.retainedSize();
+            }
+            return size;
+        }
+
+        @Override
+        public void undo(CVFS cvfs) {
+            int i = operations.size();
+            try {
+                while (i > 0) {
+                    operations.get(i - 1).undo(cvfs);
+                    i--;
+                }
+            } catch (StateChangeCommandFailed e) {
+                for (; i < operations.size(); i++) {
+                    operations.get(i).redo(cvfs);
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public void redo(CVFS cvfs) {
+            int i = 0;
+            try {
+                while (i < operations.size()) {
+                    operations.get(i).redo(cvfs);
+                    i++;
+                }
+            } catch (StateChangeCommandFailed e) {
+                while (i > 0) {
+                    operations.get(--i).undo(cvfs);
+                }
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Collects the files of a recursive listing or search on several cores.
+ * Subdirectories that are large enough are walked as separate fork-join tasks and the criterion is evaluated
+ * concurrently; the partial results are then stitched together in exactly the depth-first order
+ * of the sequential walk, so the printed output does not change.
+ */
+public class ParallelLister {
+    /**
+     * The default number of entries below which a subtree is walked sequentially.
+     */
+    public static final int DEFAULT_THRESHOLD = 10_000;
+    private static volatile int threshold = Integer.getInteger("cvfs.parallelThreshold", DEFAULT_THRESHOLD);
+
+    private ParallelLister() {
+    }
+
+    /**
+     * Sets the number of entries a subtree must have to be walked in parallel.
+     *
+     * @param entries The minimum number of entries, e.g. {@link Integer#MAX_VALUE} to disable parallel walks.
+     * @throws IllegalArgumentException If the threshold is not positive.
+     */
+    public static void setThreshold(int entries) {
+        if (entries <= 0) {
+            throw new IllegalArgumentException("Parallel threshold must be positive.");
+        }
+        threshold = entries;
+    }
+
+    /**
+     * Retrieves the number of entries a subtree must have to be walked in parallel.
+     *
+     * @return The minimum number of entries.
+     */
+    public static int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Checks whether a directory is large enough to be walked in parallel.
+     *
+     * @param directory The directory to list.
+     * @return {@code true} if the subtree has at least the threshold number of entries.
+     */
+    public static boolean shouldParallelize(Directory directory) {
+        return directory.getDescendantCount() >= threshold;
+    }
+
+    /**
+     * Recursively collects the files below a directory that match a criterion, in depth-first order.
+     *
+     * @param directory The directory to list.
+     * @param criterion The criterion to filter by, or {@code null} to include all files.
+     * @return The matching files with their depth below the directory.
+     */
+    public static List<ListedFile> collect(Directory directory, Criterion criterion) {
+        List<Object> chunk = ForkJoinPool.commonPool().invoke(ListTask.forChildren(directory, 0, criterion));
+        List<ListedFile> result = new ArrayList<>();
+        flatten(chunk, result);
+        return result;
+    }
+
+    /**
+     * Computes the running weights of a range of files, used to split it into halves of about equal work.
+     *
+     * @param files The files, e.g. the children of a directory.
+     * @return An array whose element i is the number of entries in the first i files, including their subtrees.
+     */
+    static int[] weightsOf(File[] files) {
+        int[] weights = new int[files.length + 1];
+        for (int i = 0; i < files.length; i++) {
+            weights[i + 1] = weights[i] + Directory.countOf(files[i]);
+        }
+        return weights;
+    }
+
+    /**
+     * Finds the index that divides a range of at least two files into two non-empty halves of about equal weight.
+     *
+     * @param weights The running weights from {@link #weightsOf(File[])}.
+     * @param from    The first file of the range.
+     * @param to      The end of the range, exclusive.
+     * @return The first file of the second half.
+     */
+    static int split(int[] weights, int from, int to) {
+        int half = weights[from] + (weights[to] - weights[from]) / 2;
+        int low = from + 1;
+        int high = to - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (weights[middle] < half) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Appends the entries of a chunk, descending into the chunks of joined subtasks in place.
+     */
+    @SuppressWarnings("unchecked")
+    private static void flatten(List<Object> chunk, List<ListedFile> result) {
+        for (Object item : chunk) {
+            if (item instanceof ListedFile) {
+                result.add((ListedFile) item);
+            } else {
+                flatten((List<Object>) item, result);
+            }
+        }
+    }
+
+    /**
+     * Walks a consecutive range of the children of one directory, including their subtrees.
+     * Ranges with many entries are split in two halves of about equal weight, so that wide trees of
+     * small directories are spread over the pool as well as deep ones.
+     * The result holds {@link ListedFile} entries and the chunks of subtasks in their place in the order.
+     */
+    private static final class ListTask extends RecursiveTask<List<Object>> {
+        private static final long serialVersionUID = 1L;
+        private final File[] files;
+        private final int[] weights; // weights[i] = entries in files[0..i-1] including their subtrees
+        private final int from;
+        private final int to;
+        private final int depth;
+        private final Criterion criterion;
+
+        private ListTask(File[] files, int[] weights, int from, int to, int depth, Criterion criterion) {
+            this.files = files;
+            this.weights = weights;
+            this.from = from;
+            this.to = to;
+            this.depth = depth;
+            this.criterion = criterion;
+        }
+
+        private static ListTask forChildren(Directory directory, int depth, Criterion criterion) {
+            File[] files = directory.getFiles().toArray(new File[0]);
+            return new ListTask(files, weightsOf(files), 0, files.length, depth, criterion);
+        }
+
+        @Override
+        protected List<Object> compute() {
+            List<Object> chunk = new ArrayList<>();
+            if (to - from == 1 && files[from] instanceof Directory && shouldParallelize((Directory) files[from])) {
+                addIfMatches(files[from], depth, chunk);
+                chunk.add(forChildren((Directory) files[from], depth + 1, criterion).compute());
+            } else if (weights[to] - weights[from] < threshold || to - from == 1) {
+                for (int i = from; i < to; i++) {
+                    walk(files[i], depth, chunk);
+                }
+            } else {
+                int middle = split(weights, from, to);
+                ListTask left = new ListTask(files, weights, from, middle, depth, criterion);
+                left.fork();
+                List<Object> right = new ListTask(files, weights, middle, to, depth, criterion).compute();
+                chunk.add(left.join());
+                chunk.add(right);
+            }
+            return chunk;
+        }
+
+        private void walk(File file, int level, List<Object> chunk) {
+            addIfMatches(file, level, chunk);
+            if (file instanceof Directory) {
+                for (File child : ((Directory) file).getFiles()) {
+                    walk(child, level + 1, chunk);
+                }
+            }
+        }
+
+        private void addIfMatches(File file, int level, List<Object> chunk) {
+            if (criterion == null || criterion.matches(file)) {
+                chunk.add(new ListedFile(file, level));
+            }
+        }
+    }
+}
@@ -0,0 +1,480 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Remembers which files of a directory match a criterion, so repeated searches skip the subtrees that have not
+ * changed since.
+ * <p>
+ * An entry holds, for one criterion and one directory, the matching children in listing order and, after each
+ * subdirectory, the entry of that subdirectory if anything below it matches. It is valid as long as the
+ * {@link Directory#getVersion()} of the directory is the one it was built at, which covers the whole subtree.
+ * A changed directory is matched again, but reuses the entries of its unchanged subdirectories, so a search
+ * after a small change only evaluates the criterion in the directories on the path of the change.
+ * A directory with at least {@link ParallelLister#getThreshold()} entries still to match, not counting the
+ * subdirectories with a valid entry, is matched on several cores: ranges of its children are split by weight as in
+ * {@link ParallelLister}, and each fork-join task builds the entries of the subdirectories in its range.
+ * Entries share the entries of their subdirectories, so a cached subtree costs about one slot per match
+ * and per subdirectory. The cache holds at most {@link #getCapacity()} slots and evicts the least recently used
+ * entries beyond that; an entry is counted as long as it is kept, in the cache or by an entry containing it,
+ * so the bound covers everything the cache holds on to. Only recursive searches fill the cache, since a flat
+ * search only matches the children.
+ * <p>
+ * Directories and criteria are compared by identity; criteria are immutable, and a directory shared with a
+ * snapshot is copied before it changes, so an entry never describes a tree other than the one it was built from.
+ * An entry found out of date is dropped at once, and directories are held weakly, so the entries of a directory
+ * that is no longer part of the disk, its snapshots or its undo history are dropped once it is collected
+ * instead of keeping the superseded subtree alive.
+ */
+public class SearchCache {
+    /**
+     * The default number of slots the cache may hold.
+     */
+    public static final int DEFAULT_CAPACITY = 1_000_000;
+    private static volatile int capacity = Integer.getInteger("cvfs.searchCacheSize", DEFAULT_CAPACITY);
+
+    private final Map<Key, Matches> entries = new LinkedHashMap<>(16, 0.75f, true); // In access order
+    private final ReferenceQueue<Directory> collected = new ReferenceQueue<>(); // Keys of collected directories
+    private long slots;
+    private long hits;
+    private long misses;
+
+    /**
+     * Sets the number of slots every cache may hold; caches shrink to it on their next change.
+     *
+     * @param slots The maximum number of slots, 0 to cache nothing.
+     * @throws IllegalArgumentException If the capacity is negative.
+     */
+    public static void setCapacity(int slots) {
+        if (slots < 0) {
+            throw new IllegalArgumentException("Search cache capacity must not be negative.");
+        }
+        capacity = slots;
+    }
+
+    /**
+     * Retrieves the number of slots every cache may hold.
+     *
+     * @return The maximum number of slots.
+     */
+    public static int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Recursively finds the files below a directory matching a criterion, from the cache where the subtrees
+     * have not changed, and caches the result. Sessions holding the read lock of the disk may call this concurrently.
+     *
+     * @param directory The directory to search.
+     * @param criterion The criterion to match.
+     * @return The matching files with their depth below the directory, in listing order.
+     */
+    Iterator<ListedFile> search(Directory directory, Criterion criterion) {
+        Matches matches = lookup(directory, criterion);
+        if (matches == null) {
+            matches = build(directory, criterion);
+        }
+        return new MatchIterator(matches, true);
+    }
+
+    /**
+     * Finds the files of a directory matching a criterion only if they are cached, e.g. for a search that
+     * should not walk the whole subtree.
+     *
+     * @param directory The directory to search.
+     * @param criterion The criterion to match.
+     * @param recursive Whether to include files in subdirectories.
+     * @return The matching files with their depth below the directory, or {@code null} if the directory has
+     * changed since it was last searched with the criterion.
+     */
+    Iterator<ListedFile> cached(Directory directory, Criterion criterion, boolean recursive) {
+        Matches matches = lookup(directory, criterion);
+        return matches == null ? null : new MatchIterator(matches, recursive);
+    }
+
+    /**
+     * Retrieves how many directories were answered from the cache.
+     *
+     * @return The number of valid entries found, including those of unchanged subdirectories.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Retrieves how many directories had to be matched again.
+     *
+     * @return The number of entries built.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Retrieves the number of slots the cache holds.
+     *
+     * @return The slots of all entries, including the entries of subdirectories kept only by the entries
+     * containing them.
+     */
+    public synchronized long getSlots() {
+        return slots;
+    }
+
+    private synchronized Matches lookup(Directory directory, Criterion criterion) {
+        purge();
+        Key key = new Key(criterion, directory, null);
+        Matches matches = entries.get(key);
+        if (matches == null) {
+            return null;
+        }
+        if (matches.version != directory.getVersion()) {
+            entries.remove(key); // It would only keep the superseded files alive
+            release(matches);
+            return null;
+        }
+        hits++;
+        return matches;
+    }
+
+    private synchronized void store(Directory directory, Criterion criterion, Matches matches) {
+        purge();
+        misses++;
+        Matches replaced = entries.put(new Key(criterion, directory, collected), matches);
+        retain(matches);
+        if (replaced != null) {
+            release(replaced);
+        }
+        Iterator<Matches> eldest = entries.values().iterator();
+        while (slots > capacity && eldest.hasNext()) {
+            Matches evicted = eldest.next();
+            eldest.remove();
+            release(evicted);
+        }
+    }
+
+    /**
+     * Drops the entries of directories that have been garbage collected.
+     */
+    private void purge() {
+        for (Object key = collected.poll(); key != null; key = collected.poll()) {
+            Matches matches = entries.remove(key);
+            if (matches != null) {
+                release(matches);
+            }
+        }
+    }
+
+    /**
+     * Counts another holder of an entry; an entry that was not kept before is counted with the entries of its
+     * subdirectories, which it now keeps.
+     */
+    private void retain(Matches matches) {
+        Deque<Matches> pending = new ArrayDeque<>();
+        pending.push(matches);
+        while (!pending.isEmpty()) {
+            Matches next = pending.pop();
+            if (next.holders++ == 0) {
+                slots += next.slots();
+                next.pushNested(pending);
+            }
+        }
+    }
+
+    /**
+     * Removes a holder of an entry; an entry that is no longer kept stops counting, and so do the entries of
+     * its subdirectories that only it kept.
+     */
+    private void release(Matches matches) {
+        Deque<Matches> pending = new ArrayDeque<>();
+        pending.push(matches);
+        while (!pending.isEmpty()) {
+            Matches next = pending.pop();
+            if (--next.holders == 0) {
+                slots -= next.slots();
+                next.pushNested(pending);
+            }
+        }
+    }
+
+    /**
+     * Matches a directory, in parallel if it is large enough, and caches an entry for every directory it matched.
+     */
+    private Matches build(Directory directory, Criterion criterion) {
+        if (!ParallelLister.shouldParallelize(directory)) {
+            return buildSerially(directory, criterion);
+        }
+        DirectoryTask task = new DirectoryTask(directory, criterion);
+        return task.isLarge() ? ForkJoinPool.commonPool().invoke(task) : task.compute();
+    }
+
+    /**
+     * Matches a directory depth-first with an explicit stack, descending only into subdirectories without a
+     * valid entry, and caches an entry for every directory it matched.
+     */
+    private Matches buildSerially(Directory directory, Criterion criterion) {
+        Deque<Frame> stack = new ArrayDeque<>();
+        stack.push(new Frame(directory));
+        while (true) {
+            Frame frame = stack.peek();
+            if (!frame.files.hasNext()) {
+                stack.pop();
+                Matches matches = new Matches(frame.directory.getVersion(), frame.items.toArray());
+                store(frame.directory, criterion, matches);
+                if (stack.isEmpty()) {
+                    return matches;
+                }
+                if (matches.items.length > 0) {
+                    stack.peek().items.add(matches);
+                }
+                continue;
+            }
+            File file = frame.files.next();
+            if (criterion.matches(file)) {
+                frame.items.add(file);
+            }
+            if (file instanceof Directory) {
+                Matches cached = lookup((Directory) file, criterion);
+                if (cached == null) {
+                    stack.push(new Frame((Directory) file));
+                } else if (cached.items.length > 0) {
+                    frame.items.add(cached);
+                }
+            }
+        }
+    }
+
+    /**
+     * Matches the children of one directory as a fork-join task and caches the entry of the directory.
+     * The valid entries of the subdirectories are looked up first, so that only the subtrees still to be matched
+     * count towards the weights the children are split by.
+     */
+    private final class DirectoryTask extends RecursiveTask<Matches> {
+        private static final long serialVersionUID = 1L;
+        private final Directory directory;
+        private final Criterion criterion;
+        private final File[] files;
+        private final Matches[] cached; // The valid entries of the subdirectories, null where there is none
+        private final int[] weights; // weights[i] = entries still to be matched in files[0..i-1]
+
+        private DirectoryTask(Directory directory, Criterion criterion) {
+            this.directory = directory;
+            this.criterion = criterion;
+            files = directory.getFiles().toArray(new File[0]);
+            cached = new Matches[files.length];
+            weights = new int[files.length + 1];
+            for (int i = 0; i < files.length; i++) {
+                int weight = 1;
+                if (files[i] instanceof Directory) {
+                    cached[i] = lookup((Directory) files[i], criterion);
+                    if (cached[i] == null) {
+                        weight = Directory.countOf(files[i]);
+                    }
+                }
+                weights[i + 1] = weights[i] + weight;
+            }
+        }
+
+        /**
+         * Checks whether enough of the subtree is still to be matched to spread it over the pool.
+         */
+        private boolean isLarge() {
+            return weights[files.length] >= ParallelLister.getThreshold();
+        }
+
+        @Override
+        protected Matches compute() {
+            List<Object> items = new RangeTask(this, 0, files.length).compute();
+            Matches matches = new Matches(directory.getVersion(), items.toArray());
+            store(directory, criterion, matches);
+            return matches;
+        }
+    }
+
+    /**
+     * Matches a consecutive range of the children of one directory, splitting ranges with many entries to match
+     * in two like {@link ParallelLister}. The result holds the matching children and the entries of the
+     * subdirectories with matches, in listing order.
+     */
+    private final class RangeTask extends RecursiveTask<List<Object>> {
+        private static final long serialVersionUID = 1L;
+        private final DirectoryTask parent;
+        private final int from;
+        private final int to;
+
+        private RangeTask(DirectoryTask parent, int from, int to) {
+            this.parent = parent;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Object> compute() {
+            int[] weights = parent.weights;
+            if (weights[to] - weights[from] < ParallelLister.getThreshold() || to - from == 1) {
+                List<Object> items = new ArrayList<>();
+                for (int i = from; i < to; i++) {
+                    match(i, items);
+                }
+                return items;
+            }
+            int middle = ParallelLister.split(weights, from, to);
+            RangeTask left = new RangeTask(parent, from, middle);
+            left.fork();
+            List<Object> right = new RangeTask(parent, middle, to).compute();
+            List<Object> items = left.join();
+            items.addAll(right);
+            return items;
+        }
+
+        private void match(int i, List<Object> items) {
+            File file = parent.files[i];
+            Criterion criterion = parent.criterion;
+            if (criterion.matches(file)) {
+                items.add(file);
+            }
+            if (file instanceof Directory) {
+                Matches matches = parent.cached[i];
+                if (matches == null) {
+                    Directory directory = (Directory) file;
+                    matches = ParallelLister.shouldParallelize(directory)
+                            ? new DirectoryTask(directory, criterion).compute()
+                            : buildSerially(directory, criterion);
+                }
+                if (matches.items.length > 0) {
+                    items.add(matches);
+                }
+            }
+        }
+    }
+
+    /**
+     * A directory being matched by {@link #buildSerially(Directory, Criterion)}.
+     */
+    private static final class Frame {
+        private final Directory directory;
+        private final Iterator<File> files;
+        private final List<Object> items = new ArrayList<>();
+
+        private Frame(Directory directory) {
+            this.directory = directory;
+            this.files = directory.getFiles().iterator();
+        }
+    }
+
+    /**
+     * The cached matches of one directory: the matching children, each directly followed by the matches of its
+     * subtree if it is a directory with any.
+     */
+    private static final class Matches {
+        private final long version;
+        private final Object[] items; // Files at the depth of the directory and the Matches of subdirectories
+        private int holders; // The cache and the kept entries containing this one, guarded by the cache
+
+        private Matches(long version, Object[] items) {
+            this.version = version;
+            this.items = items;
+        }
+
+        private int slots() {
+            return items.length + 1; // An entry without matches still takes room
+        }
+
+        private void pushNested(Deque<Matches> pending) {
+            for (Object item : items) {
+                if (item instanceof Matches) {
+                    pending.push((Matches) item);
+                }
+            }
+        }
+    }
+
+    /**
+     * Identifies an entry by the identity of its criterion and directory, holding the directory weakly.
+     * A key whose directory has been collected only equals itself, so it can still be removed.
+     */
+    private static final class Key extends WeakReference<Directory> {
+        private final Criterion criterion;
+        private final int hash;
+
+        private Key(Criterion criterion, Directory directory, ReferenceQueue<Directory> queue) {
+            super(directory, queue);
+            this.criterion = criterion;
+            this.hash = 31 * System.identityHashCode(criterion) + System.identityHashCode(directory);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key) || ((Key) other).criterion != criterion) {
+                return false;
+            }
+            Directory directory = get();
+            return directory != null && ((Key) other).get() == directory;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Walks the nested matches in listing order, or only the top level for a non-recursive search.
+     */
+    private static final class MatchIterator implements Iterator<ListedFile> {
+        private final Deque<Matches> stack = new ArrayDeque<>();
+        private final Deque<Integer> positions = new ArrayDeque<>();
+        private final boolean recursive;
+        private ListedFile next;
+
+        private MatchIterator(Matches matches, boolean recursive) {
+            this.recursive = recursive;
+            stack.push(matches);
+            positions.push(0);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !stack.isEmpty()) {
+                Matches matches = stack.peek();
+                int position = positions.pop();
+                if (position == matches.items.length) {
+                    stack.pop();
+                    continue;
+                }
+                positions.push(position + 1);
+                Object item = matches.items[position];
+                if (item instanceof File) {
+                    next = new ListedFile((File) item, stack.size() - 1);
+                } else if (recursive) {
+                    stack.push((Matches) item);
+                    positions.push(0);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public ListedFile next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ListedFile result = next;
+            next = null;
+            return result;
+        }
+    }
+}
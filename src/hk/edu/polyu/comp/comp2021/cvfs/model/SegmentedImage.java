@@ -0,0 +1,450 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+/**
+ * Writes version 4 of the disk image, an append-only container of segments that a save extends with only what
+ * changed since the last save (REQ15, REQ16). Images of this version are read through {@link DiskImage#read(Path, boolean)}.
+ * <p>
+ * Every directory is a segment of its own that refers to the segments of its subdirectories and to the blobs of
+ * its documents by their position in the file. {@link VirtualDisk} marks every directory it changes, which
+ * includes the ancestors whose references change, so a save of a disk to the image it was last saved to or loaded
+ * from appends the changed directories, the content that is not in the image yet and a manifest, and then
+ * switches to the new manifest by writing a superblock. Save time and growth are proportional to the changed
+ * directories and their direct children rather than to the whole disk. The two superblock slots are written
+ * alternately, so a crash during a save leaves the previous save intact; segments a failed save appended are
+ * dropped by the next one. Once the file has grown to {@value #COMPACTION_RATIO} times the size of its last full
+ * write or to {@link #getAppendLimit()} bytes, or when it was written by another disk, the next save writes the
+ * whole disk to a new file instead, which replaces the old one like a {@link DiskImage}. The limit keeps appends
+ * from growing an image beyond the 2 GiB that {@link DiskImage#read(Path, boolean)} can map.
+ * <p>
+ * Layout, all numbers big-endian, "varint"/"varlong" meaning an unsigned LEB128 integer, "string" a varint byte
+ * length and the UTF-8 bytes, offsets counted from the start of the file:
+ * <pre>
+ * int    magic "CVFS"
+ * short  version 4
+ * short  reserved
+ * long   image identifier, random for every full write
+ * superblock slots  two of: long sequence, long manifest offset, long end of the save, long end of the last
+ *                   full write, int CRC-32 of the four longs, int reserved; the valid one with the higher
+ *                   sequence wins
+ * segments   appended after the slots, of three kinds:
+ *   blob       32-byte SHA-256 hash, then the content encoded like the blob table of version 3
+ *   directory  varint child count; per child: byte kind, string name, then
+ *              document: string type, varlong blob offset; directory: varlong directory offset
+ *   manifest   byte flags (bit 0: criteria included), int maximum disk size, string root name,
+ *              varlong root directory offset, varint depth, string name of every directory of the working
+ *              path below the root, criteria with their own string table like version 3
+ * </pre>
+ * Directories are written after their children, so every offset refers backwards.
+ */
+public class SegmentedImage {
+    /**
+     * The version of the layout written by this class.
+     */
+    public static final short VERSION = 4;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 40;
+    private static final int SEGMENTS_START = HEADER_SIZE + 2 * SLOT_SIZE;
+    private static final int COMPACTION_RATIO = 4;
+    /**
+     * The default size up to which an image is appended to, half of what can be mapped, so that an append
+     * of up to another full write still leaves the image readable.
+     */
+    public static final long DEFAULT_APPEND_LIMIT = Integer.MAX_VALUE / 2;
+    private static volatile long appendLimit = DEFAULT_APPEND_LIMIT;
+    private static final byte FLAG_CRITERIA = 1;
+    private static final byte KIND_DOCUMENT = 0;
+    private static final byte KIND_DIRECTORY = 1;
+
+    private SegmentedImage() {
+    }
+
+    /**
+     * Sets the size up to which images are appended to; a save to a larger image writes the whole disk again.
+     *
+     * @param bytes The maximum size of an image that is appended to.
+     * @throws IllegalArgumentException If the limit is negative or larger than {@link #DEFAULT_APPEND_LIMIT}.
+     */
+    public static void setAppendLimit(long bytes) {
+        if (bytes < 0 || bytes > DEFAULT_APPEND_LIMIT) {
+            throw new IllegalArgumentException("Append limit must be between 0 and " + DEFAULT_APPEND_LIMIT + ".");
+        }
+        appendLimit = bytes;
+    }
+
+    /**
+     * Retrieves the size up to which images are appended to.
+     *
+     * @return The maximum size of an image that is appended to, in bytes.
+     */
+    public static long getAppendLimit() {
+        return appendLimit;
+    }
+
+    /**
+     * The location of a complete save in an image.
+     */
+    static final class Superblock {
+        private final long imageId;
+        private final long sequence;
+        private final long manifest;
+        private final long end;
+        private final long base;
+
+        private Superblock(long imageId, long sequence, long manifest, long end, long base) {
+            this.imageId = imageId;
+            this.sequence = sequence;
+            this.manifest = manifest;
+            this.end = end;
+            this.base = base;
+        }
+
+        long getImageId() {
+            return imageId;
+        }
+
+        long getSequence() {
+            return sequence;
+        }
+    }
+
+    /**
+     * Saves a virtual disk and optionally its criteria to a file. If the file holds the save the disk was last
+     * saved to or loaded from, only the directories changed since are appended; otherwise the whole disk is written.
+     * The caller must hold at least the read lock of the disk.
+     *
+     * @param path         The file to write.
+     * @param disk         The virtual disk.
+     * @param criterionMap The criteria to include, or {@code null} to save the disk only.
+     * @return The number of bytes written.
+     * @throws IOException If the file cannot be written.
+     */
+    public static long write(Path path, VirtualDisk disk, Map<String, Criterion> criterionMap) throws IOException {
+        synchronized (SegmentedImage.class) { // Saves record positions in the shared tree and may share a file
+            try {
+                Superblock last = disk.getImageId() != 0 ? readSuperblock(path) : null;
+                if (last != null && last.imageId == disk.getImageId() && last.sequence == disk.getImageSequence()
+                        && last.end <= Math.min((long) COMPACTION_RATIO * last.base, appendLimit)) {
+                    return append(path, last, disk, criterionMap);
+                }
+                return rewrite(path, disk, criterionMap);
+            } catch (IOException | RuntimeException e) {
+                disk.setImage(0, 0); // Recorded positions may refer to segments that were never committed
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Reads the last complete save of an image.
+     *
+     * @param path The file to read.
+     * @return The save, or {@code null} if the file does not exist, is not of this version or has no complete save.
+     * @throws IOException If the file cannot be read.
+     */
+    static Superblock readSuperblock(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return readSuperblock(channel);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the last complete save of an image whose version {@link DiskImage#read(Path, boolean)} has identified.
+     *
+     * @param channel The open file.
+     * @param mapped  Whether to leave document content in a mapping of the file.
+     * @return The loaded image.
+     * @throws IOException If the file cannot be read or is not a valid image.
+     */
+    static DiskImage read(FileChannel channel, boolean mapped) throws IOException {
+        Superblock last = readSuperblock(channel);
+        if (last == null) {
+            throw new IOException("The disk image has no complete save.");
+        }
+        if (last.end > Integer.MAX_VALUE) {
+            throw new IOException("Disk image is too large to be mapped.");
+        }
+        DiskImage.Input in = new DiskImage.Input(channel.map(FileChannel.MapMode.READ_ONLY, 0, last.end), mapped);
+        in.seek(last.manifest);
+        boolean withCriteria = (in.readByte() & FLAG_CRITERIA) != 0;
+        int maxSize = in.readInt();
+        String rootName = in.readString();
+        long rootOffset = in.readVarLong();
+        String[] workingPath = new String[in.readVarInt()];
+        for (int i = 0; i < workingPath.length; i++) {
+            workingPath[i] = in.readString();
+        }
+        Map<String, Criterion> criterionMap = withCriteria ? DiskImage.readCriteria(in) : null;
+
+        BlobStore store = new BlobStore();
+        Directory root = new Reader(in, last.imageId, store).readDirectory(rootName, rootOffset);
+        store.retainAll(root);
+        VirtualDisk disk = new VirtualDisk(maxSize, root, store);
+        disk.setImage(last.imageId, last.sequence);
+        for (String name : workingPath) {
+            disk.changeDirectory(name);
+        }
+        return new DiskImage(disk, criterionMap);
+    }
+
+    /**
+     * Appends the changed segments and a manifest to the last save, then commits them with a superblock.
+     */
+    private static long append(Path path, Superblock last, VirtualDisk disk, Map<String, Criterion> criterionMap)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.truncate(last.end); // Drops the segments of a save that did not complete
+            channel.position(last.end);
+            long manifest = writeSegments(channel, last.imageId, disk, criterionMap);
+            long end = channel.position();
+            channel.force(false); // The segments must be durable before a superblock refers to them
+            Superblock saved = new Superblock(last.imageId, last.sequence + 1, manifest, end, last.base);
+            writeSuperblock(channel, saved);
+            channel.force(false);
+            disk.setImage(saved.imageId, saved.sequence);
+            return end - last.end;
+        }
+    }
+
+    /**
+     * Writes the whole disk to a new image that replaces the file.
+     */
+    private static long rewrite(Path path, VirtualDisk disk, Map<String, Criterion> criterionMap) throws IOException {
+        long imageId;
+        do {
+            imageId = ThreadLocalRandom.current().nextLong();
+        } while (imageId == 0);
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Superblock saved;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(SEGMENTS_START); // Both slots stay empty until the save completes
+            header.putInt(DiskImage.MAGIC);
+            header.putShort(VERSION);
+            header.putShort((short) 0);
+            header.putLong(imageId);
+            header.clear();
+            writeFully(channel, header, 0);
+            channel.position(SEGMENTS_START);
+            long manifest = writeSegments(channel, imageId, disk, criterionMap);
+            long end = channel.position();
+            saved = new Superblock(imageId, 1, manifest, end, end);
+            writeSuperblock(channel, saved);
+            channel.force(false); // The image must be complete before it replaces the old one
+        }
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        disk.setImage(saved.imageId, saved.sequence);
+        return saved.end;
+    }
+
+    /**
+     * Writes the segments not in the image yet and the manifest at the position of the channel.
+     *
+     * @return The offset of the manifest.
+     */
+    private static long writeSegments(FileChannel channel, long imageId, VirtualDisk disk,
+                                      Map<String, Criterion> criterionMap) throws IOException {
+        DiskImage.Output out = new DiskImage.Output(channel);
+        long root = new Writer(out, imageId, disk.getBlobStore()).writeDirectory(disk.getRoot());
+        long manifest = out.position();
+        out.writeByte(criterionMap != null ? FLAG_CRITERIA : 0);
+        out.writeInt(disk.getMaxSize());
+        out.writeString(disk.getRoot().getName());
+        out.writeVarLong(root);
+        List<Directory> workingPath = disk.getPath();
+        out.writeVarInt(workingPath.size() - 1);
+        for (int i = 1; i < workingPath.size(); i++) {
+            out.writeString(workingPath.get(i).getName());
+        }
+        if (criterionMap != null) {
+            DiskImage.writeCriteria(out, criterionMap);
+        }
+        out.flush();
+        return manifest;
+    }
+
+    private static Superblock readSuperblock(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SEGMENTS_START);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+            // Keep reading until the header is complete or the file ends.
+        }
+        if (header.hasRemaining() || header.getInt(0) != DiskImage.MAGIC || header.getShort(4) != VERSION) {
+            return null;
+        }
+        long imageId = header.getLong(8);
+        long size = channel.size();
+        Superblock last = null;
+        CRC32 crc = new CRC32();
+        for (int slot = HEADER_SIZE; slot < SEGMENTS_START; slot += SLOT_SIZE) {
+            crc.reset();
+            crc.update(header.array(), slot, 32);
+            Superblock saved = new Superblock(imageId, header.getLong(slot), header.getLong(slot + 8),
+                    header.getLong(slot + 16), header.getLong(slot + 24));
+            if ((int) crc.getValue() == header.getInt(slot + 32) && saved.sequence > 0 && saved.end <= size
+                    && (last == null || saved.sequence > last.sequence)) {
+                last = saved;
+            }
+        }
+        return last;
+    }
+
+    private static void writeSuperblock(FileChannel channel, Superblock saved) throws IOException {
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+        slot.putLong(saved.sequence);
+        slot.putLong(saved.manifest);
+        slot.putLong(saved.end);
+        slot.putLong(saved.base);
+        CRC32 crc = new CRC32();
+        crc.update(slot.array(), 0, 32);
+        slot.putInt((int) crc.getValue());
+        slot.clear();
+        writeFully(channel, slot, HEADER_SIZE + (saved.sequence % 2) * SLOT_SIZE);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * Writes the segments of the directories and content that are not in the image yet, recording their positions.
+     */
+    private static final class Writer {
+        private final DiskImage.Output out;
+        private final long imageId;
+        private final BlobStore store;
+        private final Map<Content, Long> unstored = new IdentityHashMap<>(); // Content without a blob in the store
+
+        private Writer(DiskImage.Output out, long imageId, BlobStore store) {
+            this.out = out;
+            this.imageId = imageId;
+            this.store = store;
+        }
+
+        private long writeDirectory(Directory dir) throws IOException {
+            long saved = dir.getSavedOffset(imageId);
+            if (saved >= 0) {
+                return saved;
+            }
+            long[] offsets = new long[dir.getFiles().size()];
+            int i = 0;
+            for (File child : dir.getFiles()) {
+                offsets[i++] = child instanceof Document ? writeContent(((Document) child).getContentObject())
+                        : writeDirectory((Directory) child);
+            }
+            long offset = out.position();
+            out.writeVarInt(offsets.length);
+            i = 0;
+            for (File child : dir.getFiles()) {
+                if (child instanceof Document) {
+                    out.writeByte(KIND_DOCUMENT);
+                    out.writeString(child.getName());
+                    out.writeString(((Document) child).getType());
+                } else {
+                    out.writeByte(KIND_DIRECTORY);
+                    out.writeString(child.getName());
+                }
+                out.writeVarLong(offsets[i++]);
+            }
+            dir.setSavedOffset(imageId, offset);
+            return offset;
+        }
+
+        private long writeContent(Content content) throws IOException {
+            long saved = store.getSavedOffset(content, imageId);
+            if (saved >= 0) {
+                return saved;
+            }
+            Long written = unstored.get(content);
+            if (written != null) {
+                return written;
+            }
+            long offset = out.position();
+            DiskImage.writeBlob(out, content, store.getHash(content));
+            if (!store.setSavedOffset(content, imageId, offset)) {
+                unstored.put(content, offset);
+            }
+            return offset;
+        }
+    }
+
+    /**
+     * Builds the directory tree from the segments of a save, recording their positions.
+     */
+    private static final class Reader {
+        private final DiskImage.Input in;
+        private final long imageId;
+        private final BlobStore store;
+        private final Map<Long, Content> blobs = new HashMap<>();
+
+        private Reader(DiskImage.Input in, long imageId, BlobStore store) {
+            this.in = in;
+            this.imageId = imageId;
+            this.store = store;
+        }
+
+        private Directory readDirectory(String name, long offset) throws IOException {
+            in.seek(offset);
+            int count = in.readVarInt();
+            byte[] kinds = new byte[count];
+            String[] names = new String[count];
+            String[] types = new String[count];
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) { // The whole segment is read before seeking to the children
+                kinds[i] = in.readByte();
+                names[i] = in.readString();
+                if (kinds[i] == KIND_DOCUMENT) {
+                    types[i] = in.readString();
+                } else if (kinds[i] != KIND_DIRECTORY) {
+                    throw new IOException("Unknown entry kind " + kinds[i] + ".");
+                }
+                offsets[i] = in.readVarLong();
+                if (offsets[i] >= offset) {
+                    throw new IOException("Invalid segment offset " + offsets[i] + " in disk image.");
+                }
+            }
+            Directory dir = new Directory(name);
+            for (int i = 0; i < count; i++) { // Children are complete, so the aggregates are correct
+                dir.addFile(kinds[i] == KIND_DOCUMENT ? new Document(names[i], types[i], readContent(offsets[i]))
+                        : readDirectory(names[i], offsets[i]));
+            }
+            dir.setSavedOffset(imageId, offset);
+            return dir;
+        }
+
+        private Content readContent(long offset) throws IOException {
+            Content content = blobs.get(offset);
+            if (content == null) {
+                in.seek(offset);
+                byte[] hash = in.readBytes(BlobStore.HASH_LENGTH);
+                content = DiskImage.readBlob(in, VERSION);
+                store.register(hash, content);
+                store.setSavedOffset(content, imageId, offset);
+                blobs.put(offset, content);
+            }
+            return content;
+        }
+    }
+}
@@ -1,15 +1,23 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.function.Predicate;
 
 /**
  * Represents a simple criterion that evaluates files based on specific attributes.
  * The attributes can be name, type, or size, with corresponding operators and values.
+ * The criterion is compiled once into a predicate with the unquoted literal or parsed number and the
+ * operator already resolved, so evaluating it does not parse or allocate anything per file.
  */
 public class SimpleCriterion extends Criterion implements Serializable {
+    private static final long serialVersionUID = -3790468967048609676L; // Unchanged since the original release
     private String attrName;
     private String operator;
     private String value;
+    private transient Predicate<File> predicate;
 
     /**
      * Constructs a new simple criterion with the specified name, attribute name, operator, and value.
@@ -59,6 +67,11 @@ public class SimpleCriterion extends Criterion implements Serializable {
                 if (!val.matches("^-?\\d+$")) {
                     throw new StateChangeCommandFailed("If attrName=size, then value must be an integer.");
                 }
+                try {
+                    Integer.parseInt(val);
+                } catch (NumberFormatException e) {
+                    throw new StateChangeCommandFailed("If attrName=size, then value must be an integer.");
+                }
                 break;
             default:
                 throw new StateChangeCommandFailed("attrName must be either name, size, type.");
@@ -66,6 +79,86 @@ public class SimpleCriterion extends Criterion implements Serializable {
         this.attrName=attrName;
         this.operator =op;
         this.value =val;
+        compile();
+    }
+
+    /**
+     * Compiles the attribute, operator and value into a predicate specialized for this criterion.
+     * The attribute, operator and value must already be validated.
+     */
+    private void compile(){
+        switch (attrName){
+            case "name":
+                String part = unquote(value);
+                predicate = file -> file.getName().contains(part);
+                break;
+            case "type":
+                String type = unquote(value);
+                predicate = file -> file instanceof Document && ((Document) file).getType().equals(type);
+                break;
+            default:
+                predicate = compileSize(operator, Integer.parseInt(value));
+        }
+    }
+
+    private static Predicate<File> compileSize(String operator, int bound){
+        switch (operator){
+            case "<":
+                return file -> file.getSize() < bound;
+            case "<=":
+                return file -> file.getSize() <= bound;
+            case ">":
+                return file -> file.getSize() > bound;
+            case ">=":
+                return file -> file.getSize() >= bound;
+            case "==":
+                return file -> file.getSize() == bound;
+            default:
+                return file -> file.getSize() != bound;
+        }
+    }
+
+    private static String unquote(String quoted){
+        return quoted.substring(1, quoted.length() - 1);
+    }
+
+    /**
+     * Recompiles the predicate, which is not serialized, after the criterion is read from a legacy file.
+     *
+     * @param in The stream to read from.
+     * @throws IOException            If an I/O error occurs.
+     * @throws ClassNotFoundException If a class cannot be found.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        compile();
+    }
+
+    /**
+     * Retrieves the attribute name of the criterion.
+     *
+     * @return The attribute name (name, type or size).
+     */
+    public String getAttrName() {
+        return attrName;
+    }
+
+    /**
+     * Retrieves the operator of the criterion.
+     *
+     * @return The operator.
+     */
+    public String getOperator() {
+        return operator;
+    }
+
+    /**
+     * Retrieves the value the attribute is compared against, as it was entered.
+     *
+     * @return The value, including the double quotes for name and type.
+     */
+    public String getValue() {
+        return value;
     }
 
     /**
@@ -76,33 +169,25 @@ public class SimpleCriterion extends Criterion implements Serializable {
      */
     @Override
     public boolean matches(File file) {
-            switch (this.attrName){
-                case "name":
-                    return file.getName().contains(value.replace("\"", ""));
-                case "type":
-                    if (file instanceof Document) {
-                        return ((Document) file).getType().equals(value.replace("\"", ""));
-                    }
-                    return false;
-                case "size":
-                    int fileSize= file.getSize();
-                    int value = Integer.valueOf(this.value);
-                    switch (this.operator){
-                        case "<":
-                            return fileSize<value;
-                        case "<=":
-                            return fileSize<=value;
-                        case ">":
-                            return fileSize>value;
-                        case ">=":
-                            return fileSize>=value;
-                        case "==":
-                            return fileSize==value;
-                        case "!=":
-                            return fileSize!=value;
-                    }
-            }
-        return false;
+        return predicate.test(file);
+    }
+
+    /**
+     * Looks up files by the trigrams of the name part, documents by type and files by size.
+     *
+     * @param index The index of the disk.
+     * @return The candidates, or {@code null} for name parts shorter than a trigram and the size operator !=.
+     */
+    @Override
+    Collection<File> indexedCandidates(FileIndex index) {
+        switch (attrName){
+            case "name":
+                return index.withNamePart(unquote(value));
+            case "type":
+                return index.ofType(unquote(value));
+            default:
+                return index.ofSize(operator, Integer.parseInt(value));
+        }
     }
 
     /**
@@ -5,6 +5,7 @@ package hk.edu.polyu.comp.comp2021.cvfs.model;
  * This exception is thrown to indicate errors in operations such as creating, renaming, or deleting files, and e.t.c.
  */
 public class StateChangeCommandFailed extends RuntimeException{
+    private static final long serialVersionUID = 7146196395252364379L; // Unchanged since the original release
     /**
      * Constructs a new {@code StateChangeCommandFailed} exception with the specified error message.
      *
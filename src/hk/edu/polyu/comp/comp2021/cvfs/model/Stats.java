@@ -0,0 +1,278 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms and counters of one {@link CVFS}: one histogram per command name, timed by the caller
+ * that dispatches commands, and one per {@link Phase} of the work inside the commands.
+ * Sessions opened with {@link CVFS#openSession()} record into the statistics of the session that opened them;
+ * the disk and undo figures are those of that session.
+ * <p>
+ * Timing is off unless the system property {@code cvfs.stats} is {@code true} or it is switched on with
+ * {@link #setEnabled(boolean)}. While it is off, {@link #start()} returns without reading the clock and
+ * {@link #stop(Phase, long)} returns at once, so the instrumentation costs a field read per phase.
+ */
+public class Stats implements StatsMBean {
+    /**
+     * The object name under which {@link #register()} publishes the statistics.
+     */
+    public static final String OBJECT_NAME = "hk.edu.polyu.comp.comp2021.cvfs:type=Stats";
+    private static final long DISABLED = Long.MIN_VALUE;
+    private static final int MAX_COMMANDS = 64; // Further names are counted as "other"
+
+    /**
+     * The parts of a command that are timed separately.
+     */
+    public enum Phase {
+        /** Checking arguments and free space before a change. */
+        VALIDATION,
+        /** Recording what a command changed in the undo history, including capturing the disk for a restore. */
+        UNDO,
+        /** Changing the directory tree. */
+        MUTATION,
+        /** Finding the candidates of a search in the indexes. */
+        SEARCH,
+        /** Walking directories for a listing and printing the results. */
+        RENDERING,
+        /** Writing a disk image. */
+        SAVE,
+        /** Reading a disk image. */
+        LOAD,
+        /** Waiting for the journal to be written and forced, including checkpoints. */
+        JOURNAL,
+        /** Reading a host directory tree for an import. */
+        IMPORT,
+        /** Writing a directory to the host file system. */
+        EXPORT;
+
+        /**
+         * Retrieves the name of the phase as shown in reports.
+         *
+         * @return The lower-case name.
+         */
+        public String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final CVFS cvfs;
+    private volatile boolean enabled = Boolean.getBoolean("cvfs.stats");
+    private final Map<String, LatencyHistogram> commands = new ConcurrentHashMap<>();
+    private final Map<Phase, LatencyHistogram> phases = new EnumMap<>(Phase.class);
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+
+    /**
+     * Constructs the statistics of a file system.
+     *
+     * @param cvfs The file system whose disk and undo history are reported.
+     */
+    Stats(CVFS cvfs) {
+        this.cvfs = cvfs;
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Starts timing a command or phase.
+     *
+     * @return The start time to pass to {@link #stop(Phase, long)} or {@link #stopCommand(String, long)}.
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : DISABLED;
+    }
+
+    /**
+     * Records the time since {@link #start()} for a phase.
+     *
+     * @param phase The phase that finished.
+     * @param start The value returned by {@link #start()}.
+     */
+    public void stop(Phase phase, long start) {
+        if (start != DISABLED) {
+            phases.get(phase).record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records the time since {@link #start()} for a command.
+     *
+     * @param command The name of the command, e.g. {@code rSearch}.
+     * @param start   The value returned by {@link #start()}.
+     */
+    public void stopCommand(String command, long start) {
+        if (start == DISABLED) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        LatencyHistogram histogram = commands.get(command);
+        if (histogram == null) {
+            String name = commands.size() < MAX_COMMANDS ? command : "other";
+            histogram = commands.computeIfAbsent(name, n -> new LatencyHistogram());
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Counts bytes read from a disk image.
+     *
+     * @param bytes The number of bytes.
+     */
+    void addBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    /**
+     * Counts bytes written to a disk image.
+     *
+     * @param bytes The number of bytes.
+     */
+    void addBytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * Publishes these statistics as the MBean {@value #OBJECT_NAME}, replacing any earlier registration.
+     *
+     * @throws IllegalStateException If the platform MBean server rejects the registration.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register statistics: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public long getCommandCount() {
+        long count = 0;
+        for (LatencyHistogram histogram : commands.values()) {
+            count += histogram.getCount();
+        }
+        return count;
+    }
+
+    @Override
+    public int getEntryCount() {
+        VirtualDisk disk = cvfs.getDisk();
+        return disk == null ? 0 : disk.getRoot().getDescendantCount();
+    }
+
+    @Override
+    public int getIndexedFileCount() {
+        VirtualDisk disk = cvfs.getDisk();
+        return disk == null ? 0 : disk.getIndexedFileCount();
+    }
+
+    @Override
+    public int getIndexKeyCount() {
+        VirtualDisk disk = cvfs.getDisk();
+        return disk == null ? 0 : disk.getIndexKeyCount();
+    }
+
+    @Override
+    public int getUndoEntryCount() {
+        return cvfs.getUndoCount();
+    }
+
+    @Override
+    public long getUndoBytes() {
+        return cvfs.getUndoHistorySize();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * Retrieves the histogram of a command or phase.
+     *
+     * @param name A command name, or the label of a phase.
+     * @return The histogram, or {@code null} if nothing with this name was timed.
+     */
+    public LatencyHistogram getHistogram(String name) {
+        for (Phase phase : Phase.values()) {
+            if (phase.label().equals(name)) {
+                return phases.get(phase);
+            }
+        }
+        return commands.get(name);
+    }
+
+    @Override
+    public double latencyMicros(String name, double percentile) {
+        LatencyHistogram histogram = getHistogram(name);
+        return histogram == null ? -1 : histogram.getPercentile(percentile) / 1000.0;
+    }
+
+    @Override
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append("Statistics are ").append(enabled ? "on" : "off (enable with 'stats on')").append('\n');
+        report.append(String.format("%-16s %9s %10s %10s %10s %10s%n", "Command", "Count", "Mean us", "p50 us", "p99 us", "Max us"));
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(commands).entrySet()) {
+            appendRow(report, entry.getKey(), entry.getValue());
+        }
+        report.append("Phase").append('\n');
+        for (Phase phase : Phase.values()) {
+            appendRow(report, phase.label(), phases.get(phase));
+        }
+        report.append("Entries: ").append(getEntryCount())
+                .append(", Indexed files: ").append(getIndexedFileCount())
+                .append(", Index keys: ").append(getIndexKeyCount()).append('\n');
+        report.append("Undo entries: ").append(getUndoEntryCount())
+                .append(", Undo history: ~").append(getUndoBytes()).append(" bytes").append('\n');
+        report.append("Bytes read: ").append(getBytesRead())
+                .append(", Bytes written: ").append(getBytesWritten());
+        return report.toString();
+    }
+
+    private static void appendRow(StringBuilder report, String name, LatencyHistogram histogram) {
+        long count = histogram.getCount();
+        report.append(String.format("  %-14s %9d %10.1f %10.1f %10.1f %10.1f%n", name, count,
+                count == 0 ? 0.0 : histogram.getTotal() / 1000.0 / count,
+                histogram.getPercentile(50) / 1000.0, histogram.getPercentile(99) / 1000.0, histogram.getMax() / 1000.0));
+    }
+
+    @Override
+    public void reset() {
+        commands.clear();
+        for (LatencyHistogram histogram : phases.values()) {
+            histogram.reset();
+        }
+        bytesRead.reset();
+        bytesWritten.reset();
+    }
+}
@@ -0,0 +1,97 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+/**
+ * The management interface of {@link Stats}, registered with the platform MBean server by {@link Stats#register()}.
+ */
+public interface StatsMBean {
+    /**
+     * Retrieves whether commands and phases are being timed.
+     *
+     * @return Whether commands and phases are being timed.
+     */
+    boolean isEnabled();
+
+    /**
+     * Starts or stops timing commands and phases.
+     *
+     * @param enabled Whether to time commands and phases.
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * Retrieves the number of timed commands.
+     *
+     * @return The number of commands timed since the last reset.
+     */
+    long getCommandCount();
+
+    /**
+     * Retrieves the number of entries on the disk.
+     *
+     * @return The number of files and directories on the disk.
+     */
+    int getEntryCount();
+
+    /**
+     * Retrieves the size of the search indexes in files.
+     *
+     * @return The number of files in the search indexes, 0 if they have not been built.
+     */
+    int getIndexedFileCount();
+
+    /**
+     * Retrieves the size of the search indexes in keys.
+     *
+     * @return The number of distinct keys in the search indexes.
+     */
+    int getIndexKeyCount();
+
+    /**
+     * Retrieves the number of undoable commands.
+     *
+     * @return The number of undoable commands.
+     */
+    int getUndoEntryCount();
+
+    /**
+     * Retrieves the memory held by the undo history.
+     *
+     * @return An estimate of the bytes held by the undo and redo history.
+     */
+    long getUndoBytes();
+
+    /**
+     * Retrieves the bytes read from disk images.
+     *
+     * @return The bytes read by load commands since the last reset.
+     */
+    long getBytesRead();
+
+    /**
+     * Retrieves the bytes written to disk images.
+     *
+     * @return The bytes written by save commands since the last reset.
+     */
+    long getBytesWritten();
+
+    /**
+     * Looks up a latency percentile of a command or phase.
+     *
+     * @param name       A command name such as {@code rSearch}, or a phase name such as {@code mutation}.
+     * @param percentile The percentage, from 0 to 100.
+     * @return The latency in microseconds, or -1 if nothing with this name was timed.
+     */
+    double latencyMicros(String name, double percentile);
+
+    /**
+     * Formats all statistics.
+     *
+     * @return The report printed by the {@code stats} command.
+     */
+    String report();
+
+    /**
+     * Discards all latencies and counters.
+     */
+    void reset();
+}
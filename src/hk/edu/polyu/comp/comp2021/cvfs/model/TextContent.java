@@ -0,0 +1,30 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.Serializable;
+
+/**
+ * Document content held on the heap as a string.
+ */
+public class TextContent extends Content implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String text;
+
+    /**
+     * Constructs content from a string.
+     *
+     * @param text The text of the content.
+     */
+    public TextContent(String text) {
+        this.text = text;
+    }
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public String getText() {
+        return text;
+    }
+}
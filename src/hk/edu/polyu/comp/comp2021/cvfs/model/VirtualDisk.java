@@ -1,14 +1,106 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
 /**
  * Represents a virtual disk in the file system.
  * The virtual disk manages file and directory operations, including navigation and storage limitations.
+ * <p>
+ * The directory tree is persistent: a snapshot only captures the root and freezes every existing node.
+ * Later changes copy the frozen directories on the path from the root to the working directory
+ * and leave everything else shared with the snapshots.
+ * <p>
+ * Several sessions can work on one disk: {@link #openSession()} returns another view of the same tree with its
+ * own working directory. The views are not thread-safe themselves, but a session may use its view concurrently
+ * with other sessions as long as it holds the read lock of {@link #getLock()} while reading the tree and the
+ * write lock while changing it. When another session has changed the tree, the working directory is looked
+ * up again by name; if it no longer exists, the view moves up to its deepest remaining ancestor.
+ * <p>
+ * Directories are addressed by paths of names separated by "/", either absolute, starting with "/" or "$",
+ * or relative to the working directory; "." names the directory itself and ".." its parent. Every name is
+ * looked up in the hashed index of its parent, so resolving a path costs time linear in its length.
  */
 public class VirtualDisk implements Serializable {
-    private final int maxSize;
-    private final Directory root;
-    private Directory currentDirectory;
+    private static final long serialVersionUID = 2L; // Changed since the original release, whose files LegacyImage reads
+    private final State state;
+    private final List<Directory> path; // Directories from the root down to the working directory
+    private transient long pathVersion; // The version of the tree the path was resolved against
+    private transient String pathName; // The working directory as "$/a/b", null until it is needed again
+    private transient List<Directory> home; // The working path while a change runs in another directory
+
+    /**
+     * The tree and everything else the sessions of a disk share.
+     */
+    private static final class State implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+        private Directory root;
+        private transient volatile Object owner; // Nodes owned by this token can be changed in place
+        private transient Map<String, Snapshot> snapshots;
+        private transient volatile FileIndex index; // Built on first search, dropped when the tree is replaced
+        private transient volatile SearchCache searchCache; // Built on first search; keyed by directory, never stale
+        private transient volatile BlobStore blobs; // Built on first use, dropped when the tree is replaced
+        private transient ReadWriteLock lock;
+        private transient long version; // Incremented by every change of the tree
+        private transient volatile Journal journal; // Records every change, if the disk is journaled
+        private transient long imageId; // The segmented image the tree was last saved to or loaded from
+        private transient long imageSequence; // The save of that image
+
+        private State(int maxSize, Directory root, BlobStore blobs) {
+            this.maxSize = maxSize;
+            this.root = root;
+            this.blobs = blobs;
+            this.snapshots = new LinkedHashMap<>();
+            this.lock = new ReentrantReadWriteLock();
+        }
+
+        /**
+         * Restores the transient state after deserialization; a loaded disk has no snapshots.
+         *
+         * @param in The stream to read from.
+         * @throws IOException            If an I/O error occurs.
+         * @throws ClassNotFoundException If a class of the disk cannot be found.
+         */
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            snapshots = new LinkedHashMap<>();
+            lock = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * An immutable capture of the directory tree and the working directory.
+     */
+    public static final class Snapshot {
+        private final Directory root;
+        private final Directory[] path;
+
+        private Snapshot(Directory root, List<Directory> path) {
+            this.root = root;
+            this.path = path.toArray(new Directory[0]);
+        }
+
+        /**
+         * Retrieves the root directory captured by this snapshot.
+         *
+         * @return The captured root directory.
+         */
+        public Directory getRoot() {
+            return root;
+        }
+    }
 
     /**
      * Constructs a new virtual disk with the specified maximum size.
@@ -17,9 +109,66 @@ public class VirtualDisk implements Serializable {
      * @param size The maximum size of the disk in bytes.
      */
     public VirtualDisk(int size) {
-        this.maxSize = size;
-        this.root = new Directory("root");
-        this.currentDirectory = root;
+        this(size, new Directory("root"));
+    }
+
+    /**
+     * Constructs a virtual disk around an existing directory tree, e.g. one read from a disk image.
+     * The root becomes the current directory.
+     *
+     * @param size The maximum size of the disk in bytes.
+     * @param root The root directory.
+     */
+    VirtualDisk(int size, Directory root) {
+        this(size, root, null);
+    }
+
+    /**
+     * Constructs a virtual disk around an existing directory tree whose content is already deduplicated.
+     * The root becomes the current directory.
+     *
+     * @param size  The maximum size of the disk in bytes.
+     * @param root  The root directory.
+     * @param blobs The store holding the content of every document of the tree, or {@code null} to build it when needed.
+     */
+    VirtualDisk(int size, Directory root, BlobStore blobs) {
+        this(new State(size, root, blobs));
+    }
+
+    private VirtualDisk(State state) {
+        this.state = state;
+        this.path = new ArrayList<>();
+        this.path.add(state.root);
+        this.pathVersion = state.version;
+    }
+
+    /**
+     * Opens another session on this disk. The new view shares the directory tree, snapshots and lock,
+     * and has its own working directory, which starts at the root.
+     *
+     * @return The new view of this disk.
+     */
+    public VirtualDisk openSession() {
+        return new VirtualDisk(state);
+    }
+
+    /**
+     * Retrieves the lock that sessions of this disk hold while reading (read lock) or changing (write lock) the tree.
+     * Listings and searches of many sessions can run in parallel, while changes are serialized.
+     *
+     * @return The read-write lock shared by all sessions of the disk.
+     */
+    public ReadWriteLock getLock() {
+        return state.lock;
+    }
+
+    /**
+     * Retrieves the maximum size of the virtual disk.
+     *
+     * @return The maximum size in bytes.
+     */
+    public int getMaxSize() {
+        return state.maxSize;
     }
 
     /**
@@ -28,7 +177,16 @@ public class VirtualDisk implements Serializable {
      * @return The remaining size of the disk in bytes.
      */
     public int getRemainedSize() {
-        return maxSize - root.getSize();
+        return state.maxSize - state.root.getSize();
+    }
+
+    /**
+     * Retrieves the root directory of the virtual disk.
+     *
+     * @return The root directory.
+     */
+    public Directory getRoot() {
+        return state.root;
     }
 
     /**
@@ -37,31 +195,555 @@ public class VirtualDisk implements Serializable {
      * @return The current directory.
      */
     public Directory getCurrentDirectory() {
-        return currentDirectory;
+        resolvePath();
+        return path.get(path.size() - 1);
     }
 
     /**
-     * Changes the current working directory to the specified directory.
-     * If the directory name is "..", it navigates to the parent directory unless already at the root.
+     * Retrieves the directories from the root down to the current working directory.
      *
-     * @param dirName The name of the directory to navigate to.
-     * @throws StateChangeCommandFailed If navigating to a non-existent directory or already at the root.
+     * @return A read-only list starting with the root and ending with the current directory.
      */
-    public void changeDirectory(String dirName){
-        if (dirName.equals("..")) {
-            if (currentDirectory != root) {
-                currentDirectory = currentDirectory.getParent();
-            } else {
-                throw new StateChangeCommandFailed("Already at root directory.");
+    public List<Directory> getPath() {
+        resolvePath();
+        return Collections.unmodifiableList(path);
+    }
+
+    /**
+     * Retrieves the absolute path of the current working directory, e.g. "$/a/b".
+     * The string is built once and kept until the working directory changes.
+     *
+     * @return The path, "$" for the root.
+     */
+    public String getPathName() {
+        resolvePath();
+        if (pathName == null) {
+            StringBuilder name = new StringBuilder("$");
+            for (int i = 1; i < path.size(); i++) {
+                name.append('/').append(path.get(i).getName());
             }
+            pathName = name.toString();
+        }
+        return pathName;
+    }
+
+    /**
+     * Changes the current working directory to the specified directory.
+     * The path may name a subdirectory, "..", or several levels at once, e.g. "a/b", "../c" or "/a/b".
+     *
+     * @param dirPath The path of the directory to navigate to.
+     * @return The absolute path of the directory that was left, see {@link #getPathName()}.
+     * @throws StateChangeCommandFailed If a directory on the path does not exist, or the path leads above the root.
+     */
+    public String changeDirectory(String dirPath){
+        String left = getPathName(); // Also brings the path up to date
+        List<Directory> resolved = resolve(dirPath);
+        path.clear();
+        path.addAll(resolved);
+        pathName = null;
+        return left;
+    }
+
+    /**
+     * Runs a change in another directory as if it were the working directory, then returns to the working directory.
+     * Within the change, the working directory and its ancestors cannot be removed or renamed.
+     *
+     * @param dirPath The path of the directory, or {@code null} for the working directory.
+     * @param change  The change, which calls the methods of this disk that act on the current directory.
+     * @param <T>     The type of the result of the change.
+     * @return The result of the change.
+     * @throws StateChangeCommandFailed If a directory on the path does not exist, or the change fails.
+     */
+    public <T> T inDirectory(String dirPath, Supplier<T> change) {
+        if (dirPath == null) {
+            return change.get();
+        }
+        List<Directory> target = resolve(dirPath);
+        List<Directory> working = new ArrayList<>(path);
+        String workingName = pathName;
+        long workingVersion = pathVersion;
+        path.clear();
+        path.addAll(target);
+        pathName = null;
+        home = working;
+        try {
+            return change.get();
+        } finally {
+            home = null;
+            path.clear();
+            path.addAll(working);
+            pathName = workingName;
+            pathVersion = workingVersion; // Looks the working directory up again if the change copied it
+        }
+    }
+
+    /**
+     * Looks up the directories along a path.
+     *
+     * @param dirPath An absolute path, or one relative to the working directory.
+     * @return The directories from the root down to the one the path names.
+     * @throws StateChangeCommandFailed If a directory on the path does not exist, or the path leads above the root.
+     */
+    private List<Directory> resolve(String dirPath) {
+        List<Directory> resolved;
+        int start = 0;
+        if (dirPath.startsWith("/") || dirPath.startsWith("$")) {
+            resolved = new ArrayList<>();
+            resolved.add(state.root);
+            start = 1;
         } else {
-            for (File file : currentDirectory.getFiles()) {
-                if (file instanceof Directory && file.getName().equals(dirName)) {
-                    currentDirectory = (Directory) file;
-                    return;
+            resolved = new ArrayList<>(getPath());
+        }
+        while (start <= dirPath.length()) {
+            int end = dirPath.indexOf('/', start);
+            if (end < 0) {
+                end = dirPath.length();
+            }
+            String name = dirPath.substring(start, end);
+            start = end + 1;
+            if (name.isEmpty() || name.equals(".")) {
+                continue;
+            }
+            if (name.equals("..")) {
+                if (resolved.size() == 1) {
+                    throw new StateChangeCommandFailed("Already at root directory.");
+                }
+                resolved.remove(resolved.size() - 1);
+                continue;
+            }
+            File file = resolved.get(resolved.size() - 1).findFile(name);
+            if (!(file instanceof Directory)) {
+                throw new StateChangeCommandFailed("Directory with the name '" + name + "' does not exist.");
+            }
+            resolved.add((Directory) file);
+        }
+        return resolved;
+    }
+
+    /**
+     * Adds a file or directory to the end of the current directory.
+     *
+     * @param file The file or directory to add.
+     * @throws StateChangeCommandFailed If a file with the same name already exists.
+     */
+    public void addFile(File file) {
+        addFileAfter(file, getCurrentDirectory().getLastName());
+    }
+
+    /**
+     * Adds a file or directory to the current directory right after another child.
+     *
+     * @param file         The file or directory to add.
+     * @param previousName The name of the child to insert after, or {@code null} to insert at the beginning.
+     * @throws StateChangeCommandFailed If a file with the same name already exists, or the previous child does not exist.
+     */
+    public void addFileAfter(File file, String previousName) {
+        Directory dir = getCurrentDirectory();
+        if (dir.findFile(file.getName()) != null) {
+            throw new StateChangeCommandFailed("A file with the name '" + file.getName() + "' already exists.");
+        }
+        dir = editableCurrentDirectory();
+        dir.addFileAfter(file, previousName);
+        Journal journal = state.journal;
+        if (journal != null) {
+            journal.logAdd(path, file, previousName);
+        }
+        adjustAncestors(file.getSize(), Directory.countOf(file));
+        FileIndex index = state.index;
+        if (index != null) {
+            index.add(file, dir);
+            resizePath(index, file.getSize());
+        }
+        if (state.blobs != null) {
+            state.blobs.retainAll(file);
+        }
+        changed();
+    }
+
+    /**
+     * Removes a file or directory by its name from the current directory.
+     *
+     * @param fileName The name of the file or directory to remove.
+     * @return The removed file or directory.
+     * @throws StateChangeCommandFailed If no file with the specified name exists.
+     */
+    public File removeFile(String fileName) {
+        File file = getCurrentDirectory().findFile(fileName);
+        if (file == null) {
+            throw new StateChangeCommandFailed("A file with the name '" + fileName + "' doesn't exist.");
+        }
+        checkNotWorkingPath(file);
+        File removed = editableCurrentDirectory().removeFile(fileName);
+        Journal journal = state.journal;
+        if (journal != null) {
+            journal.logRemove(path, fileName);
+        }
+        adjustAncestors(-removed.getSize(), -Directory.countOf(removed));
+        FileIndex index = state.index;
+        if (index != null) {
+            index.remove(removed);
+            resizePath(index, -removed.getSize());
+        }
+        if (state.blobs != null) {
+            state.blobs.releaseAll(removed);
+        }
+        changed();
+        return removed;
+    }
+
+    /**
+     * Renames a file or directory in the current directory.
+     * A file shared with a snapshot is copied before it is renamed.
+     *
+     * @param oldFileName The current name of the file or directory.
+     * @param newFileName The new name for the file or directory.
+     * @throws StateChangeCommandFailed If the file does not exist or the new name is invalid or taken.
+     */
+    public void renameFile(String oldFileName, String newFileName) {
+        File file = getCurrentDirectory().findFile(oldFileName);
+        if (file == null) {
+            throw new StateChangeCommandFailed("A file with the name '" + oldFileName + "' does not exist.");
+        }
+        checkNotWorkingPath(file);
+        Directory dir = editableCurrentDirectory();
+        FileIndex index = state.index;
+        if (file.getOwner() != state.owner) {
+            File copy = file.copy(state.owner);
+            dir.replaceFile(oldFileName, copy);
+            if (index != null) {
+                index.replace(file, copy);
+            }
+        }
+        dir.renameFile(oldFileName, newFileName);
+        if (index != null) {
+            index.rename(dir.findFile(newFileName), oldFileName);
+        }
+        Journal journal = state.journal;
+        if (journal != null) {
+            journal.logRename(path, oldFileName, newFileName);
+        }
+        changed();
+    }
+
+    /**
+     * Refuses to change a directory that the working path of this session, while a change runs elsewhere, goes through.
+     */
+    private void checkNotWorkingPath(File file) {
+        if (home != null) {
+            for (Directory dir : home) {
+                if (dir == file) {
+                    throw new StateChangeCommandFailed("The working directory or one of its parents cannot be changed.");
                 }
             }
-            throw new StateChangeCommandFailed("Directory with the name '" + dirName + "' does not exist.");
+        }
+    }
+
+    /**
+     * Searches the current directory with the secondary indexes of the disk.
+     * The matches are in the same order and at the same depth as a walk of the directory would list them.
+     *
+     * @param criterion The criterion to match.
+     * @param recursive Whether to include files in subdirectories.
+     * @return The matching files, or {@code null} if the index cannot narrow the search and the directory should be walked.
+     */
+    public List<ListedFile> search(Criterion criterion, boolean recursive) {
+        Collection<File> candidates = criterion.indexedCandidates(getIndex());
+        if (candidates == null) {
+            return null;
+        }
+        Directory dir = getCurrentDirectory();
+        // Ordering a candidate costs about as much as matching 30 files in a walk (see TreeBenchmark)
+        int limit = (recursive ? dir.getDescendantCount() : dir.getFiles().size()) / 32;
+        return state.index.collect(candidates, criterion, dir, recursive, limit);
+    }
+
+    /**
+     * Recursively searches the current directory by walking it, reusing the matches of the subdirectories that
+     * have not changed since an earlier search with the same criterion, see {@link SearchCache}.
+     *
+     * @param criterion The criterion to match.
+     * @return The matching files in listing order with their depth below the current directory.
+     */
+    public Iterator<ListedFile> walkSearch(Criterion criterion) {
+        return getSearchCache().search(getCurrentDirectory(), criterion);
+    }
+
+    /**
+     * Searches the current directory with the matches cached by an earlier {@link #walkSearch(Criterion)},
+     * without walking it.
+     *
+     * @param criterion The criterion to match.
+     * @param recursive Whether to include files in subdirectories.
+     * @return The matching files, or {@code null} if the current directory has changed since it was last searched
+     * with the criterion and should be walked.
+     */
+    public Iterator<ListedFile> cachedSearch(Criterion criterion, boolean recursive) {
+        return getSearchCache().cached(getCurrentDirectory(), criterion, recursive);
+    }
+
+    /**
+     * Retrieves the cache of search results shared by the sessions of this disk, building it on first use.
+     *
+     * @return The search cache.
+     */
+    public SearchCache getSearchCache() {
+        SearchCache cache = state.searchCache;
+        if (cache == null) {
+            synchronized (state) {
+                cache = state.searchCache;
+                if (cache == null) {
+                    cache = new SearchCache();
+                    state.searchCache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Retrieves the secondary indexes of the live tree, building them on first use.
+     * Sessions holding the read lock may call this concurrently; only one of them builds the index.
+     *
+     * @return The index of all files on the disk.
+     */
+    FileIndex getIndex() {
+        FileIndex index = state.index;
+        if (index == null) {
+            synchronized (state) {
+                index = state.index;
+                if (index == null) {
+                    index = FileIndex.build(state.root);
+                    state.index = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Retrieves the store of the distinct document contents of the live tree, building it on first use.
+     * New documents should take their content from {@link BlobStore#intern(String)} so equal content is shared.
+     *
+     * @return The blob store of the disk.
+     */
+    public BlobStore getBlobStore() {
+        BlobStore blobs = state.blobs;
+        if (blobs == null) {
+            synchronized (state) {
+                blobs = state.blobs;
+                if (blobs == null) {
+                    blobs = BlobStore.build(state.root);
+                    state.blobs = blobs;
+                }
+            }
+        }
+        return blobs;
+    }
+
+    /**
+     * Retrieves the number of files in the search indexes without building them.
+     *
+     * @return The number of indexed files, 0 if the indexes have not been built.
+     */
+    int getIndexedFileCount() {
+        FileIndex index = state.index;
+        return index == null ? 0 : index.size();
+    }
+
+    /**
+     * Retrieves the number of keys in the search indexes without building them.
+     *
+     * @return The number of keys, 0 if the indexes have not been built.
+     */
+    int getIndexKeyCount() {
+        FileIndex index = state.index;
+        return index == null ? 0 : index.getKeyCount();
+    }
+
+    /**
+     * Captures the current directory tree and working directory in constant time.
+     * Every existing node becomes frozen and is copied by the first change that touches it.
+     * The read lock is enough, since sessions capturing at the same time all freeze the same tree.
+     *
+     * @return The captured state.
+     */
+    public Snapshot capture() {
+        state.owner = new Object();
+        return new Snapshot(state.root, getPath());
+    }
+
+    /**
+     * Replaces the directory tree and working directory with a captured state.
+     * The working directories of other sessions are looked up again in the restored tree.
+     *
+     * @param snapshot The state to restore.
+     */
+    public void restore(Snapshot snapshot) {
+        state.owner = new Object();
+        state.index = null;
+        state.blobs = null;
+        state.root = snapshot.root;
+        path.clear();
+        Collections.addAll(path, snapshot.path);
+        pathName = null;
+        Journal journal = state.journal;
+        if (journal != null) {
+            journal.logRestore(state.root);
+        }
+        changed();
+    }
+
+    /**
+     * Replaces the directory tree with another one, e.g. one replayed from a {@link Journal}.
+     * The root becomes the working directory of this view.
+     *
+     * @param root The new root directory.
+     */
+    void restore(Directory root) {
+        restore(new Snapshot(root, Collections.singletonList(root)));
+    }
+
+    /**
+     * Retrieves the journal recording the changes of this disk.
+     *
+     * @return The journal, or {@code null} if changes are not journaled.
+     */
+    public Journal getJournal() {
+        return state.journal;
+    }
+
+    /**
+     * Starts or stops journaling the changes of all sessions of this disk.
+     * The caller must hold the write lock.
+     *
+     * @param journal The journal to record changes in, or {@code null} to stop journaling.
+     */
+    void setJournal(Journal journal) {
+        state.journal = journal;
+    }
+
+    /**
+     * Retrieves the identifier of the segmented image this disk was last saved to or loaded from.
+     *
+     * @return The identifier, or 0 if the next save has to write the whole disk.
+     */
+    long getImageId() {
+        return state.imageId;
+    }
+
+    /**
+     * Retrieves the sequence number of the save this disk was last saved to or loaded from.
+     *
+     * @return The sequence number within the image of {@link #getImageId()}.
+     */
+    long getImageSequence() {
+        return state.imageSequence;
+    }
+
+    /**
+     * Records the segmented image and save this disk was saved to or loaded from.
+     *
+     * @param imageId  The identifier of the image, or 0 to make the next save write the whole disk.
+     * @param sequence The sequence number of the save.
+     */
+    void setImage(long imageId, long sequence) {
+        state.imageId = imageId;
+        state.imageSequence = sequence;
+    }
+
+    /**
+     * Retrieves the named snapshots of this disk in creation order.
+     * Snapshots live only as long as the disk is open and are not saved with it.
+     *
+     * @return The map from snapshot names to snapshots.
+     */
+    public Map<String, Snapshot> getSnapshots() {
+        return state.snapshots;
+    }
+
+    /**
+     * Makes every directory on the working path changeable in place, copying the frozen ones, and marks them
+     * as changed since the last save. Only the path is copied; all other nodes stay shared with the snapshots.
+     *
+     * @return The changeable current directory.
+     */
+    private Directory editableCurrentDirectory() {
+        resolvePath();
+        for (int i = 0; i < path.size(); i++) {
+            Directory dir = path.get(i);
+            if (dir.getOwner() != state.owner) {
+                Directory copy = (Directory) dir.copy(state.owner);
+                if (i == 0) {
+                    state.root = copy;
+                } else {
+                    path.get(i - 1).replaceFile(dir.getName(), copy);
+                }
+                path.set(i, copy);
+                if (state.index != null) {
+                    state.index.replace(dir, copy);
+                }
+            } else {
+                dir.markChanged(); // A copy has never been saved
+            }
+        }
+        return path.get(path.size() - 1);
+    }
+
+    /**
+     * Looks up the working directory again if another session has changed the tree since it was resolved.
+     * The directories are found by name from the current root; the path ends at the deepest one that still exists.
+     */
+    private void resolvePath() {
+        if (pathVersion == state.version) {
+            return;
+        }
+        Directory dir = state.root;
+        List<Directory> resolved = new ArrayList<>(path.size());
+        resolved.add(dir);
+        for (int i = 1; i < path.size(); i++) {
+            File child = dir.findFile(path.get(i).getName());
+            if (!(child instanceof Directory)) {
+                break;
+            }
+            dir = (Directory) child;
+            resolved.add(dir);
+        }
+        path.clear();
+        path.addAll(resolved);
+        pathVersion = state.version;
+        pathName = null;
+    }
+
+    /**
+     * Marks the tree as changed, so other sessions look up their working directories again.
+     * The path of this session is already up to date.
+     */
+    private void changed() {
+        pathVersion = ++state.version;
+    }
+
+    /**
+     * Applies a change in size and entry count to every ancestor of the current directory.
+     * The ancestors must already be changeable.
+     *
+     * @param sizeDelta  The change in size in bytes.
+     * @param countDelta The change in the number of descendants.
+     */
+    private void adjustAncestors(int sizeDelta, int countDelta) {
+        for (int i = path.size() - 2; i >= 0; i--) {
+            path.get(i).adjustAggregates(sizeDelta, countDelta);
+        }
+    }
+
+    /**
+     * Moves every directory on the working path to its new place in the size index.
+     *
+     * @param index     The index to update.
+     * @param sizeDelta The change in size the directories already have.
+     */
+    private void resizePath(FileIndex index, int sizeDelta) {
+        for (Directory dir : path) {
+            index.resize(dir, dir.getSize() - sizeDelta);
         }
     }
 }
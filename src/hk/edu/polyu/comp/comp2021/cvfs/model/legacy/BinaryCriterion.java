@@ -0,0 +1,42 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model.legacy;
+
+/**
+ * The serialized layout of a binary criterion of the original release.
+ */
+public final class BinaryCriterion extends Criterion {
+    private static final long serialVersionUID = -7519289443570616173L;
+
+    private Criterion criterionF;
+    private Criterion criterionS;
+    private String logicOp;
+
+    private BinaryCriterion() {
+    }
+
+    /**
+     * Retrieves the first operand.
+     *
+     * @return The first criterion.
+     */
+    public Criterion getFirstCriterion() {
+        return criterionF;
+    }
+
+    /**
+     * Retrieves the second operand.
+     *
+     * @return The second criterion.
+     */
+    public Criterion getSecondCriterion() {
+        return criterionS;
+    }
+
+    /**
+     * Retrieves the logical operator.
+     *
+     * @return "&amp;&amp;" or "||".
+     */
+    public String getLogicOp() {
+        return logicOp;
+    }
+}
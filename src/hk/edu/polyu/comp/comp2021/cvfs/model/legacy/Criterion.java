@@ -0,0 +1,24 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model.legacy;
+
+import java.io.Serializable;
+
+/**
+ * The serialized layout of a criterion of the original release.
+ */
+public abstract class Criterion implements Serializable {
+    private static final long serialVersionUID = -2567474117770152795L;
+
+    private String name;
+
+    Criterion() {
+    }
+
+    /**
+     * Retrieves the name of the criterion.
+     *
+     * @return The name of the criterion.
+     */
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,35 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model.legacy;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The serialized layout of a directory of the original release.
+ */
+public final class Directory extends File {
+    private static final long serialVersionUID = 1054541458820887051L;
+
+    private List<File> files;
+    private Directory parent;
+
+    private Directory() {
+    }
+
+    /**
+     * Retrieves the files of the directory.
+     *
+     * @return The files in listing order.
+     */
+    public List<File> getFiles() {
+        return files == null ? Collections.<File>emptyList() : files;
+    }
+
+    /**
+     * Retrieves the parent directory.
+     *
+     * @return The parent, or {@code null} for the root.
+     */
+    public Directory getParent() {
+        return parent;
+    }
+}
@@ -0,0 +1,32 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model.legacy;
+
+/**
+ * The serialized layout of a document of the original release.
+ */
+public final class Document extends File {
+    private static final long serialVersionUID = 5888789498573917433L;
+
+    private String type;
+    private String content;
+
+    private Document() {
+    }
+
+    /**
+     * Retrieves the type of the document.
+     *
+     * @return The type, e.g. "txt".
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Retrieves the content of the document.
+     *
+     * @return The content.
+     */
+    public String getContent() {
+        return content;
+    }
+}
@@ -0,0 +1,25 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model.legacy;
+
+import java.io.Serializable;
+
+/**
+ * The serialized layout of a file of the original release.
+ */
+public abstract class File implements Serializable {
+    private static final long serialVersionUID = 2875056720452520569L;
+
+    private String name;
+    private int DEFAULT_SIZE; // An instance field in the original release, read and ignored
+
+    File() {
+    }
+
+    /**
+     * Retrieves the name of the file.
+     *
+     * @return The name of the file.
+     */
+    public String getName() {
+        return name;
+    }
+}
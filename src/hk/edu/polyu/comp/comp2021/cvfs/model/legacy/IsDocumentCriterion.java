@@ -0,0 +1,11 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model.legacy;
+
+/**
+ * The serialized layout of the built-in IsDocument criterion of the original release.
+ */
+public final class IsDocumentCriterion extends Criterion {
+    private static final long serialVersionUID = 3845796390458175708L;
+
+    private IsDocumentCriterion() {
+    }
+}
@@ -0,0 +1,22 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model.legacy;
+
+/**
+ * The serialized layout of a negated criterion of the original release.
+ */
+public final class NegationCriterion extends Criterion {
+    private static final long serialVersionUID = -5561457963478456631L;
+
+    private Criterion innerCriterion;
+
+    private NegationCriterion() {
+    }
+
+    /**
+     * Retrieves the negated criterion.
+     *
+     * @return The inner criterion.
+     */
+    public Criterion getInnerCriterion() {
+        return innerCriterion;
+    }
+}
@@ -0,0 +1,42 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model.legacy;
+
+/**
+ * The serialized layout of a simple criterion of the original release.
+ */
+public final class SimpleCriterion extends Criterion {
+    private static final long serialVersionUID = -3790468967048609676L;
+
+    private String attrName;
+    private String operator;
+    private String value;
+
+    private SimpleCriterion() {
+    }
+
+    /**
+     * Retrieves the attribute the criterion compares.
+     *
+     * @return The attribute name, e.g. "size".
+     */
+    public String getAttrName() {
+        return attrName;
+    }
+
+    /**
+     * Retrieves the comparison operator.
+     *
+     * @return The operator, e.g. "contains".
+     */
+    public String getOperator() {
+        return operator;
+    }
+
+    /**
+     * Retrieves the value compared against, as it was typed, e.g. with the quotes of a name.
+     *
+     * @return The value.
+     */
+    public String getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,44 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model.legacy;
+
+import java.io.Serializable;
+
+/**
+ * The serialized layout of a virtual disk of the original release.
+ */
+public final class VirtualDisk implements Serializable {
+    private static final long serialVersionUID = 5008030393784230562L;
+
+    private int maxSize;
+    private Directory root;
+    private Directory currentDirectory;
+
+    private VirtualDisk() {
+    }
+
+    /**
+     * Retrieves the maximum size of the disk.
+     *
+     * @return The maximum size in bytes.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Retrieves the root directory.
+     *
+     * @return The root directory.
+     */
+    public Directory getRoot() {
+        return root;
+    }
+
+    /**
+     * Retrieves the working directory at the time the disk was saved.
+     *
+     * @return The working directory.
+     */
+    public Directory getCurrentDirectory() {
+        return currentDirectory;
+    }
+}
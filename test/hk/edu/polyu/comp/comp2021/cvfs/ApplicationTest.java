@@ -0,0 +1,102 @@
+package hk.edu.polyu.comp.comp2021.cvfs;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class ApplicationTest {
+
+    @Test
+    public void testScriptFailFastStopsAtFailedLoad() throws IOException {
+        Path script = Files.createTempFile("cvfs-script", ".txt");
+        Files.write(script, Arrays.asList(
+                "newDisk 10000",
+                "",
+                "newDoc a txt one",
+                "   ",
+                "load " + script.resolveSibling("missing-" + script.getFileName() + ".dat"),
+                "newDoc b txt two"));
+        try {
+            String[] output = new String[2];
+            assertEquals(Application.EXIT_ERRORS, runBatch(output, "--script", script.toString(), "--fail-fast"));
+            assertTrue(output[0], output[0].contains("Error loading virtual disk"));
+            assertTrue("Blank lines count as lines: " + output[0], output[0].contains("Stopping at line 5: load"));
+            assertFalse("No command after the failed load runs", output[0].contains("b.txt"));
+            assertTrue(output[1], output[1].startsWith("Commands: 3, Errors: 1,"));
+        } finally {
+            Files.delete(script);
+        }
+    }
+
+    @Test
+    public void testScriptContinuesAndCountsErrors() throws IOException {
+        Path script = Files.createTempFile("cvfs-script", ".txt");
+        Path missing = script.resolveSibling("missing-" + script.getFileName());
+        Files.write(script, Arrays.asList(
+                "newDisk 10000",
+                "load " + missing.resolve("disk.dat"),
+                "newDoc a txt one",
+                "save " + missing.resolve("disk.dat"),
+                "changeDir nowhere",
+                "list"));
+        try {
+            String[] output = new String[2];
+            assertEquals("Errors fail the run even when it continues",
+                    Application.EXIT_ERRORS, runBatch(output, "--script", script.toString()));
+            assertTrue(output[0], output[0].contains("Error saving virtual disk"));
+            assertTrue(output[0], output[0].contains("a.txt"));
+            assertTrue(output[1], output[1].startsWith("Commands: 6, Errors: 3,"));
+        } finally {
+            Files.delete(script);
+        }
+    }
+
+    @Test
+    public void testScriptExitStatus() throws IOException {
+        Path script = Files.createTempFile("cvfs-script", ".txt");
+        Files.write(script, Arrays.asList("newDisk 10000", "newDoc a txt one"));
+        String[] output = new String[2];
+        try {
+            assertEquals(Application.EXIT_OK, runBatch(output, "--script", script.toString()));
+            assertTrue(output[1], output[1].startsWith("Commands: 2, Errors: 0,"));
+        } finally {
+            Files.delete(script);
+        }
+
+        assertEquals("An unreadable script fails the run",
+                Application.EXIT_ERRORS, runBatch(output, "--script", script.toString()));
+        assertTrue(output[0], output[0].contains("Error reading commands"));
+        assertEquals(Application.EXIT_USAGE, runBatch(output, "--script"));
+        assertEquals(Application.EXIT_USAGE, runBatch(output, "--script", script.toString(), "--unknown"));
+        assertEquals(Application.EXIT_USAGE, runBatch(output, "--script", script.toString(), "--batch"));
+        assertEquals(Application.EXIT_USAGE, runBatch(output, "--fail-fast"));
+        assertTrue(output[1], output[1].startsWith("Usage:"));
+    }
+
+    /**
+     * Runs the batch mode with the standard output and the summary on standard error captured.
+     */
+    private static int runBatch(String[] output, String... args) {
+        PrintStream originalOut = System.out;
+        PrintStream originalErr = System.err;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(out, true, StandardCharsets.UTF_8));
+        System.setErr(new PrintStream(err, true, StandardCharsets.UTF_8));
+        try {
+            return Application.runBatch(args);
+        } finally {
+            System.setOut(originalOut);
+            System.setErr(originalErr);
+            output[0] = out.toString(StandardCharsets.UTF_8);
+            output[1] = err.toString(StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package hk.edu.polyu.comp.comp2021.cvfs;
+
+import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ServerTest {
+
+    @Test
+    public void testClientsShareDiskWithOwnSessions() throws IOException {
+        CVFS cvfs = new CVFS();
+        cvfs.setInteractive(false);
+        cvfs.createDisk(10000);
+        Path socket = Files.createTempDirectory("cvfs-server").resolve("cvfs.sock");
+        try (Server server = new Server(cvfs, socket.toString(), 4)) {
+            server.start();
+            try (Client first = new Client(server); Client second = new Client(server)) {
+                assertEquals(Server.STATUS_OK, first.send("newDir dir1").get(1));
+                first.send("changeDir dir1");
+                first.send("newDoc doc1 txt hello");
+
+                String listing = String.join("\n", second.send("rList"));
+                assertTrue(listing, listing.contains("dir1"));
+                assertTrue(listing, listing.contains("doc1.txt"));
+                assertEquals(Server.STATUS_ERROR, second.send("changeDir doc1").get(1));
+                assertEquals("Sessions have their own undo history",
+                        Arrays.asList("There is nothing to undo.", Server.STATUS_OK), second.send("undo"));
+                assertEquals(Server.STATUS_QUIT, second.send("quit").get(1));
+            }
+        }
+        assertFalse("The socket file should be removed", Files.exists(socket));
+        Files.delete(socket.getParent());
+    }
+
+    @Test
+    public void testServedCommandsAreCountedInLauncherStats() throws IOException {
+        CVFS cvfs = new CVFS();
+        cvfs.setInteractive(false);
+        cvfs.createDisk(10000);
+        cvfs.getStats().setEnabled(true);
+        Path socket = Files.createTempDirectory("cvfs-server").resolve("cvfs.sock");
+        try (Server server = new Server(cvfs, socket.toString(), 4)) {
+            server.start();
+            try (Client first = new Client(server); Client second = new Client(server)) {
+                first.send("newDoc doc1 txt hello");
+                second.send("list");
+                second.send("changeDir missing");
+            }
+        }
+        assertEquals("Commands of every connection are counted", 3, cvfs.getStats().getCommandCount());
+        assertEquals(1, cvfs.getStats().getEntryCount());
+        Files.delete(socket.getParent());
+    }
+
+    /**
+     * A client that sends one command at a time and reads the response up to the status line.
+     */
+    private static final class Client implements AutoCloseable {
+        private final SocketChannel channel;
+        private final BufferedReader in;
+        private final PrintStream out;
+
+        private Client(Server server) throws IOException {
+            channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.connect(server.getAddress());
+            in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+            out = new PrintStream(Channels.newOutputStream(channel), true, StandardCharsets.UTF_8);
+        }
+
+        private List<String> send(String command) throws IOException {
+            out.println(command);
+            List<String> lines = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+                if (line.startsWith("%")) {
+                    break;
+                }
+            }
+            // The output first, then the status line
+            return Arrays.asList(String.join("\n", lines.subList(0, lines.size() - 1)), lines.get(lines.size() - 1));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -3,6 +3,18 @@ package hk.edu.polyu.comp.comp2021.cvfs.model;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class CVFSTest {
 
@@ -263,4 +275,928 @@ public class CVFSTest {
 
         assertTrue("Output should mention no redo available", outputStream.toString().contains("There is nothing to redo."));
     }
+
+    @Test
+    public void testDirectoryAggregates() {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(1000);
+
+        cvfs.createDirectory("dir1");
+        cvfs.changeDir("dir1");
+        cvfs.createDocument("doc1", "txt", "abc");
+        cvfs.createDirectory("dir2");
+        cvfs.changeDir("dir2");
+        cvfs.createDocument("doc2", "txt", "abcde");
+        cvfs.changeDir("..");
+        cvfs.changeDir("..");
+
+        Directory root = cvfs.getDisk().getCurrentDirectory();
+        Directory dir1 = (Directory) root.findFile("dir1");
+        assertEquals("dir1 should contain doc1, dir2 and doc2", 3, dir1.getDescendantCount());
+        assertEquals("dir1 size should include its whole subtree", 40 + 46 + 40 + 50, dir1.getSize());
+        assertEquals(4, root.getDescendantCount());
+        assertEquals(1000 - 40 - 176, cvfs.getDisk().getRemainedSize());
+
+        cvfs.changeDir("dir1");
+        cvfs.delete("dir2");
+        assertEquals(1, dir1.getDescendantCount());
+        assertEquals(40 + 46, dir1.getSize());
+        assertEquals(40 + 40 + 46, root.getSize());
+
+        cvfs.undo();
+        Directory restoredRoot = cvfs.getDisk().getRoot();
+        assertEquals("Undo should restore the aggregates", 4, restoredRoot.getDescendantCount());
+        assertEquals(40 + 176, restoredRoot.getSize());
+    }
+
+    @Test
+    public void testDirectoryKeepsInsertionOrder() {
+        Directory dir = new Directory("dir");
+        dir.addFile(new Document("b", "txt", ""));
+        dir.addFile(new Document("a", "txt", ""));
+        dir.addFile(new Directory("c"));
+        dir.renameFile("b", "z");
+        dir.removeFile("a");
+        dir.addFile(new Document("a", "css", ""));
+
+        StringBuilder names = new StringBuilder();
+        for (File file : dir.getFiles()) {
+            names.append(file.getName());
+        }
+        assertEquals("Renamed files keep their position, re-added files go last", "zca", names.toString());
+        assertNotNull(dir.findFile("z"));
+        assertNull(dir.findFile("b"));
+    }
+
+    @Test(expected = StateChangeCommandFailed.class)
+    public void testRenameToExistingName() {
+        Directory dir = new Directory("dir");
+        dir.addFile(new Document("a", "txt", ""));
+        dir.addFile(new Document("b", "txt", ""));
+        dir.renameFile("a", "b");
+    }
+
+    @Test
+    public void testUndoRedoRestoresOrderAndWorkingDir() {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(1000);
+        cvfs.setUndoLimit(100);
+
+        cvfs.createDocument("a", "txt", "1");
+        cvfs.createDirectory("b");
+        cvfs.createDocument("c", "txt", "2");
+        cvfs.changeDir("b");
+        cvfs.createDocument("d", "txt", "3");
+        cvfs.changeDir("..");
+        cvfs.delete("b");
+        cvfs.rename("a", "e");
+        cvfs.createSimpleCri("aa", "name", "contains", "\"e\"");
+
+        for (int i = 0; i < 4; i++) {
+            cvfs.undo();
+        }
+        Directory workingDir = cvfs.getDisk().getCurrentDirectory();
+        assertEquals("Undo should go back into 'b'", "b", workingDir.getName());
+        assertFalse(cvfs.getCriterionMap().containsKey("aa"));
+        cvfs.undo();
+        cvfs.undo();
+        cvfs.undo();
+        Directory root = cvfs.getDisk().getCurrentDirectory();
+        StringBuilder names = new StringBuilder();
+        for (File file : root.getFiles()) {
+            names.append(file.getName());
+        }
+        assertEquals("ab", names.toString());
+        assertEquals(40 + 42 + 40, root.getSize());
+
+        for (int i = 0; i < 7; i++) {
+            cvfs.redo();
+        }
+        names.setLength(0);
+        for (File file : cvfs.getDisk().getCurrentDirectory().getFiles()) {
+            names.append(file.getName());
+        }
+        assertEquals("ec", names.toString());
+        assertTrue(cvfs.getCriterionMap().containsKey("aa"));
+    }
+
+    @Test
+    public void testFailedCommandKeepsUndoHistory() {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(1000);
+
+        cvfs.createDirectory("dir1");
+        try {
+            cvfs.createDirectory("dir1");
+            fail("Duplicate directory should be rejected");
+        } catch (StateChangeCommandFailed e) {
+            cvfs.handleStateChangeCommandFailed();
+        }
+        cvfs.undo();
+        assertNull("Undo should revert the last successful command", cvfs.getDisk().getCurrentDirectory().findFile("dir1"));
+    }
+
+    @Test
+    public void testTransactions() {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(100000);
+        cvfs.createDirectory("keep");
+        int free = cvfs.getDisk().getRemainedSize();
+
+        cvfs.beginTransaction(false);
+        for (int i = 0; i < 20; i++) {
+            cvfs.createDocument("doc" + i, "txt", "content " + i);
+        }
+        cvfs.createDirectory("a");
+        cvfs.changeDir("a");
+        cvfs.rename("/keep", "kept");
+        cvfs.commitTransaction();
+        assertEquals("A committed transaction is one undo entry", 2, cvfs.getUndoCount());
+        cvfs.undo();
+        assertEquals(free, cvfs.getDisk().getRemainedSize());
+        assertEquals("$", cvfs.getWorkingDir());
+        assertNotNull(cvfs.getDisk().getRoot().findFile("keep"));
+        cvfs.redo();
+        assertEquals("$/a", cvfs.getWorkingDir());
+        assertNotNull(cvfs.getDisk().getRoot().findFile("doc19"));
+        cvfs.undo();
+
+        cvfs.beginTransaction(false);
+        cvfs.createDocument("doc", "txt", "rolled back");
+        cvfs.delete("keep");
+        try {
+            cvfs.undo();
+            fail("Undo should be refused inside a transaction");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        cvfs.rollbackTransaction();
+        assertFalse(cvfs.isInTransaction());
+        assertEquals(free, cvfs.getDisk().getRemainedSize());
+        assertNotNull(cvfs.getDisk().getRoot().findFile("keep"));
+        assertEquals("A rollback leaves no undo entry", 1, cvfs.getUndoCount());
+
+        cvfs.beginTransaction(true);
+        cvfs.createDocument("doc", "txt", "rolled back");
+        try {
+            cvfs.createDirectory("keep");
+            fail("Duplicate directory should be rejected");
+        } catch (StateChangeCommandFailed e) {
+            cvfs.handleStateChangeCommandFailed();
+        }
+        assertFalse("A failing command rolls back a fail-fast transaction", cvfs.isInTransaction());
+        assertNull(cvfs.getDisk().getRoot().findFile("doc"));
+    }
+
+    @Test
+    public void testUndoLimit() {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(100000);
+        cvfs.setUndoLimit(2000);
+        for (int i = 0; i < 2000; i++) {
+            cvfs.createDirectory("d" + i);
+        }
+        for (int i = 0; i < 2000; i++) {
+            cvfs.undo();
+        }
+        assertEquals(0, cvfs.getDisk().getCurrentDirectory().getDescendantCount());
+    }
+
+    @Test
+    public void testSnapshotAndRestore() {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(10000);
+        cvfs.createDirectory("a");
+        cvfs.createDirectory("b");
+        cvfs.changeDir("a");
+        cvfs.createDocument("doc1", "txt", "abc");
+        cvfs.createSnapshot("s1");
+        Directory untouched = (Directory) cvfs.getDisk().getRoot().findFile("b");
+
+        cvfs.createDocument("doc2", "txt", "abcdef");
+        cvfs.rename("doc1", "doc3");
+        cvfs.changeDir("..");
+        cvfs.delete("b");
+        assertEquals("$", cvfs.getWorkingDir());
+
+        cvfs.restoreSnapshot("s1");
+        Directory root = cvfs.getDisk().getRoot();
+        assertEquals("Restore should return to the captured working directory", "$/a", cvfs.getWorkingDir());
+        assertSame("Untouched directories should be shared with the snapshot", untouched, root.findFile("b"));
+        Directory a = (Directory) root.findFile("a");
+        assertNotNull(a.findFile("doc1"));
+        assertNull(a.findFile("doc2"));
+        assertEquals(40 + 40 + 40 + 46, root.getSize());
+
+        cvfs.undo();
+        assertEquals("Undo should revert the restore", "$", cvfs.getWorkingDir());
+        assertNull(cvfs.getDisk().getRoot().findFile("b"));
+        assertNotNull(((Directory) cvfs.getDisk().getRoot().findFile("a")).findFile("doc3"));
+    }
+
+    @Test
+    public void testBinaryImageRoundTrip() throws IOException {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(10000);
+        cvfs.createDocument("b", "css", "body { }");
+        cvfs.createDirectory("dir1");
+        cvfs.createDocument("a", "txt", "\u00e9t\u00e9");
+        cvfs.changeDir("dir1");
+        cvfs.createDocument("doc1", "java", "class A {}");
+        cvfs.createSimpleCri("aa", "name", "contains", "\"doc\"");
+        cvfs.createSimpleCri("bb", "size", ">=", "50");
+        cvfs.createNegationCri("cc", "aa");
+        cvfs.createBinaryCri("dd", "cc", "||", "bb");
+
+        String filePath = "testImage.datc";
+        cvfs.saveDisk(filePath, true);
+        assertTrue(DiskImage.isImage(java.nio.file.Paths.get(filePath)));
+
+        CVFS cvfsLoaded = new CVFS();
+        cvfsLoaded.loadDisk(filePath);
+        VirtualDisk loaded = cvfsLoaded.getDisk();
+        assertEquals("$/dir1", cvfsLoaded.getWorkingDir());
+        assertEquals(cvfs.getDisk().getRemainedSize(), loaded.getRemainedSize());
+        StringBuilder names = new StringBuilder();
+        for (File file : loaded.getRoot().getFiles()) {
+            names.append(file.getName());
+        }
+        assertEquals("Listing order should survive the round trip", "bdir1a", names.toString());
+        assertEquals("\u00e9t\u00e9", ((Document) loaded.getRoot().findFile("a")).getContent());
+
+        Criterion dd = cvfsLoaded.getCriterionMap().get("dd");
+        Document doc1 = (Document) loaded.getCurrentDirectory().findFile("doc1");
+        Document a = (Document) loaded.getRoot().findFile("a");
+        assertTrue(dd.matches(doc1));
+        assertTrue(dd.matches(a));
+        assertEquals(cvfs.getCriterionMap().keySet(), cvfsLoaded.getCriterionMap().keySet());
+    }
+
+    @Test
+    public void testLoadLegacySerializedDisk() throws Exception {
+        // Written by the original release: readme.txt in the root; Main.java, web/index.html, web/style.css
+        // and the empty directory "empty" in src, the working directory; nm = name contains "in", bg = size > 50,
+        // nb = !bg, nx = nm && nb
+        CVFS cvfs = new CVFS();
+        cvfs.loadDisk(Paths.get(CVFSTest.class.getResource("legacy.datc").toURI()).toString());
+        assertEquals(9610, cvfs.getDisk().getRemainedSize());
+        assertEquals("$/src", cvfs.getDisk().getPathName());
+        Document readme = (Document) cvfs.getDisk().getRoot().findFile("readme");
+        assertEquals("Hello \u00e9t\u00e9", readme.getContent());
+        assertEquals("txt", readme.getType());
+        assertEquals(new HashSet<>(Arrays.asList("IsDocument", "nm", "bg", "nb", "nx")), cvfs.getCriterionMap().keySet());
+        assertEquals(Arrays.asList("Main", "index"), namesMatching(cvfs, "nm"));
+        assertEquals(Arrays.asList("style", "empty"), namesMatching(cvfs, "nb"));
+        assertEquals(Collections.emptyList(), namesMatching(cvfs, "nx"));
+
+        CVFS withoutCriteria = new CVFS();
+        withoutCriteria.loadDisk(Paths.get(CVFSTest.class.getResource("legacy.dat").toURI()).toString());
+        assertEquals(9610, withoutCriteria.getDisk().getRemainedSize());
+        assertEquals(Collections.singleton("IsDocument"), withoutCriteria.getCriterionMap().keySet());
+    }
+
+    private static List<String> namesMatching(CVFS cvfs, String criName) {
+        return cvfs.query(criName, true).map(listed -> listed.getFile().getName()).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testMappedLoad() {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(10000);
+        cvfs.createDocument("doc", "txt", "mapped \u00e9");
+        cvfs.createDirectory("dir1");
+
+        String filePath = "testMapped.dat";
+        cvfs.saveDisk(filePath, false);
+
+        CVFS cvfsLoaded = new CVFS();
+        cvfsLoaded.loadDisk(filePath, true);
+        Document doc = (Document) cvfsLoaded.getDisk().getRoot().findFile("doc");
+        assertEquals(cvfs.getDisk().getRemainedSize(), cvfsLoaded.getDisk().getRemainedSize());
+        assertEquals("mapped \u00e9", doc.getContent());
+
+        cvfsLoaded.createDocument("doc2", "txt", "new");
+        cvfsLoaded.saveDisk(filePath, false);
+        assertEquals("Saving over the mapped image should keep the mapped content readable", "mapped \u00e9", doc.getContent());
+        CVFS cvfsReloaded = new CVFS();
+        cvfsReloaded.loadDisk(filePath);
+        assertNotNull(cvfsReloaded.getDisk().getRoot().findFile("doc2"));
+    }
+
+    @Test
+    public void testDuplicateContentIsShared() {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(10000);
+        cvfs.createDocument("doc1", "txt", "same text");
+        cvfs.createDirectory("dir1");
+        cvfs.changeDir("dir1");
+        cvfs.createDocument("doc2", "java", "same text");
+        cvfs.createDocument("doc3", "txt", "other");
+        VirtualDisk disk = cvfs.getDisk();
+        Document doc1 = (Document) disk.getRoot().findFile("doc1");
+        Document doc2 = (Document) disk.getCurrentDirectory().findFile("doc2");
+        assertSame(doc1.getContentObject(), doc2.getContentObject());
+        assertEquals("Sharing must not change the accounted size", 10000 - 5 * 40 - 2 * 9 * 2 - 5 * 2,
+                disk.getRemainedSize());
+        assertEquals(2, disk.getBlobStore().getBlobCount());
+
+        String filePath = "testShared.dat";
+        cvfs.saveDisk(filePath, false);
+        CVFS cvfsLoaded = new CVFS();
+        cvfsLoaded.loadDisk(filePath);
+        Directory loadedDir = (Directory) cvfsLoaded.getDisk().getRoot().findFile("dir1");
+        assertSame(((Document) cvfsLoaded.getDisk().getRoot().findFile("doc1")).getContentObject(),
+                ((Document) loadedDir.findFile("doc2")).getContentObject());
+        assertEquals(disk.getRemainedSize(), cvfsLoaded.getDisk().getRemainedSize());
+
+        cvfs.delete("doc3");
+        assertEquals("Content without live documents should leave the store", 1, disk.getBlobStore().getBlobCount());
+        cvfs.undo();
+        assertEquals("other", ((Document) cvfs.getDisk().getCurrentDirectory().findFile("doc3")).getContent());
+    }
+
+    @Test
+    public void testLargeContentIsCompressed() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < CompressedContent.DEFAULT_THRESHOLD * 2) {
+            text.append("public class A { int a = ").append(text.length()).append("; }\n");
+        }
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(100000);
+        cvfs.createDocument("big", "java", text.toString());
+        cvfs.createDocument("small", "txt", "short");
+        Document big = (Document) cvfs.getDisk().getRoot().findFile("big");
+        assertTrue(big.getContentObject() instanceof CompressedContent);
+        assertTrue(((Document) cvfs.getDisk().getRoot().findFile("small")).getContentObject() instanceof TextContent);
+        assertEquals(text.length() * 2 + 40, big.getSize());
+        assertEquals(text.toString(), big.getContent());
+
+        String filePath = "testCompressed.dat";
+        cvfs.saveDisk(filePath, false);
+        assertTrue(new java.io.File(filePath).length() < text.length());
+        for (boolean mapped : new boolean[]{false, true}) {
+            CVFS cvfsLoaded = new CVFS();
+            cvfsLoaded.loadDisk(filePath, mapped);
+            Document loaded = (Document) cvfsLoaded.getDisk().getRoot().findFile("big");
+            assertEquals(big.getSize(), loaded.getSize());
+            assertEquals(text.toString(), loaded.getContent());
+            cvfsLoaded.saveDisk(filePath, false);
+            assertTrue("Saving must not inflate deflated content", new java.io.File(filePath).length() < text.length());
+        }
+    }
+
+    @Test
+    public void testParallelListingMatchesSequentialOrder() {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(1000000);
+        for (int d = 0; d < 6; d++) {
+            cvfs.createDirectory("dir" + d);
+            cvfs.changeDir("dir" + d);
+            for (int f = 0; f < 5; f++) {
+                cvfs.createDocument("doc" + f, d % 2 == 0 ? "txt" : "css", "content" + f);
+            }
+            cvfs.createDirectory("sub");
+            cvfs.changeDir("sub");
+            cvfs.createDocument("deep", "txt", "x");
+            cvfs.changeDir("..");
+            cvfs.changeDir("..");
+        }
+        cvfs.createSimpleCri("tx", "type", "equals", "\"txt\"");
+
+        int threshold = ParallelLister.getThreshold();
+        String sequential = captureOutput(() -> { cvfs.recursiveList(); cvfs.recursiveList("tx"); });
+        ParallelLister.setThreshold(1);
+        try {
+            String parallel = captureOutput(() -> { cvfs.recursiveList(); cvfs.recursiveList("tx"); });
+            assertEquals(sequential, parallel);
+
+            cvfs.createNegationCri("nt", "tx"); // Not answered by the indexes, so the search cache is built
+            StringBuilder walked = new StringBuilder();
+            cvfs.getDisk().getCurrentDirectory().stream(true, cvfs.getCriterionMap().get("nt"))
+                    .forEach(listed -> walked.append("  ".repeat(listed.getDepth())).append(listed.getFile()).append(System.lineSeparator()));
+            SearchCache cache = cvfs.getDisk().getSearchCache();
+            long misses = cache.getMisses();
+            assertEquals(walked.toString(), captureOutput(() -> cvfs.recursiveList("nt")));
+            assertEquals("Every directory gets an entry", misses + 13, cache.getMisses());
+            assertEquals(walked.toString(), captureOutput(() -> cvfs.recursiveList("nt")));
+            assertEquals(misses + 13, cache.getMisses());
+        } finally {
+            ParallelLister.setThreshold(threshold);
+        }
+    }
+
+    @Test
+    public void testIndexedSearchMatchesScan() {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(1000000);
+        for (int d = 0; d < 4; d++) {
+            cvfs.createDirectory("dir" + d);
+            cvfs.changeDir("dir" + d);
+            for (int f = 0; f < 4; f++) {
+                cvfs.createDocument("doc" + f, f % 2 == 0 ? "txt" : "css", "content".substring(f));
+            }
+            cvfs.changeDir("..");
+        }
+        cvfs.createDocument("top", "txt", "x");
+        cvfs.createDirectory("fill"); // Keeps the criteria below selective enough for the indexes
+        cvfs.changeDir("fill");
+        for (int f = 0; f < 800; f++) {
+            cvfs.createDocument("j" + f, "java", "");
+        }
+        cvfs.changeDir("..");
+        cvfs.createSimpleCri("tx", "type", "equals", "\"txt\"");
+        cvfs.createSimpleCri("sz", "size", ">=", "50");
+        cvfs.createBinaryCri("bo", "tx", "&&", "sz");
+        for (String criName : new String[]{"tx", "sz", "bo"}) {
+            cvfs.createNegationCri("n" + criName.charAt(0), criName);
+        }
+        cvfs.createNegationCri("mt", "nt");
+        cvfs.createNegationCri("ms", "ns");
+        cvfs.createNegationCri("mb", "nb");
+        cvfs.createSimpleCri("nm", "name", "contains", "\"named\"");
+        cvfs.createNegationCri("nn", "nm");
+        cvfs.createNegationCri("mn", "nn");
+        Runnable indexed = () -> { cvfs.recursiveList("tx"); cvfs.recursiveList("sz"); cvfs.recursiveList("bo"); cvfs.list("tx"); cvfs.recursiveList("nm"); };
+        Runnable scanned = () -> { cvfs.recursiveList("mt"); cvfs.recursiveList("ms"); cvfs.recursiveList("mb"); cvfs.list("mt"); cvfs.recursiveList("mn"); };
+
+        for (String criName : new String[]{"tx", "sz", "bo", "nm"}) {
+            assertNotNull(cvfs.getDisk().search(cvfs.getCriterionMap().get(criName), true));
+        }
+        assertEquals(captureOutput(scanned), captureOutput(indexed));
+        cvfs.createSnapshot("s1");
+        cvfs.changeDir("dir1");
+        cvfs.delete("doc0");
+        cvfs.rename("doc2", "renamed");
+        cvfs.createDocument("added", "txt", "more content");
+        assertEquals(captureOutput(scanned), captureOutput(indexed));
+        assertTrue(captureOutput(indexed).contains("renamed"));
+        cvfs.changeDir("..");
+        cvfs.undo();
+        assertEquals(captureOutput(scanned), captureOutput(indexed));
+        cvfs.restoreSnapshot("s1");
+        assertEquals(captureOutput(scanned), captureOutput(indexed));
+        assertTrue(captureOutput(indexed).contains("top"));
+    }
+
+    @Test
+    public void testPagedSearchStopsEarly() {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(1000000);
+        for (int d = 0; d < 3; d++) {
+            cvfs.createDirectory("dir" + d);
+            cvfs.changeDir("dir" + d);
+            for (int f = 0; f < 3; f++) {
+                cvfs.createDocument("doc" + f, "txt", "content");
+            }
+            cvfs.changeDir("..");
+        }
+        cvfs.createSimpleCri("sz", "size", "!=", "0");
+        String[] all = captureOutput(() -> cvfs.recursiveList("sz")).split("\n");
+        String[] page = captureOutput(() -> cvfs.list("sz", true, 2, 5)).split("\n");
+        assertArrayEquals(Arrays.copyOfRange(all, 2, 7), page);
+        assertEquals(3, cvfs.query(null, false).count());
+        Stream<ListedFile> before = cvfs.query(null, true);
+        Stream<ListedFile> beforeMatches = cvfs.query("sz", true);
+        CVFS other = cvfs.openSession();
+        other.delete("dir0");
+        other.createDocument("late", "txt", "added after the query");
+        assertEquals("A query sees the disk as it was queried", 12, before.count());
+        assertEquals(12, beforeMatches.count());
+        assertEquals(9, cvfs.query(null, true).count());
+
+        int[] evaluated = {0};
+        Criterion counting = new Criterion("ct") {
+            @Override
+            public boolean matches(File file) {
+                evaluated[0]++;
+                return true;
+            }
+
+            @Override
+            public String toString() {
+                return "ct";
+            }
+        };
+        Directory root = cvfs.getDisk().getCurrentDirectory();
+        assertEquals(4, root.stream(true, counting).limit(4).count());
+        assertEquals(4, evaluated[0]);
+    }
+
+    @Test
+    public void testStatsRecordOnlyWhenEnabled() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(50_000_000, histogram.getPercentile(50), 50_000_000 * 0.016);
+        assertEquals(99_000_000, histogram.getPercentile(99), 99_000_000 * 0.016);
+        assertEquals(100_000_000, histogram.getMax());
+
+        CVFS cvfs = new CVFS();
+        Stats stats = cvfs.getStats();
+        stats.setEnabled(false);
+        cvfs.createDisk(10000);
+        cvfs.createDocument("doc", "txt", "content");
+        assertEquals(0, stats.getHistogram("mutation").getCount());
+
+        stats.setEnabled(true);
+        captureOutput(() -> {
+            cvfs.createDocument("doc2", "txt", "content");
+            cvfs.delete("doc");
+            cvfs.list();
+        });
+        assertEquals(2, stats.getHistogram("mutation").getCount());
+        assertEquals(2, stats.getHistogram("undo").getCount());
+        assertEquals(1, stats.getHistogram("rendering").getCount());
+        assertEquals(1, stats.getEntryCount());
+        assertEquals(3, stats.getUndoEntryCount());
+        assertTrue(stats.getUndoBytes() > cvfs.getDisk().getRoot().getSize());
+        assertTrue(stats.report().contains("mutation"));
+        stats.reset();
+        assertEquals(0, stats.getHistogram("mutation").getCount());
+    }
+
+    @Test
+    public void testSessionsShareDisk() {
+        CVFS first = new CVFS();
+        first.createDisk(10000);
+        first.createDirectory("dir1");
+        first.changeDir("dir1");
+        CVFS second = first.openSession();
+        assertEquals("$", second.getWorkingDir());
+        second.createDocument("doc", "txt", "shared");
+        assertNotNull(first.getDisk().getRoot().findFile("doc"));
+        assertEquals(first.getDisk().getRemainedSize(), second.getDisk().getRemainedSize());
+
+        second.delete("dir1");
+        assertEquals("The working directory should move up when another session deletes it", "$", first.getWorkingDir());
+        try {
+            first.undo(); // Would leave dir1, which no longer exists
+            fail("Undo should fail");
+        } catch (StateChangeCommandFailed e) {
+            assertEquals("A failed undo stays on the stack", 2, first.getUndoCount());
+        }
+        second.undo();
+        first.changeDir("dir1");
+        assertEquals("$/dir1", first.getWorkingDir());
+    }
+
+    @Test
+    public void testConcurrentReadersAndWriters() throws InterruptedException {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(Integer.MAX_VALUE);
+        cvfs.createSimpleCri("jv", "type", "equals", "\"java\"");
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        cvfs.setOutput(discard);
+        int writers = 4;
+        int steps = 300;
+        List<Throwable> failures = java.util.Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            CVFS session = cvfs.openSession();
+            String dirName = "w" + w;
+            threads.add(new Thread(() -> {
+                try {
+                    session.createDirectory(dirName);
+                    session.changeDir(dirName);
+                    for (int i = 0; i < steps; i++) {
+                        session.createDocument("d" + i, i % 2 == 0 ? "txt" : "java", "content " + i);
+                        if (i % 3 == 0) {
+                            session.delete("d" + i);
+                        } else if (i % 5 == 0) {
+                            session.rename("d" + i, "r" + i);
+                            session.undo();
+                        }
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }));
+        }
+        for (int r = 0; r < 4; r++) {
+            CVFS session = cvfs.openSession();
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < steps; i++) {
+                        session.recursiveList(i % 2 == 0 ? "jv" : "IsDocument");
+                        Lock lock = session.getDisk().getLock().readLock();
+                        lock.lock();
+                        try {
+                            Directory root = session.getDisk().getRoot();
+                            int[] walked = new int[2];
+                            session.query(null, true).forEach(listed -> {
+                                walked[0]++;
+                                walked[1] += listed.getDepth() == 0 ? listed.getFile().getSize() : 0;
+                            });
+                            assertEquals("Readers must never see a half-applied change", root.getDescendantCount(), walked[0]);
+                            assertEquals(root.getSize() - 40, walked[1]);
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(failures.toString(), 0, failures.size());
+
+        Directory root = cvfs.getDisk().getRoot();
+        int expected = steps - (steps + 2) / 3;
+        for (int w = 0; w < writers; w++) {
+            Directory dir = (Directory) root.findFile("w" + w);
+            assertEquals(expected, dir.getFiles().size());
+            assertNotNull(dir.findFile("d" + (steps - 1)));
+        }
+        assertEquals(writers * (expected + 1), root.getDescendantCount());
+        String output = captureOutput(() -> {
+            CVFS check = cvfs.openSession();
+            check.setOutput(System.out);
+            check.recursiveList("jv");
+        });
+        assertEquals("The indexes must match the final tree", writers * (steps / 2 - steps / 6), output.split(".java").length - 1);
+    }
+
+    @Test
+    public void testJournalReplaysChangesSinceCheckpoint() throws IOException {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(10000);
+        cvfs.createDocument("doc0", "txt", "checkpointed");
+        Path image = Files.createTempFile("cvfs-journal", ".datc");
+        Path journal = Journal.pathOf(image);
+        cvfs.startJournal(image.toString());
+        cvfs.createDirectory("dir1");
+        cvfs.changeDir("dir1");
+        cvfs.createDocument("doc1", "txt", "journaled");
+        cvfs.rename("doc1", "doc2");
+        cvfs.changeDir("..");
+        cvfs.delete("doc0");
+        cvfs.undo(); // Puts doc0 back in front of dir1
+        cvfs.createSimpleCri("bg", "size", ">", "50");
+        CVFS session = cvfs.openSession();
+        session.changeDir("dir1");
+        session.createDocument("doc3", "java", "written by another session");
+        String expected = captureOutput(cvfs::recursiveList);
+
+        CVFS loaded = new CVFS();
+        loaded.loadDisk(image.toString());
+        assertEquals(expected, captureOutput(loaded::recursiveList));
+        assertTrue(loaded.getCriterionMap().containsKey("bg"));
+
+        Files.write(journal, new byte[]{0, 0, 1}, StandardOpenOption.APPEND); // A record torn by a crash
+        long size = Files.size(journal);
+        CVFS recovered = new CVFS();
+        recovered.loadDisk(image.toString());
+        assertEquals(expected, captureOutput(recovered::recursiveList));
+        assertEquals("The torn record should be truncated", size - 3, Files.size(journal));
+
+        recovered.checkpoint();
+        assertTrue("A checkpoint should truncate the journal", Files.size(journal) < size - 3);
+        recovered.createDocument("doc4", "css", "after the checkpoint");
+        CVFS reloaded = new CVFS();
+        reloaded.loadDisk(image.toString());
+        assertEquals(captureOutput(recovered::recursiveList), captureOutput(reloaded::recursiveList));
+        assertEquals(1, reloaded.getDisk().getJournal().getReplayedCount());
+
+        for (CVFS open : Arrays.asList(cvfs, loaded, recovered, reloaded)) {
+            open.setInteractive(false);
+            open.createDisk(100); // Closes the journal
+        }
+        Files.delete(journal);
+        Files.delete(image);
+    }
+
+    @Test
+    public void testIncrementalSaveAppendsChangedDirectories() throws IOException {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(1000000);
+        for (int d = 0; d < 20; d++) {
+            cvfs.createDirectory("dir" + d);
+            cvfs.changeDir("dir" + d);
+            for (int i = 0; i < 50; i++) {
+                cvfs.createDocument("doc" + i, "txt", "document " + i + " of directory " + d);
+            }
+            cvfs.changeDir("..");
+        }
+        Path image = Files.createTempFile("cvfs-segmented", ".datc");
+        cvfs.saveDisk(image.toString(), true);
+        long full = Files.size(image);
+
+        cvfs.changeDir("dir7");
+        cvfs.createDocument("added", "txt", "new content");
+        cvfs.rename("doc3", "renamed");
+        cvfs.saveDisk(image.toString(), true);
+        long growth = Files.size(image) - full;
+        assertTrue("Only the changed directory and its ancestors should be appended: " + growth, growth < full / 10);
+
+        CVFS loaded = new CVFS();
+        loaded.loadDisk(image.toString());
+        assertEquals(captureOutput(cvfs::recursiveList), captureOutput(loaded::recursiveList));
+        assertEquals("$/dir7", loaded.getWorkingDir());
+
+        loaded.delete("renamed"); // A disk loaded from the image continues appending to it
+        loaded.saveDisk(image.toString(), false);
+        CVFS reloaded = new CVFS();
+        reloaded.loadDisk(image.toString(), true);
+        assertEquals(captureOutput(loaded::recursiveList), captureOutput(reloaded::recursiveList));
+        assertTrue(Files.size(image) < full * 2);
+
+        SegmentedImage.setAppendLimit(Files.size(image) - 1);
+        try {
+            reloaded.delete("added");
+            reloaded.saveDisk(image.toString(), false);
+            assertTrue("An image beyond the append limit is written again", Files.size(image) < full);
+            CVFS compacted = new CVFS();
+            compacted.loadDisk(image.toString());
+            assertEquals(captureOutput(reloaded::recursiveList), captureOutput(compacted::recursiveList));
+        } finally {
+            SegmentedImage.setAppendLimit(SegmentedImage.DEFAULT_APPEND_LIMIT);
+        }
+        Files.delete(image);
+    }
+
+    @Test
+    public void testMultiLevelPaths() {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(100000);
+        cvfs.createDirectory("a");
+        cvfs.createDirectory("a/b");
+        cvfs.createDirectory("/a/b/c");
+        cvfs.createDocument("a/b/doc", "txt", "deep");
+        cvfs.changeDir("/a/b/c");
+        assertEquals("$/a/b/c", cvfs.getWorkingDir());
+        cvfs.changeDir("../..");
+        assertEquals("$/a", cvfs.getWorkingDir());
+
+        cvfs.delete("b/doc");
+        Directory b = (Directory) cvfs.getDisk().getCurrentDirectory().findFile("b");
+        assertNull(b.findFile("doc"));
+        cvfs.rename("$/a/b/c", "d");
+        cvfs.changeDir("b/d");
+        assertEquals("$/a/b/d", cvfs.getWorkingDir());
+        try {
+            cvfs.rename("/a", "x");
+            fail("The working directory should not be renamed away");
+        } catch (StateChangeCommandFailed e) {
+            assertEquals("$/a/b/d", cvfs.getWorkingDir());
+        }
+
+        cvfs.undo(); // Back to $/a
+        cvfs.undo(); // c is named c again
+        cvfs.undo(); // doc is back, although the working directory is not its directory
+        cvfs.changeDir("$/a/b");
+        assertEquals("[c, doc]", Arrays.toString(cvfs.getDisk().getCurrentDirectory().getFiles().stream()
+                .map(File::getName).toArray()));
+        try {
+            cvfs.changeDir("../../..");
+            fail("The path should not lead above the root");
+        } catch (StateChangeCommandFailed e) {
+            assertEquals("$/a/b", cvfs.getWorkingDir());
+        }
+    }
+
+    @Test
+    public void testImportHostTree() throws IOException {
+        Path host = Files.createTempDirectory("cvfs-import");
+        Path tree = Files.createDirectory(host.resolve("my-docs"));
+        Files.write(tree.resolve("notes.txt"), "plain notes".getBytes("UTF-8"));
+        Files.write(tree.resolve("ParallelLister.java"), "class A {}".getBytes("UTF-8"));
+        Path sub = Files.createDirectory(tree.resolve("sub"));
+        Files.write(sub.resolve("readme.md"), "# read me".getBytes("UTF-8"));
+        Files.write(sub.resolve("logo.png"), new byte[]{(byte) 0x89, 'P', 'N', 'G'});
+        Files.write(sub.resolve("blob.txt"), new byte[]{'a', 0, 'b'});
+
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(100000);
+        cvfs.createDirectory("a");
+        int free = cvfs.getDisk().getRemainedSize();
+        cvfs.importTree(tree.toString(), "/a");
+        Directory imported = (Directory) ((Directory) cvfs.getDisk().getRoot().findFile("a")).findFile("mydocs");
+        assertEquals(4, imported.getDescendantCount());
+        assertEquals("java", ((Document) imported.findFile("ParallelLi")).getType());
+        assertEquals("# read me", ((Document) ((Directory) imported.findFile("sub")).findFile("readme")).getContent());
+        assertEquals(free - imported.getSize(), cvfs.getDisk().getRemainedSize());
+
+        cvfs.undo();
+        assertEquals("One undo removes the whole import", free, cvfs.getDisk().getRemainedSize());
+        assertEquals("$", cvfs.getWorkingDir());
+
+        for (Path file : new Path[]{sub.resolve("readme.md"), sub.resolve("logo.png"), sub.resolve("blob.txt"), sub,
+                tree.resolve("notes.txt"), tree.resolve("ParallelLister.java"), tree, host}) {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testExportSubtree() throws IOException {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(100000);
+        cvfs.createDirectory("a");
+        cvfs.createDocument("a/notes", "txt", "plain notes");
+        cvfs.createDirectory("a/sub");
+        cvfs.createDocument("a/sub/Main", "java", "class Main {}");
+        Path host = Files.createTempDirectory("cvfs-export");
+
+        String output = captureOutput(() -> cvfs.exportTree("/a", host.toString()));
+        assertTrue(output.contains("Exported 2 documents"));
+        assertEquals("plain notes", new String(Files.readAllBytes(host.resolve("notes.txt")), "UTF-8"));
+        assertEquals("class Main {}", new String(Files.readAllBytes(host.resolve("sub").resolve("Main.java")), "UTF-8"));
+
+        Directory frozen = (Directory) cvfs.getDisk().getRoot().findFile("a");
+        cvfs.getDisk().capture();
+        cvfs.createDocument("a/later", "txt", "written after the capture");
+        cvfs.delete("a/notes");
+        Exporter.Result result = Exporter.write(frozen, host, null);
+        assertEquals("The captured directory does not change", 2, result.getDocuments());
+        assertFalse(Files.exists(host.resolve("later.txt")));
+
+        for (Path file : new Path[]{host.resolve("sub").resolve("Main.java"), host.resolve("sub"),
+                host.resolve("notes.txt"), host}) {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testSearchCacheReusesUnchangedSubtrees() {
+        CVFS cvfs = new CVFS();
+        cvfs.createDisk(1000000);
+        for (String dir : new String[]{"a", "a/b", "c"}) {
+            cvfs.createDirectory(dir);
+            for (int i = 0; i < 10; i++) {
+                cvfs.createDocument(dir + "/d" + i, i % 2 == 0 ? "txt" : "java", "content " + i);
+            }
+        }
+        int[] evaluations = {0};
+        Criterion counting = new Criterion("cc") {
+            @Override
+            public boolean matches(File file) {
+                evaluations[0]++;
+                return file.getName().startsWith("d") || file.getName().equals("b");
+            }
+
+            @Override
+            public String toString() {
+                return "cc counting";
+            }
+        };
+        cvfs.getCriterionMap().put("cc", counting);
+
+        String first = captureOutput(() -> cvfs.recursiveList("cc"));
+        assertEquals(33, evaluations[0]);
+        assertEquals(31, first.split("\n").length);
+        SearchCache cache = cvfs.getDisk().getSearchCache();
+        assertEquals("One slot per match and per directory", 38, cache.getSlots());
+        assertEquals("A repeated search evaluates nothing", first, captureOutput(() -> cvfs.recursiveList("cc")));
+        assertEquals(33, evaluations[0]);
+
+        cvfs.rename("a/b/d3", "d33");
+        String changed = captureOutput(() -> cvfs.recursiveList("cc"));
+        assertEquals("Only the directories on the path of the change are matched again", 33 + 2 + 11 + 10, evaluations[0]);
+        assertTrue(changed.contains("d33") && !changed.contains("d3,"));
+        assertEquals("The entries of the changed directories are replaced", 38, cache.getSlots());
+        StringBuilder walked = new StringBuilder();
+        cvfs.getDisk().getCurrentDirectory().stream(true, counting)
+                .forEach(listed -> walked.append("  ".repeat(listed.getDepth())).append(listed.getFile()).append(System.lineSeparator()));
+        assertEquals(walked.toString(), changed);
+
+        cvfs.createSnapshot("s");
+        cvfs.delete("c/d0");
+        assertEquals(30, captureOutput(() -> cvfs.recursiveList("cc")).split("\n").length);
+        cvfs.restoreSnapshot("s");
+        assertEquals(changed, captureOutput(() -> cvfs.recursiveList("cc")));
+        cvfs.changeDir("a");
+        assertEquals("A flat search uses the entry of the recursive one", 11, captureOutput(() -> cvfs.list("cc")).split("\n").length);
+
+        cvfs.changeDir("..");
+        SearchCache.setCapacity(30);
+        try {
+            cvfs.rename("c/d0", "d00");
+            String renamed = captureOutput(() -> cvfs.recursiveList("cc"));
+            assertTrue(renamed.contains("d00.txt"));
+            assertTrue(cache.getSlots() <= 30);
+            int before = evaluations[0];
+            assertEquals(renamed, captureOutput(() -> cvfs.recursiveList("cc")));
+            assertEquals("The root entry would keep all 38 slots, so it is not cached", before + 33, evaluations[0]);
+        } finally {
+            SearchCache.setCapacity(SearchCache.DEFAULT_CAPACITY);
+        }
+    }
+
+    private static String captureOutput(Runnable action) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PrintStream originalOut = System.out;
+        System.setOut(new PrintStream(outputStream));
+        try {
+            action.run();
+        } finally {
+            System.setOut(originalOut);
+        }
+        return outputStream.toString();
+    }
 }